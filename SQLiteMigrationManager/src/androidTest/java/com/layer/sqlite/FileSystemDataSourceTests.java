@@ -0,0 +1,117 @@
+package com.layer.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.layer.sqlite.datasource.FileSystemDataSource;
+import com.layer.sqlite.migrations.FileMigration;
+import com.layer.sqlite.migrations.Migration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.UUID;
+
+import static com.layer.sqlite.Fixtures.assertStreamNotNull;
+import static com.layer.sqlite.Fixtures.getDatabase;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class FileSystemDataSourceTests extends AndroidTestCase {
+    private File mBaseDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBaseDir = new File(getContext().getCacheDir(), UUID.randomUUID().toString());
+        new File(mBaseDir, "migrations").mkdirs();
+        write("schema.sql", "CREATE TABLE schema_migrations (\n"
+                + "  version INTEGER UNIQUE NOT NULL\n"
+                + ");\n"
+                + "\n"
+                + "INSERT INTO schema_migrations(version) VALUES (1402070000);");
+        write("migrations/1402070001_CreateTableBananas.sql", "CREATE TABLE bananas (\n"
+                + "    name TEXT\n"
+                + ");");
+        write("migrations/1402070002_InsertWhiteYellowIntoBananas.sql",
+                "INSERT INTO bananas (name) VALUES ('white');\n"
+                        + "\n"
+                        + "-- comment\n"
+                        + "INSERT INTO bananas (name) VALUES ('yellow');");
+        write("migrations/README.txt", "Not a migration");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mBaseDir);
+        super.tearDown();
+    }
+
+    private void write(String path, String contents) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(mBaseDir, path));
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+    public void testNonexistentSchema() throws Exception {
+        try {
+            new FileSystemDataSource(new File(mBaseDir, "wrong.sql"), mBaseDir);
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).startsWith("Could not find");
+        }
+    }
+
+    public void testNonexistentMigrationsDir() throws Exception {
+        FileSystemDataSource source = new FileSystemDataSource(null, new File(mBaseDir, "wrong"));
+        assertFalse(source.hasSchema());
+        assertThat(source.getMigrations()).isEmpty();
+    }
+
+    public void testGetMigrations() throws Exception {
+        FileSystemDataSource source = new FileSystemDataSource(new File(mBaseDir, "schema.sql"),
+                new File(mBaseDir, "migrations"));
+        assertTrue(source.hasSchema());
+        assertStreamNotNull(source.getSchema());
+
+        List<Migration> migrations = source.getMigrations();
+        assertThat(migrations).hasSize(2);
+        for (Migration migration : migrations) {
+            assertThat(migration).isInstanceOf(FileMigration.class);
+            assertStreamNotNull(migration);
+            assertThat(((FileMigration) migration).getBuffer().remaining()).isGreaterThan(0);
+        }
+    }
+
+    public void testManageSchemaFileSystemDataSource() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager();
+        migrationManager.addDataSource(new FileSystemDataSource(new File(mBaseDir, "schema.sql"),
+                new File(mBaseDir, "migrations")));
+        assertThat(migrationManager
+                .manageSchema(db, SQLiteMigrationManager.BootstrapAction.APPLY_SCHEMA))
+                .isEqualTo(2);
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1402070002);
+
+        Cursor c = db.rawQuery("SELECT name FROM bananas ORDER BY _ROWID_", null);
+        assertThat(c.getCount()).isEqualTo(2);
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("white");
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("yellow");
+        c.close();
+        db.close();
+    }
+}
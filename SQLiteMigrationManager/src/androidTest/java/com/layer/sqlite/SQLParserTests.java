@@ -1,13 +1,18 @@
 package com.layer.sqlite;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.StrictMode;
 import android.test.AndroidTestCase;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.failBecauseExceptionWasNotThrown;
 
 public class SQLParserTests extends AndroidTestCase {
     @Override
@@ -70,4 +75,97 @@ public class SQLParserTests extends AndroidTestCase {
         assertThat(parsed.get(0)).isEqualTo("statement1;");
         assertThat(parsed.get(1)).isEqualTo("statement2; continued");
     }
+
+    public void testParseBuffer() throws Exception {
+        String statement = "  statement1;\n\n/* comment1 */-- comment2\nstatement2 '\u00e9';\n  \n";
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.put(statement.getBytes("UTF-8"));
+        buffer.flip();
+
+        List<String> parsed = SQLParser.Statements.fromBuffer(buffer);
+        assertThat(parsed).hasSize(2);
+        assertThat(parsed.get(0)).isEqualTo("statement1;");
+        assertThat(parsed.get(1)).isEqualTo("statement2 '\u00e9';");
+    }
+
+    public void testTokenizerResumableHeader() throws Exception {
+        SQLParser.Tokenizer tokenizer = new SQLParser.Tokenizer(ByteBuffer.wrap(
+                "-- Bananas\n\n  -- @resumable\nINSERT INTO t VALUES (1);".getBytes("UTF-8")));
+        assertThat(tokenizer.isResumable()).isTrue();
+        assertThat(tokenizer.next()).endsWith("INSERT INTO t VALUES (1);");
+
+        tokenizer = new SQLParser.Tokenizer(ByteBuffer.wrap(
+                "INSERT INTO t VALUES (1);\n-- @resumable\n".getBytes("UTF-8")));
+        assertThat(tokenizer.isResumable()).isFalse();
+    }
+
+    public void testVerb() throws Exception {
+        assertThat(SQLParser.Verb.of("CREATE TABLE t (a)")).isEqualTo(SQLParser.Verb.CREATE);
+        assertThat(SQLParser.Verb.of("  insert into t values (1)")).isEqualTo(SQLParser.Verb.INSERT);
+        assertThat(SQLParser.Verb.of("Replace INTO t VALUES (1)")).isEqualTo(SQLParser.Verb.REPLACE);
+        assertThat(SQLParser.Verb.of("WITH x AS (SELECT 1) SELECT * FROM x"))
+                .isEqualTo(SQLParser.Verb.WITH);
+        assertThat(SQLParser.Verb.of("vacuum")).isEqualTo(SQLParser.Verb.VACUUM);
+        assertThat(SQLParser.Verb.of("SAVEPOINT a")).isEqualTo(SQLParser.Verb.SAVEPOINT);
+        assertThat(SQLParser.Verb.of("DROPPED TABLE t")).isNull();
+        assertThat(SQLParser.Verb.of("statement1;")).isNull();
+        assertThat(SQLParser.Verb.of("")).isNull();
+
+        assertThat(SQLParser.Verb.SELECT.getMode()).isEqualTo(SQLParser.Verb.Mode.ITERATE);
+        assertThat(SQLParser.Verb.PRAGMA.getMode()).isEqualTo(SQLParser.Verb.Mode.QUERY);
+        assertThat(SQLParser.Verb.REINDEX.getMode()).isEqualTo(SQLParser.Verb.Mode.EXEC);
+
+        assertThat(SQLParser.Verb.BEGIN.isTransactionControl()).isTrue();
+        assertThat(SQLParser.Verb.COMMIT.isTransactionControl()).isTrue();
+        assertThat(SQLParser.Verb.END.isTransactionControl()).isTrue();
+        assertThat(SQLParser.Verb.ROLLBACK.isTransactionControl()).isTrue();
+        assertThat(SQLParser.Verb.SAVEPOINT.isTransactionControl()).isFalse();
+        assertThat(SQLParser.Verb.RELEASE.isTransactionControl()).isFalse();
+    }
+
+    public void testExecuteVerbs() throws Exception {
+        SQLiteDatabase db = Fixtures.getDatabase(getContext());
+        SQLParser.Execute.statements(db, Arrays.asList(
+                "CREATE TABLE t (a INTEGER)",
+                "REPLACE INTO t (a) VALUES (1)",
+                "WITH v(a) AS (VALUES (2)) INSERT INTO t (a) SELECT a FROM v",
+                "SELECT * FROM t",
+                "REINDEX",
+                "SAVEPOINT s",
+                "RELEASE s",
+                "PRAGMA user_version = 7"));
+
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM t", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(2);
+        c.close();
+
+        c = db.rawQuery("PRAGMA user_version", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(7);
+        c.close();
+
+        try {
+            SQLParser.Execute.statement(db, "statement1;");
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).startsWith("Cannot parse statement");
+        }
+        db.close();
+    }
+
+    public void testExecuteRejectsTransactionControl() throws Exception {
+        SQLiteDatabase db = Fixtures.getDatabase(getContext());
+        for (String statement : Arrays.asList("BEGIN", "begin immediate transaction", "COMMIT",
+                "END TRANSACTION", "ROLLBACK", "ROLLBACK TO SAVEPOINT s")) {
+            try {
+                SQLParser.Execute.statement(db, statement);
+                failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).startsWith("Cannot control transactions");
+            }
+        }
+        assertThat(db.inTransaction()).isFalse();
+        db.close();
+    }
 }
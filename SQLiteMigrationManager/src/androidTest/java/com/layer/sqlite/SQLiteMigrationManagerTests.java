@@ -3,22 +3,47 @@ package com.layer.sqlite;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.StrictMode;
 import android.test.AndroidTestCase;
 
+import com.layer.sqlite.database.AndroidDatabase;
+import com.layer.sqlite.database.Database;
 import com.layer.sqlite.datasource.DataSource;
 import com.layer.sqlite.datasource.ResourceDataSource;
+import com.layer.sqlite.migrations.CancellationToken;
 import com.layer.sqlite.migrations.CodeMigration;
+import com.layer.sqlite.migrations.DelimitedMigration;
 import com.layer.sqlite.migrations.Migration;
+import com.layer.sqlite.migrations.PortableCodeMigration;
+import com.layer.sqlite.migrations.RowRewriter;
+import com.layer.sqlite.migrations.StreamMigration;
 import com.layer.sqlite.schema.Schema;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.layer.sqlite.Fixtures.assertStreamNotNull;
 import static com.layer.sqlite.Fixtures.getDatabase;
@@ -619,6 +644,58 @@ public class SQLiteMigrationManagerTests extends AndroidTestCase {
         db.close();
     }
 
+    public void testCurrentVersionCacheSeesOtherConnections() throws Exception {
+        File file = getContext().getDatabasePath("versions-" + UUID.randomUUID() + ".db");
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        SQLiteDatabase other = SQLiteDatabase.openOrCreateDatabase(file, null);
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_First.sql", "2_Second.sql"},
+                        new String[]{"SELECT 1;", "SELECT 2;"}))
+                .createMigrationsTable(db);
+        try {
+            migrationManager.insertVersion(db, 1L);
+            assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1L);
+            assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1L);
+            assertFalse(migrationManager.isDowngrade(db));
+
+            // A version committed by another connection is seen through the cache.
+            migrationManager.insertVersion(other, 3L);
+            assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(3L);
+            assertTrue(migrationManager.isDowngrade(db));
+
+            // So is a version written by this manager on the same connection.
+            migrationManager.insertVersion(db, 4L);
+            assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(4L);
+        } finally {
+            other.close();
+            db.close();
+            file.delete();
+        }
+    }
+
+    public void testCurrentVersionCacheRemembersWriteAheadLogging() throws Exception {
+        File file = getContext().getDatabasePath("versions-" + UUID.randomUUID() + ".db");
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.enableWriteAheadLogging();
+        VersionCache versionCache = new VersionCache();
+        try {
+            long dataVersion = versionCache.probe(db);
+            versionCache.put(db, dataVersion, 1L);
+            assertThat(versionCache.get(db)).isNull();
+
+            // Later checks skip the probe, even after the versions are written.
+            versionCache.invalidate(db);
+            assertThat(versionCache.probe(db)).isEqualTo(VersionCache.UNCACHEABLE);
+            assertThat(versionCache.get(db)).isNull();
+        } finally {
+            db.close();
+            file.delete();
+        }
+    }
+
     public void testUpgradeOpenHelper() throws Exception {
         final SQLiteMigrationManager migrationManager = new SQLiteMigrationManager();
         final String dbName = UUID.randomUUID().toString();
@@ -867,4 +944,1237 @@ public class SQLiteMigrationManagerTests extends AndroidTestCase {
                 .isEqualTo(0);
         db.close();
     }
+
+    //==============================================================================================
+    // Discovery
+    //==============================================================================================
+
+    public void testGetMigrationsDiscoveryExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                    .setDiscoveryExecutor(executor)
+                    .addDataSource(mockBananaDataSourceNoSchemaNoTable())
+                    .addDataSource(mockBananaDataSourceNoSchemaNoTable2())
+                    .addDataSource(mockCodeBananaDataSource());
+
+            List<Migration> migrations = migrationManager.getMigrations();
+            assertThat(migrations).hasSize(8);
+            for (int i = 0; i < migrations.size(); i++) {
+                assertThat(migrations.get(i).getVersion()).isEqualTo(1402070000L + i);
+            }
+
+            // Duplicates resolve to the earliest-added DataSource.
+            assertThat(migrations.get(0)).isInstanceOf(CodeMigration.class);
+            assertThat(migrations.get(1)).isNotInstanceOf(CodeMigration.class);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testGetMigrationsConflict() throws Exception {
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .addDataSource(mockBananaDataSourceNoSchemaNoTable())
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1402070001_CreateTableApples.sql"},
+                        new String[]{"CREATE TABLE apples (name TEXT);"}));
+        try {
+            migrationManager.getMigrations();
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).startsWith("Conflicting migrations for version 1402070001");
+        }
+    }
+
+    public void testAddDataSourceWhileDiscovering() throws Exception {
+        final SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .addDataSource(Fixtures.mockDataSource(null, new String[]{"1_First.sql"},
+                        new String[]{"SELECT 1;"}));
+
+        // Readers keep iterating the snapshot they started with while DataSources are added.
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 2; i <= 200; i++) {
+                    migrationManager.addDataSource(Fixtures.mockDataSource(null,
+                            new String[]{i + "_Next.sql"}, new String[]{"SELECT 1;"}));
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            assertThat(migrationManager.getMigrations()).isNotEmpty();
+        }
+        writer.join();
+        assertThat(migrationManager.getMigrations()).hasSize(200);
+    }
+
+    //==============================================================================================
+    // Delimited Migrations
+    //==============================================================================================
+
+    public void testManageDelimitedMigration() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        final DataSource streams = Fixtures.mockDataSource(null,
+                new String[]{"1402070000_CreateTableCountries.sql", "1402070001_countries.csv",
+                        "1402070002_countries.tsv"},
+                new String[]{"CREATE TABLE countries (code TEXT, name TEXT, population INTEGER);",
+                        "code,name,population\r\n"
+                                + "US,\"United States\",318900000\r\n"
+                                + "FR,\"France, \"\"Metropolitan\"\"\",\r\n",
+                        "code\tname\tpopulation\n"
+                                + "DE\tGermany\t80620000\n"});
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager();
+        migrationManager.addDataSource(new DataSource() {
+            @Override
+            public boolean hasSchema() {
+                return false;
+            }
+
+            @Override
+            public Schema getSchema() {
+                return null;
+            }
+
+            @Override
+            public List<Migration> getMigrations() throws URISyntaxException, IOException {
+                List<Migration> migrations = new LinkedList<Migration>();
+                for (Migration migration : streams.getMigrations()) {
+                    migrations.add(DelimitedMigration.wrapIfDelimited((StreamMigration) migration));
+                }
+                return migrations;
+            }
+        });
+
+        List<Migration> migrations = migrationManager.getMigrations();
+        assertThat(migrations.get(1)).isInstanceOf(DelimitedMigration.class);
+        assertThat(((DelimitedMigration) migrations.get(1)).getTable()).isEqualTo("countries");
+
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(3);
+
+        Cursor c = db.rawQuery("SELECT code, name, population FROM countries ORDER BY _ROWID_", null);
+        assertThat(c.getCount()).isEqualTo(3);
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("US");
+        assertThat(c.getString(1)).isEqualTo("United States");
+        assertThat(c.getLong(2)).isEqualTo(318900000L);
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("FR");
+        assertThat(c.getString(1)).isEqualTo("France, \"Metropolitan\"");
+        assertTrue(c.isNull(2));
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("DE");
+        assertThat(c.getLong(2)).isEqualTo(80620000L);
+        c.close();
+        db.close();
+    }
+
+    //==============================================================================================
+    // Pipelining
+    //==============================================================================================
+
+    public void testManageSchemaPipelined() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                    .setPipeline(executor, 1)
+                    .addDataSource(mockBananaDataSource())
+                    .addDataSource(mockCodeBananaDataSource());
+            assertThat(migrationManager
+                    .manageSchema(db, BootstrapAction.APPLY_SCHEMA))
+                    .isEqualTo(6);
+            assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1402070006L);
+
+            Cursor c = db.rawQuery("SELECT name, ripeness FROM bananas ORDER BY _ROWID_", null);
+            assertThat(c.getCount()).isEqualTo(3);
+            c.close();
+        } finally {
+            executor.shutdown();
+            db.close();
+        }
+    }
+
+    public void testManageSchemaPipelinedException() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("CREATE TABLE bananas (name TEXT);");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                    .setPipeline(executor, 1)
+                    .addDataSource(mockBananaDataSourceSchemaNoTable());
+            migrationManager.manageSchema(db, BootstrapAction.APPLY_SCHEMA);
+            failBecauseExceptionWasNotThrown(SQLException.class);
+        } catch (SQLException e) {
+            assertThat(e.getMessage()).contains("bananas already exists");
+            assertFalse(db.inTransaction());
+        } finally {
+            executor.shutdown();
+            db.close();
+        }
+    }
+
+    public void testManageSchemaPipelinedOnCallingThread() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setPipeline(direct, 1)
+                .addDataSource(mockBananaDataSource())
+                .addDataSource(mockCodeBananaDataSource());
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.APPLY_SCHEMA))
+                .isEqualTo(6);
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1402070006L);
+        db.close();
+    }
+
+    public void testManageSchemaPipelinedOnBusyExecutor() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            // The executor's only thread is busy, so the calling thread tokenizes.
+            SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                    .setPipeline(executor, 1)
+                    .addDataSource(mockBananaDataSource())
+                    .addDataSource(mockCodeBananaDataSource());
+            assertThat(migrationManager
+                    .manageSchema(db, BootstrapAction.APPLY_SCHEMA))
+                    .isEqualTo(6);
+            assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1402070006L);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            db.close();
+        }
+    }
+
+    //==============================================================================================
+    // Index Deferral
+    //==============================================================================================
+
+    public void testManageSchemaDeferIndexes() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setDeferIndexes(true)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateTableBananas.sql", "2_InsertBananas.sql",
+                                "3_DropBananasName.sql"},
+                        new String[]{"CREATE TABLE bananas (name TEXT, ripeness INTEGER);\n\n"
+                                + "CREATE INDEX bananas_name ON bananas (name);\n\n"
+                                + "CREATE UNIQUE INDEX bananas_ripeness ON bananas (ripeness);",
+                                "INSERT INTO bananas VALUES ('white', 1);\n\n"
+                                        + "INSERT OR IGNORE INTO bananas VALUES ('yellow', 1);\n\n"
+                                        + "SELECT * FROM bananas INDEXED BY bananas_name;",
+                                "DROP INDEX bananas_name;\n\n"
+                                        + "CREATE INDEX bananas_name_ripeness ON bananas (name, ripeness);"}));
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(3);
+
+        // The unique index was not deferred, so the second insert was ignored.
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM bananas", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(1);
+        c.close();
+
+        // Deferred indexes were flushed before they were used and at the end of the batch.
+        c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' ORDER BY name", null);
+        assertThat(c.getCount()).isEqualTo(2);
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("bananas_name_ripeness");
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("bananas_ripeness");
+        c.close();
+        db.close();
+    }
+
+    public void testManageSchemaDeferredIndexesFlushedBeforeTableIsRead() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setDeferIndexes(true)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateTableBananas.sql", "2_CountIndexes.sql"},
+                        new String[]{"CREATE TABLE bananas (name TEXT, indexes INTEGER);\n\n"
+                                + "CREATE INDEX bananas_name ON bananas (name);\n\n"
+                                + "INSERT INTO bananas VALUES ('yellow', 0);",
+                                "UPDATE bananas SET indexes = (SELECT COUNT(*) FROM sqlite_master "
+                                        + "WHERE type = 'index' AND tbl_name = 'bananas');"}));
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(2);
+
+        // The insert kept the index deferred, but the update of its table did not.
+        Cursor c = db.rawQuery("SELECT indexes FROM bananas", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(1);
+        c.close();
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Foreign Keys
+    //==============================================================================================
+
+    public void testManageSchemaDeferForeignKeys() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("PRAGMA foreign_keys = ON");
+        String[] paths = new String[]{"1_CreateTables.sql", "2_InsertChildFirst.sql",
+                "3_InsertOrphan.sql"};
+        String[] sql = new String[]{"CREATE TABLE trees (id INTEGER PRIMARY KEY);\n\n"
+                + "CREATE TABLE bananas (name TEXT, tree_id INTEGER REFERENCES trees (id));",
+                "INSERT INTO bananas VALUES ('yellow', 1);\n\n"
+                        + "INSERT INTO trees VALUES (1);",
+                "INSERT INTO bananas VALUES ('green', 2);"};
+
+        // Rows referencing a parent inserted later in the batch are accepted.
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setForeignKeyMode(SQLiteMigrationManager.ForeignKeyMode.DEFER)
+                .addDataSource(Fixtures.mockDataSource(null, Arrays.copyOf(paths, 2),
+                        Arrays.copyOf(sql, 2)));
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(2);
+
+        // A violation remaining at the end of the batch rolls it back.
+        migrationManager = new SQLiteMigrationManager()
+                .setForeignKeyMode(SQLiteMigrationManager.ForeignKeyMode.DISABLE)
+                .addDataSource(Fixtures.mockDataSource(null, paths, sql));
+        try {
+            migrationManager.manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE);
+            failBecauseExceptionWasNotThrown(ForeignKeyViolationException.class);
+        } catch (ForeignKeyViolationException e) {
+            assertThat(e.getViolationCount()).isEqualTo(1);
+            assertThat(e.getViolations().get(0).getTable()).isEqualTo("bananas");
+            assertThat(e.getViolations().get(0).getParent()).isEqualTo("trees");
+        }
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(2);
+
+        // Enforcement is restored after the batch.
+        Cursor c = db.rawQuery("PRAGMA foreign_keys", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(1);
+        c.close();
+        db.close();
+    }
+
+
+    public void testManageSchemaChecksForeignKeysAtChunkCheckpoints() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("PRAGMA foreign_keys = ON");
+        db.execSQL("CREATE TABLE trees (id INTEGER PRIMARY KEY)");
+        db.execSQL("CREATE TABLE bananas (tree_id INTEGER REFERENCES trees (id))");
+        db.execSQL("INSERT INTO trees VALUES (1)");
+        for (int i = 0; i < 10; i++) {
+            db.execSQL("INSERT INTO bananas VALUES (1)");
+        }
+
+        // The first slice's checkpoint finds the orphans and commits nothing.
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setForeignKeyMode(SQLiteMigrationManager.ForeignKeyMode.DISABLE)
+                .createMigrationsTable(db)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_OrphanBananas.sql"},
+                        new String[]{"-- @chunk 3\nUPDATE bananas SET tree_id = 99;"}));
+        try {
+            migrationManager.manageSchema(db, BootstrapAction.NONE);
+            failBecauseExceptionWasNotThrown(ForeignKeyViolationException.class);
+        } catch (ForeignKeyViolationException e) {
+            assertThat(e.getViolationCount()).isEqualTo(3);
+        }
+        assertFalse(db.inTransaction());
+        assertThat(migrationManager.getCurrentVersion(db))
+                .isEqualTo(SQLiteMigrationManager.NO_VERSIONS);
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM bananas WHERE tree_id = 1", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(10);
+        c.close();
+        c = db.rawQuery("SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE name = 'schema_migration_progress'", null);
+        c.moveToFirst();
+        if (c.getLong(0) > 0) {
+            c.close();
+            c = db.rawQuery("SELECT COUNT(*) FROM schema_migration_progress", null);
+            c.moveToFirst();
+            assertThat(c.getLong(0)).isEqualTo(0);
+        }
+        c.close();
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Statistics Refresh
+    //==============================================================================================
+
+    public void testManageSchemaRefreshesTouchedTables() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("CREATE TABLE trees (name TEXT)");
+        db.execSQL("CREATE INDEX trees_name ON trees (name)");
+        db.execSQL("INSERT INTO trees VALUES ('palm')");
+
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setStatisticsRefresh(SQLiteMigrationManager.StatisticsRefresh.ANALYZE, null)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateTableBananas.sql", "2_InsertBananas.sql"},
+                        new String[]{"CREATE TABLE bananas (name TEXT);\n\n"
+                                + "CREATE INDEX bananas_name ON bananas (name);",
+                                "INSERT INTO bananas VALUES ('yellow');\n\n"
+                                        + "SELECT * FROM trees;"}));
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(2);
+
+        // Only the table written by the migrations was analyzed.
+        Cursor c = db.rawQuery("SELECT DISTINCT tbl FROM sqlite_stat1", null);
+        assertThat(c.getCount()).isEqualTo(1);
+        c.moveToFirst();
+        assertThat(c.getString(0)).isEqualTo("bananas");
+        c.close();
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Incremental Vacuum
+    //==============================================================================================
+
+    public void testManageSchemaIncrementalVacuum() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final CountDownLatch complete = new CountDownLatch(1);
+        final AtomicLong bytesReclaimed = new AtomicLong();
+        IncrementalVacuum incrementalVacuum = new IncrementalVacuum(scheduler)
+                .setThreshold(16)
+                .setSlice(32, 0, TimeUnit.MILLISECONDS)
+                .setListener(new IncrementalVacuum.Listener() {
+                    @Override
+                    public void onVacuumProgress(SQLiteDatabase db, long bytes, long pagesRemaining) {
+                        bytesReclaimed.set(bytes);
+                        if (pagesRemaining == 0) complete.countDown();
+                    }
+
+                    @Override
+                    public void onVacuumUnavailable(SQLiteDatabase db, long freePages) {
+                    }
+                });
+
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setIncrementalVacuum(incrementalVacuum)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateTableBlobs.sql", "2_DropTableBlobs.sql"},
+                        new String[]{"CREATE TABLE blobs (b BLOB);\n\n"
+                                + "INSERT INTO blobs VALUES (zeroblob(500000));\n\n"
+                                + "INSERT INTO blobs VALUES (zeroblob(500000));",
+                                "DROP TABLE blobs;"}));
+        try {
+            assertThat(migrationManager
+                    .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                    .isEqualTo(2);
+
+            // The new database was converted, and the dropped table's pages were reclaimed.
+            assertThat(complete.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(bytesReclaimed.get()).isGreaterThan(500000);
+            Cursor c = db.rawQuery("PRAGMA auto_vacuum", null);
+            c.moveToFirst();
+            assertThat(c.getLong(0)).isEqualTo(2);
+            c.close();
+        } finally {
+            scheduler.shutdown();
+        }
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Shadow Migration
+    //==============================================================================================
+
+    public void testShadowMigration() throws Exception {
+        File file = getContext().getDatabasePath("shadow-" + UUID.randomUUID() + ".db");
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL("CREATE TABLE bananas (name TEXT)");
+        for (int i = 0; i < 25; i++) {
+            db.execSQL("INSERT INTO bananas VALUES (?)", new Object[]{"banana " + i});
+        }
+        db.setVersion(7);
+        long pageSize = db.getPageSize();
+
+        final AtomicReference<File> swapped = new AtomicReference<File>();
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_AddRipeness.sql"},
+                        new String[]{"ALTER TABLE bananas ADD COLUMN ripeness INTEGER;\n\n"
+                                + "UPDATE bananas SET ripeness = 1;"}));
+        try {
+            assertThat(new ShadowMigration(migrationManager)
+                    .setChunkRows(10)
+                    .setListener(new ShadowMigration.Listener() {
+                        @Override
+                        public void onSwapped(File databaseFile) {
+                            swapped.set(databaseFile);
+                        }
+                    })
+                    .migrate(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                    .isEqualTo(1);
+
+            // The live database was closed and replaced by the migrated shadow.
+            assertThat(db.isOpen()).isFalse();
+            assertThat(swapped.get()).isEqualTo(file);
+            assertThat(ShadowMigration.getShadowFile(file).exists()).isFalse();
+
+            // The file header settings survive the swap.
+            db = SQLiteDatabase.openOrCreateDatabase(file, null);
+            assertThat(db.getVersion()).isEqualTo(7);
+            assertThat(db.getPageSize()).isEqualTo(pageSize);
+            assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1);
+            Cursor c = db.rawQuery("SELECT COUNT(*) FROM bananas WHERE ripeness = 1", null);
+            c.moveToFirst();
+            assertThat(c.getLong(0)).isEqualTo(25);
+            c.close();
+            db.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    //==============================================================================================
+    // Time Budget
+    //==============================================================================================
+
+    public void testManageSchemaBudget() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateTableBananas.sql", "2_InsertYellow.sql",
+                                "3_InsertGreen.sql"},
+                        new String[]{"CREATE TABLE bananas (name TEXT);",
+                                "INSERT INTO bananas VALUES ('yellow');",
+                                "INSERT INTO bananas VALUES ('green');"}));
+
+        // An exhausted budget still applies one migration, and commits it.
+        MigrationResult result = migrationManager
+                .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE, 0);
+        assertThat(result.getApplied()).isEqualTo(1);
+        assertThat(result.getRemaining()).isEqualTo(2);
+        assertThat(result.isComplete()).isFalse();
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1);
+
+        // Resuming without a budget applies the rest.
+        result = result.resume(db, SQLiteMigrationManager.NO_BUDGET);
+        assertThat(result.getApplied()).isEqualTo(2);
+        assertThat(result.isComplete()).isTrue();
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(3);
+        db.close();
+    }
+
+    public void testManageSchemaBudgetStopsChunkedMigrationAtCheckpoint() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("CREATE TABLE bananas (name TEXT, ripe INTEGER)");
+        for (int i = 1; i <= 10; i++) {
+            db.execSQL("INSERT INTO bananas (name) VALUES (?)", new Object[]{"banana " + i});
+        }
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .createMigrationsTable(db)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_RipenBananas.sql"},
+                        new String[]{"-- @chunk 4\nUPDATE bananas SET ripe = 1;"}));
+
+        // An exhausted budget stops after the first slice, which stays committed.
+        MigrationResult result = migrationManager
+                .manageSchema(db, BootstrapAction.NONE, 0);
+        assertThat(result.getApplied()).isEqualTo(0);
+        assertThat(result.getRemaining()).isEqualTo(1);
+        assertThat(result.isComplete()).isFalse();
+        assertThat(result.isCancelled()).isFalse();
+        assertFalse(db.inTransaction());
+        assertThat(migrationManager.getCurrentVersion(db))
+                .isEqualTo(SQLiteMigrationManager.NO_VERSIONS);
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM bananas WHERE ripe = 1", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(4);
+        c.close();
+
+        // Resuming without a budget finishes the migration from its checkpoint.
+        result = result.resume(db, SQLiteMigrationManager.NO_BUDGET);
+        assertThat(result.getApplied()).isEqualTo(1);
+        assertThat(result.isComplete()).isTrue();
+        c = db.rawQuery("SELECT COUNT(*) FROM bananas WHERE ripe = 1", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(10);
+        c.close();
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Priorities
+    //==============================================================================================
+
+    public void testScheduleSchema() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateTableBananas.sql", "2_InsertYellow.sql",
+                                "3_InsertGreen.sql"},
+                        new String[]{"CREATE TABLE bananas (name TEXT);",
+                                "-- Cache warming\n-- @priority high\n\n"
+                                        + "INSERT INTO bananas VALUES ('yellow');",
+                                "-- @priority LOW\nINSERT INTO bananas VALUES ('green');"}));
+        List<Migration> migrations = migrationManager.getMigrations();
+        assertThat(migrations.get(0).getPriority()).isEqualTo(Migration.Priority.CRITICAL);
+        assertThat(migrations.get(1).getPriority()).isEqualTo(Migration.Priority.HIGH);
+        assertThat(migrations.get(2).getPriority()).isEqualTo(Migration.Priority.LOW);
+
+        // Only the critical migration is applied before scheduleSchema() returns.
+        final List<Runnable> queued = new LinkedList<Runnable>();
+        Future<Integer> background = migrationManager.scheduleSchema(db,
+                BootstrapAction.CREATE_MIGRATIONS_TABLE, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        queued.add(command);
+                    }
+                });
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1);
+
+        // The rest are applied when the queued task runs.
+        assertThat(queued).hasSize(1);
+        queued.get(0).run();
+        assertThat(background.get()).isEqualTo(2);
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(3);
+        db.close();
+    }
+
+    public void testScheduleSchemaOnDatabaseAdapter() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        Database database = new AndroidDatabase(db);
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateTableBananas.sql", "2_InsertGreen.sql"},
+                        new String[]{"CREATE TABLE bananas (name TEXT);",
+                                "-- @priority low\nINSERT INTO bananas VALUES ('green');"}));
+
+        final List<Runnable> queued = new LinkedList<Runnable>();
+        Future<Integer> background = migrationManager.scheduleSchema(database,
+                BootstrapAction.CREATE_MIGRATIONS_TABLE, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        queued.add(command);
+                    }
+                });
+        assertThat(migrationManager.getCurrentVersion(database)).isEqualTo(1);
+        queued.get(0).run();
+        assertThat(background.get()).isEqualTo(1);
+        assertThat(migrationManager.getCurrentVersion(database)).isEqualTo(2);
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Row Rewriting
+    //==============================================================================================
+
+    public void testRowRewriter() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("CREATE TABLE bananas (name TEXT)");
+        for (int i = 1; i <= 200; i++) {
+            db.execSQL("INSERT INTO bananas VALUES (?)", new Object[]{"banana " + i});
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        db.beginTransaction();
+        try {
+            // Rewrite odd rows only, in small batches so several are in flight, selecting on the
+            // rewritten column.
+            int updated = new RowRewriter<Object[]>("bananas", "name",
+                    "UPDATE bananas SET name = ? WHERE rowid = ?",
+                    new RowRewriter.Transform<Object[]>() {
+                        @Override
+                        public Object[] read(Database.Row row) {
+                            return new Object[]{row.getLong(0), row.getString(1)};
+                        }
+
+                        @Override
+                        public Object[] transform(Object[] row) {
+                            if ((Long) row[0] % 2 == 0) return null;
+                            return new Object[]{row[1].toString().toUpperCase(), row[0]};
+                        }
+                    })
+                    .setWhere("name = lower(name)")
+                    .setBatchSize(7)
+                    .setMaxInFlight(3)
+                    .execute(db, executor);
+            assertThat(updated).isEqualTo(100);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            executor.shutdown();
+        }
+
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM bananas WHERE name = upper(name)", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(100);
+        c.close();
+        c = db.rawQuery("SELECT name FROM bananas WHERE rowid = 199", null);
+        c.moveToFirst();
+        assertThat(c.getString(0)).isEqualTo("BANANA 199");
+        c.close();
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Resumable Migrations
+    //==============================================================================================
+
+    public void testManageSchemaResumesChunkedStatement() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("CREATE TABLE bananas (name TEXT, ripe INTEGER)");
+        for (int i = 1; i <= 25; i++) {
+            db.execSQL("INSERT INTO bananas (name) VALUES (?)", new Object[]{"banana " + i});
+        }
+
+        // Simulate an interruption after the first statement and the slices through rowid 10.
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .createMigrationsTable(db)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_RipenBananas.sql"},
+                        new String[]{"INSERT INTO bananas (name) VALUES ('extra');\n\n"
+                                + "-- Ripen in slices\n-- @chunk 4\n"
+                                + "UPDATE bananas SET ripe = 1 WHERE name LIKE 'banana%';"}));
+        db.execSQL("CREATE TABLE schema_migration_progress "
+                + "(version INTEGER PRIMARY KEY, statement INTEGER NOT NULL, rowid INTEGER)");
+        db.execSQL("INSERT INTO schema_migration_progress VALUES (1, 1, 10)");
+
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.NONE))
+                .isEqualTo(1);
+
+        // The completed statement was skipped, and the update resumed after rowid 10.
+        Cursor c = db.rawQuery("SELECT COUNT(*), MIN(rowid) FROM bananas "
+                + "WHERE ripe = 1 OR name = 'extra'", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(15);
+        assertThat(c.getLong(1)).isEqualTo(11);
+        c.close();
+        c = db.rawQuery("SELECT COUNT(*) FROM schema_migration_progress", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(0);
+        c.close();
+        db.close();
+    }
+
+
+    public void testManageSchemaResumesResumableMigration() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("CREATE TABLE bananas (color TEXT)");
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .createMigrationsTable(db)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_AtomicBananas.sql", "2_ResumableBananas.sql"},
+                        new String[]{"INSERT INTO bananas VALUES ('yellow');",
+                                "-- Bananas\n-- @resumable\n"
+                                        + "INSERT INTO bananas VALUES ('green');\n"
+                                        + "INSERT INTO bananas VALUES ('brown');\n"
+                                        + "INSERT INTO bananas VALUES ('black');"}));
+        // Simulate an interruption after the first two statements of the resumable migration.
+        db.execSQL("CREATE TABLE schema_migration_progress "
+                + "(version INTEGER PRIMARY KEY, statement INTEGER NOT NULL, rowid INTEGER)");
+        db.execSQL("INSERT INTO schema_migration_progress VALUES (2, 2, NULL)");
+
+        assertThat(migrationManager
+                .manageSchema(db, BootstrapAction.NONE))
+                .isEqualTo(2);
+
+        Cursor c = db.rawQuery("SELECT color FROM bananas ORDER BY rowid", null);
+        assertThat(c.getCount()).isEqualTo(2);
+        c.moveToFirst();
+        assertThat(c.getString(0)).isEqualTo("yellow");
+        c.moveToNext();
+        assertThat(c.getString(0)).isEqualTo("black");
+        c.close();
+        c = db.rawQuery("SELECT COUNT(*) FROM schema_migration_progress", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(0);
+        c.close();
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Cancellation
+    //==============================================================================================
+
+    public void testManageSchemaCancellation() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        db.execSQL("CREATE TABLE bananas (color TEXT)");
+        final CancellationToken token = new CancellationToken();
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .createMigrationsTable(db)
+                .addDataSource(new DataSource() {
+                    @Override
+                    public boolean hasSchema() {
+                        return false;
+                    }
+
+                    @Override
+                    public Schema getSchema() {
+                        return null;
+                    }
+
+                    @Override
+                    public List<Migration> getMigrations() {
+                        List<Migration> migrations = new LinkedList<Migration>();
+                        migrations.add(Fixtures.codeMigration("1_YellowBananas.sql",
+                                "INSERT INTO bananas VALUES ('yellow');"));
+                        migrations.add(new CodeMigration("2_GreenBananas.sql") {
+                            @Override
+                            public void execute(SQLiteDatabase db) throws IOException {
+                                execute(db, null);
+                            }
+
+                            @Override
+                            public void execute(SQLiteDatabase db, CancellationToken t) {
+                                db.execSQL("INSERT INTO bananas VALUES ('green')");
+                                token.cancel();
+                                CancellationToken.throwIfCancelled(t);
+                            }
+                        });
+                        migrations.add(Fixtures.codeMigration("3_BrownBananas.sql",
+                                "INSERT INTO bananas VALUES ('brown');"));
+                        return migrations;
+                    }
+                });
+
+        // The first migration is kept, and the second is rolled back.
+        MigrationResult result = migrationManager.manageSchema(db, BootstrapAction.NONE,
+                SQLiteMigrationManager.NO_BUDGET, token);
+        assertThat(result.isCancelled()).isTrue();
+        assertThat(result.getApplied()).isEqualTo(1);
+        assertThat(result.getRemaining()).isEqualTo(2);
+        assertThat(db.inTransaction()).isFalse();
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1);
+        Cursor c = db.rawQuery("SELECT color FROM bananas", null);
+        assertThat(c.getCount()).isEqualTo(1);
+        c.close();
+
+        // A cancelled token cancels before the next migration starts.
+        result = result.resume(db, SQLiteMigrationManager.NO_BUDGET, token);
+        assertThat(result.isCancelled()).isTrue();
+        assertThat(result.getApplied()).isEqualTo(0);
+
+        result = result.resume(db, SQLiteMigrationManager.NO_BUDGET);
+        assertThat(result.isCancelled()).isFalse();
+        assertThat(result.isComplete()).isTrue();
+        assertThat(result.getApplied()).isEqualTo(2);
+        c = db.rawQuery("SELECT color FROM bananas ORDER BY rowid", null);
+        assertThat(c.getCount()).isEqualTo(3);
+        c.close();
+        db.close();
+    }
+
+
+    //==============================================================================================
+    // Lock Contention
+    //==============================================================================================
+
+    public void testManageSchemaRetriesLockedDatabase() throws Exception {
+        File file = getContext().getDatabasePath("contention-" + UUID.randomUUID() + ".db");
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL("CREATE TABLE bananas (color TEXT)");
+        final SQLiteDatabase other = SQLiteDatabase.openOrCreateDatabase(file, null);
+
+        // Another connection holds the write lock for a while.
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other.beginTransaction();
+                try {
+                    other.execSQL("INSERT INTO bananas VALUES ('green')");
+                    locked.countDown();
+                    Thread.sleep(300);
+                    other.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    other.endTransaction();
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+
+        ContentionPolicy contentionPolicy = new ContentionPolicy()
+                .setBusyTimeout(0, TimeUnit.MILLISECONDS)
+                .setMaxRetries(20)
+                .setBackoff(20, 200, TimeUnit.MILLISECONDS);
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setContentionPolicy(contentionPolicy)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_YellowBananas.sql"},
+                        new String[]{"INSERT INTO bananas VALUES ('yellow');"}));
+        try {
+            assertThat(migrationManager
+                    .manageSchema(db, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                    .isEqualTo(1);
+            holder.join();
+
+            assertThat(contentionPolicy.getLockedCount()).isGreaterThan(0);
+            assertThat(contentionPolicy.getRetryCount()).isEqualTo(contentionPolicy.getLockedCount());
+            assertThat(contentionPolicy.getLockWaitMillis()).isGreaterThan(0);
+            Cursor c = db.rawQuery("SELECT COUNT(*) FROM bananas", null);
+            c.moveToFirst();
+            assertThat(c.getLong(0)).isEqualTo(2);
+            c.close();
+        } finally {
+            other.close();
+            db.close();
+            file.delete();
+        }
+    }
+
+
+    public void testManageSchemaCountsMigrationsCommittedBeforeRetry() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        final AtomicInteger attempts = new AtomicInteger();
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setContentionPolicy(new ContentionPolicy()
+                        .setMaxRetries(3)
+                        .setBackoff(1, 1, TimeUnit.MILLISECONDS))
+                .addDataSource(new DataSource() {
+                    @Override
+                    public boolean hasSchema() {
+                        return false;
+                    }
+
+                    @Override
+                    public Schema getSchema() {
+                        return null;
+                    }
+
+                    @Override
+                    public List<Migration> getMigrations() {
+                        List<Migration> migrations = new LinkedList<Migration>();
+                        migrations.add(new StreamMigration("1_CreateKiwis.sql") {
+                            @Override
+                            public InputStream getStream() {
+                                return new ByteArrayInputStream(
+                                        "CREATE TABLE kiwis (name TEXT);".getBytes());
+                            }
+                        });
+                        migrations.add(new CodeMigration("2_InsertKiwi.sql") {
+                            @Override
+                            public void execute(SQLiteDatabase db) {
+                                db.execSQL("INSERT INTO kiwis VALUES ('green')");
+                                if (attempts.incrementAndGet() == 1) {
+                                    throw new SQLiteDatabaseLockedException("database is locked");
+                                }
+                            }
+                        });
+                        return migrations;
+                    }
+                });
+
+        // A token commits each migration, so the first attempt keeps migration 1.
+        MigrationResult result = migrationManager.manageSchema(db,
+                BootstrapAction.CREATE_MIGRATIONS_TABLE, SQLiteMigrationManager.NO_BUDGET,
+                new CancellationToken());
+        assertThat(attempts.get()).isEqualTo(2);
+        assertThat(result.getApplied()).isEqualTo(2);
+        assertThat(result.isComplete()).isTrue();
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(2L);
+        db.close();
+    }
+
+
+    public void testMigrationLockSerializesManageSchema() throws Exception {
+        final File file = getContext().getDatabasePath("locked-" + UUID.randomUUID() + ".db");
+        file.getParentFile().mkdirs();
+        final SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setMigrationLock(true)
+                .addDataSource(Fixtures.mockDataSource(null,
+                        new String[]{"1_CreateBananas.sql", "2_YellowBananas.sql"},
+                        new String[]{"CREATE TABLE bananas (color TEXT);",
+                                "INSERT INTO bananas VALUES ('yellow');"}));
+
+        // Each caller migrates through its own connection; only one finds pending migrations.
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<Integer>> results = new LinkedList<Future<Integer>>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+                    try {
+                        return migrationManager.manageSchema(db,
+                                BootstrapAction.CREATE_MIGRATIONS_TABLE);
+                    } finally {
+                        db.close();
+                    }
+                }
+            }));
+        }
+        int applied = 0;
+        for (Future<Integer> result : results) {
+            applied += result.get();
+        }
+        executor.shutdown();
+        assertThat(applied).isEqualTo(2);
+        assertThat(new File(file.getPath() + MigrationLock.SUFFIX).exists()).isTrue();
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM bananas", null);
+        c.moveToFirst();
+        assertThat(c.getLong(0)).isEqualTo(1);
+        c.close();
+        db.close();
+        new File(file.getPath() + MigrationLock.SUFFIX).delete();
+        file.delete();
+    }
+
+
+    //==============================================================================================
+    // Parsed Programs
+    //==============================================================================================
+
+    public void testManageSchemaProgramCacheAndParameters() throws Exception {
+        final AtomicInteger opens = new AtomicInteger();
+        final List<Migration> migrations = new LinkedList<Migration>();
+        migrations.add(new StreamMigration("1_CreateAccountTable.sql") {
+            @Override
+            public InputStream getStream() {
+                opens.incrementAndGet();
+                return new ByteArrayInputStream(("CREATE TABLE ${account} (name TEXT);\n"
+                        + "INSERT INTO ${account} VALUES ('banana');").getBytes());
+            }
+        });
+        final Map<SQLiteDatabase, String> accounts = new HashMap<SQLiteDatabase, String>();
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setProgramCache(64 * 1024)
+                .setParameterResolver(new SQLParser.ParameterResolver() {
+                    @Override
+                    public String resolve(Database db, String name) {
+                        return name.equals("account")
+                                ? accounts.get(((AndroidDatabase) db).getSQLiteDatabase()) : null;
+                    }
+                })
+                .addDataSource(new DataSource() {
+                    @Override
+                    public boolean hasSchema() {
+                        return false;
+                    }
+
+                    @Override
+                    public Schema getSchema() {
+                        return null;
+                    }
+
+                    @Override
+                    public List<Migration> getMigrations() {
+                        return migrations;
+                    }
+                });
+
+        SQLiteDatabase alice = getDatabase(getContext());
+        accounts.put(alice, "\"alice_bananas\"");
+        assertThat(migrationManager.manageSchema(alice, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(1);
+        int opensAfterFirst = opens.get();
+
+        // The second database runs the cached program with its own parameters.
+        SQLiteDatabase bob = getDatabase(getContext());
+        accounts.put(bob, "\"bob_bananas\"");
+        assertThat(migrationManager.manageSchema(bob, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(1);
+        assertThat(opens.get()).isEqualTo(opensAfterFirst);
+
+        Cursor c = alice.rawQuery("SELECT name FROM alice_bananas", null);
+        assertThat(c.getCount()).isEqualTo(1);
+        c.close();
+        c = bob.rawQuery("SELECT name FROM bob_bananas", null);
+        assertThat(c.getCount()).isEqualTo(1);
+        c.close();
+        alice.close();
+        bob.close();
+    }
+
+    public void testManageSchemaStreamsMigrationsLargerThanProgramCache() throws Exception {
+        final AtomicInteger opens = new AtomicInteger();
+        final List<Migration> migrations = new LinkedList<Migration>();
+        migrations.add(new StreamMigration("1_CreateAccountTable.sql") {
+            @Override
+            public InputStream getStream() {
+                opens.incrementAndGet();
+                return new ByteArrayInputStream(("CREATE TABLE ${account} (name TEXT);\n"
+                        + "INSERT INTO ${account} VALUES ('banana');").getBytes());
+            }
+        });
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setProgramCache(16)
+                .setParameterResolver(new SQLParser.ParameterResolver() {
+                    @Override
+                    public String resolve(Database db, String name) {
+                        return name.equals("account") ? "\"bananas\"" : null;
+                    }
+                })
+                .addDataSource(new DataSource() {
+                    @Override
+                    public boolean hasSchema() {
+                        return false;
+                    }
+
+                    @Override
+                    public Schema getSchema() {
+                        return null;
+                    }
+
+                    @Override
+                    public List<Migration> getMigrations() {
+                        return migrations;
+                    }
+                });
+
+        // The oversized migration is streamed with its parameters, and each database reads it.
+        SQLiteDatabase alice = getDatabase(getContext());
+        assertThat(migrationManager.manageSchema(alice, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(1);
+        int opensAfterFirst = opens.get();
+        SQLiteDatabase bob = getDatabase(getContext());
+        assertThat(migrationManager.manageSchema(bob, BootstrapAction.CREATE_MIGRATIONS_TABLE))
+                .isEqualTo(1);
+        assertThat(opens.get()).isEqualTo(opensAfterFirst + 1);
+
+        Cursor c = bob.rawQuery("SELECT name FROM bananas", null);
+        assertThat(c.getCount()).isEqualTo(1);
+        c.close();
+        alice.close();
+        bob.close();
+    }
+
+    //==============================================================================================
+    // Database Adapters
+    //==============================================================================================
+
+    public void testManageSchemaOnDatabaseAdapter() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        Database database = new AndroidDatabase(db);
+        SQLiteMigrationManager migrationManager = getMigrationManagerMockDataSource();
+        assertThat(migrationManager.getPendingMigrations(database)).hasSize(7);
+        assertThat(migrationManager.manageSchema(database, BootstrapAction.APPLY_SCHEMA))
+                .isEqualTo(6);
+        assertThat(migrationManager.getPendingMigrations(database)).isEmpty();
+        assertThat(migrationManager.getAppliedVersions(database))
+                .isEqualTo(migrationManager.getAppliedVersions(db));
+        assertThat(migrationManager.getCurrentVersion(database)).isEqualTo(1402070006L);
+
+        // Statements and data loads run through the adapter, within savepoints.
+        database.beginTransaction();
+        try {
+            SQLParser.execute(database, new StreamMigration("1402070007_CreateTableFruit.sql") {
+                @Override
+                public InputStream getStream() {
+                    return new ByteArrayInputStream("CREATE TABLE fruit (name TEXT);".getBytes());
+                }
+            });
+            database.savepoint("load");
+            SQLParser.execute(database, new DelimitedMigration(
+                    new StreamMigration("1402070008_fruit.csv") {
+                        @Override
+                        public InputStream getStream() {
+                            return new ByteArrayInputStream("name\nbanana\nkiwi\n".getBytes());
+                        }
+                    }));
+            assertThat(database.queryForLong("SELECT COUNT(*) FROM fruit", null)).isEqualTo(2L);
+            database.rollbackToSavepoint("load");
+            database.releaseSavepoint("load");
+            assertThat(database.inTransaction()).isTrue();
+            assertThat(database.queryForLong("SELECT COUNT(*) FROM fruit", null)).isEqualTo(0L);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        assertThat(database.queryForString(
+                "SELECT name FROM sqlite_master WHERE name = 'fruit'", null)).isEqualTo("fruit");
+        db.close();
+    }
+
+    public void testManageSchemaOnDatabaseAdapterCancelsPortableMigration() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        Database database = new AndroidDatabase(db);
+        final CancellationToken token = new CancellationToken();
+        final List<Database> executedOn = new LinkedList<Database>();
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager()
+                .setParameterResolver(new SQLParser.ParameterResolver() {
+                    @Override
+                    public String resolve(Database db, String name) {
+                        return name.equals("fruit") ? "\"kiwis\"" : null;
+                    }
+                })
+                .addDataSource(new DataSource() {
+                    @Override
+                    public boolean hasSchema() {
+                        return false;
+                    }
+
+                    @Override
+                    public Schema getSchema() {
+                        return null;
+                    }
+
+                    @Override
+                    public List<Migration> getMigrations() {
+                        List<Migration> migrations = new LinkedList<Migration>();
+                        migrations.add(new StreamMigration("1_CreateFruit.sql") {
+                            @Override
+                            public InputStream getStream() {
+                                return new ByteArrayInputStream(
+                                        "CREATE TABLE ${fruit} (name TEXT);".getBytes());
+                            }
+                        });
+                        migrations.add(new PortableCodeMigration("2_InsertKiwi.sql") {
+                            @Override
+                            public void execute(Database db, CancellationToken t) {
+                                executedOn.add(db);
+                                db.execSQL("INSERT INTO kiwis VALUES ('green')", null);
+                                token.cancel();
+                                CancellationToken.throwIfCancelled(t);
+                            }
+                        });
+                        return migrations;
+                    }
+                });
+
+        // Parameters, cancellation and per-migration commits apply through the adapter.
+        MigrationResult result = migrationManager.manageSchema(database,
+                BootstrapAction.CREATE_MIGRATIONS_TABLE, SQLiteMigrationManager.NO_BUDGET, token);
+        assertThat(result.isCancelled()).isTrue();
+        assertThat(result.getApplied()).isEqualTo(1);
+        assertThat(executedOn).containsExactly(database);
+        assertThat(database.inTransaction()).isFalse();
+        assertThat(database.queryForLong("SELECT COUNT(*) FROM kiwis", null)).isEqualTo(0L);
+        assertThat(migrationManager.getCurrentVersion(database)).isEqualTo(1L);
+        db.close();
+    }
 }
@@ -0,0 +1,107 @@
+package com.layer.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.layer.sqlite.datasource.ZipArchiveDataSource;
+import com.layer.sqlite.migrations.Migration;
+import com.layer.sqlite.migrations.ZipMigration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.layer.sqlite.Fixtures.assertStreamNotNull;
+import static com.layer.sqlite.Fixtures.getDatabase;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class ZipArchiveDataSourceTests extends AndroidTestCase {
+    private File mArchive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mArchive = new File(getContext().getCacheDir(), UUID.randomUUID().toString() + ".zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mArchive));
+        try {
+            put(out, "schema/schema.sql", "CREATE TABLE schema_migrations (\n"
+                    + "  version INTEGER UNIQUE NOT NULL\n"
+                    + ");\n"
+                    + "\n"
+                    + "INSERT INTO schema_migrations(version) VALUES (1402070000);");
+            put(out, "migrations/", null);
+            put(out, "migrations/1402070001_CreateTableBananas.sql", "CREATE TABLE bananas (\n"
+                    + "    name TEXT\n"
+                    + ");");
+            put(out, "migrations/1402070002_InsertWhiteYellowIntoBananas.sql",
+                    "INSERT INTO bananas (name) VALUES ('white');\n"
+                            + "\n"
+                            + "INSERT INTO bananas (name) VALUES ('yellow');");
+            put(out, "migrations/README.txt", "Not a migration");
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mArchive.delete();
+        super.tearDown();
+    }
+
+    private static void put(ZipOutputStream out, String name, String contents) throws Exception {
+        out.putNextEntry(new ZipEntry(name));
+        if (contents != null) out.write(contents.getBytes("UTF-8"));
+        out.closeEntry();
+    }
+
+    public void testNonexistentSchema() throws Exception {
+        try {
+            new ZipArchiveDataSource(mArchive, "wrong/schema.sql", "migrations");
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).startsWith("Could not find");
+        }
+    }
+
+    public void testGetMigrations() throws Exception {
+        ZipArchiveDataSource source = new ZipArchiveDataSource(mArchive, "schema/schema.sql",
+                "migrations");
+        try {
+            assertTrue(source.hasSchema());
+            assertStreamNotNull(source.getSchema());
+
+            List<Migration> migrations = source.getMigrations();
+            assertThat(migrations).hasSize(2);
+            for (Migration migration : migrations) {
+                assertThat(migration).isInstanceOf(ZipMigration.class);
+                assertStreamNotNull(migration);
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testManageSchemaZipArchiveDataSource() throws Exception {
+        SQLiteDatabase db = getDatabase(getContext());
+        ZipArchiveDataSource source = new ZipArchiveDataSource(mArchive, "schema/schema.sql",
+                "migrations");
+        SQLiteMigrationManager migrationManager = new SQLiteMigrationManager();
+        migrationManager.addDataSource(source);
+        assertThat(migrationManager
+                .manageSchema(db, SQLiteMigrationManager.BootstrapAction.APPLY_SCHEMA))
+                .isEqualTo(2);
+        assertThat(migrationManager.getCurrentVersion(db)).isEqualTo(1402070002);
+
+        Cursor c = db.rawQuery("SELECT name FROM bananas ORDER BY _ROWID_", null);
+        assertThat(c.getCount()).isEqualTo(2);
+        c.close();
+        source.close();
+        db.close();
+    }
+}
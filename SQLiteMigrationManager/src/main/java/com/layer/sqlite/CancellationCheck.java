@@ -0,0 +1,45 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.CancellationToken;
+import com.layer.sqlite.migrations.Migration;
+
+/**
+ * Checks a CancellationToken before each migration and statement, and after each statement or
+ * slice of a chunked statement.  Placed after MigrationProgress in a chain, so that a slice's
+ * checkpoint is committed before cancellation is noticed.
+ */
+class CancellationCheck implements SQLParser.Interceptor {
+    private final CancellationToken mToken;
+
+    CancellationCheck(CancellationToken token) {
+        if (token == null) throw new IllegalArgumentException("Token is null");
+        mToken = token;
+    }
+
+    @Override
+    public void beforeMigration(Database db, Migration migration) {
+        mToken.throwIfCancelled();
+    }
+
+    @Override
+    public void onResumable(Database db) {
+    }
+
+    @Override
+    public boolean beforeStatement(Database db, String statement, SQLParser.Verb verb) {
+        mToken.throwIfCancelled();
+        return false;
+    }
+
+    @Override
+    public void afterStatement(Database db, String statement, SQLParser.Verb verb,
+                               long lastRowId) {
+        mToken.throwIfCancelled();
+    }
+
+    @Override
+    public long getChunkStart(Database db, String statement) {
+        return SQLParser.NO_ROWID;
+    }
+}
@@ -0,0 +1,125 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.CompiledStatement;
+import com.layer.sqlite.database.Database;
+
+import java.io.IOException;
+
+/**
+ * An UPDATE or DELETE executed in slices of consecutive rowids, so that each slice touches a
+ * bounded number of rows.  The statement's WHERE clause, if any, is combined with a rowid range
+ * on the target table; the statement must not end in ORDER BY, LIMIT or RETURNING.
+ */
+class ChunkedStatement {
+    private final String mSliceSql;
+    private final String mTable;
+    private final String mStatement;
+    private final SQLParser.Verb mVerb;
+
+    private ChunkedStatement(String sliceSql, String table, String statement, SQLParser.Verb verb) {
+        mSliceSql = sliceSql;
+        mTable = table;
+        mStatement = statement;
+        mVerb = verb;
+    }
+
+    /**
+     * Parses a chunkable statement.
+     *
+     * @throws IllegalArgumentException If the statement cannot be executed in slices.
+     */
+    static ChunkedStatement parse(String statement, SQLParser.Verb verb) {
+        int end = statement.length();
+        while (end > 0 && (statement.charAt(end - 1) <= ' ' || statement.charAt(end - 1) == ';')) {
+            end--;
+        }
+        String body = statement.substring(0, end);
+
+        SQLScanner scanner = new SQLScanner(body);
+        scanner.next();
+        if (verb == SQLParser.Verb.UPDATE) {
+            if (scanner.nextIs("OR")) scanner.next();
+        } else if (verb != SQLParser.Verb.DELETE || !scanner.nextIs("FROM")) {
+            throw new IllegalArgumentException("Cannot chunk statement: " + body);
+        }
+
+        String name = scanner.next();
+        String schema = null;
+        if (scanner.nextIs(".")) {
+            schema = name;
+            name = scanner.next();
+        }
+        if (name == null) throw new IllegalArgumentException("Cannot chunk statement: " + body);
+        String table = (schema == null) ? quote(name) : quote(schema) + "." + quote(name);
+        String qualifier = scanner.nextIs("AS") ? quote(scanner.next()) : table;
+
+        // Find the top-level WHERE, outside of any parentheses.
+        int wherePosition = -1;
+        int depth = 0;
+        String word;
+        while ((word = scanner.next()) != null) {
+            if (word.equals("(")) {
+                depth++;
+            } else if (word.equals(")")) {
+                depth--;
+            } else if (depth == 0) {
+                if (word.equalsIgnoreCase("WHERE") && wherePosition == -1) {
+                    wherePosition = scanner.position();
+                } else if (word.equalsIgnoreCase("ORDER") || word.equalsIgnoreCase("LIMIT")
+                        || word.equalsIgnoreCase("RETURNING")) {
+                    throw new IllegalArgumentException("Cannot chunk statement with " + word
+                            + ": " + body);
+                }
+            }
+        }
+
+        String range = qualifier + ".rowid > ? AND " + qualifier + ".rowid <= ?";
+        String sliceSql = (wherePosition == -1)
+                ? body + " WHERE " + range
+                : body.substring(0, wherePosition) + " (" + body.substring(wherePosition) + ") AND "
+                + range;
+        return new ChunkedStatement(sliceSql, table, body, verb);
+    }
+
+    /**
+     * Returns the SQL of a single slice, bound with the exclusive lower and inclusive upper rowid.
+     */
+    String getSliceSql() {
+        return mSliceSql;
+    }
+
+    /**
+     * Executes the statement in slices of `rows` rows, from the Interceptor's chunk start up to
+     * the largest rowid present when execution began.
+     *
+     * @param interceptor Interceptor notified after each slice, or `null` to start from the first
+     *                    row.
+     */
+    void execute(Database db, int rows, SQLParser.Interceptor interceptor) throws IOException {
+        long after = (interceptor != null)
+                ? interceptor.getChunkStart(db, mStatement) : SQLParser.NO_ROWID;
+        Long max = db.queryForLong("SELECT MAX(rowid) FROM " + mTable, null);
+        if (max == null) return;
+
+        CompiledStatement slice = db.compileStatement(mSliceSql);
+        try {
+            while (after < max) {
+                Long boundary = db.queryForLong("SELECT rowid FROM " + mTable + " WHERE rowid > "
+                        + after + " ORDER BY rowid LIMIT 1 OFFSET " + (rows - 1), null);
+                long upTo = (boundary == null || boundary > max) ? max : boundary;
+                slice.bindLong(1, after);
+                slice.bindLong(2, upTo);
+                slice.executeUpdateDelete();
+                slice.clearBindings();
+                after = upTo;
+                if (interceptor != null) interceptor.afterStatement(db, mStatement, mVerb, upTo);
+            }
+        } finally {
+            slice.close();
+        }
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,192 @@
+package com.layer.sqlite;
+
+import android.database.sqlite.SQLiteDatabaseLockedException;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.database.DatabaseLockedException;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Waits out other connections and processes holding the database lock while manageSchema()
+ * runs, and measures the time lost to them.
+ *
+ * During manageSchema(), `PRAGMA busy_timeout` is set to the busy timeout, so SQLite itself
+ * retries each statement and transaction while the lock is held elsewhere.  If the timeout still
+ * expires with a SQLiteDatabaseLockedException, or a DatabaseLockedException off-device, the
+ * batch's transaction rolls back to its last commit, and the batch is retried from that commit
+ * after a randomized, exponentially growing backoff, up to the maximum number of retries.  The
+ * last commit may be a checkpoint within a chunked or resumable Migration, which then resumes
+ * from its recorded progress.  The exception is rethrown once retries are exhausted.
+ *
+ * Lock wait time is the time spent acquiring migration transactions and the migration lock,
+ * sleeping between retries, and running attempts that failed on the lock.  Compared with the
+ * total time of manageSchema(), it tells contention apart from slow SQL.  Metrics accumulate
+ * across batches until reset.
+ */
+public class ContentionPolicy {
+    public static final long DEFAULT_BUSY_TIMEOUT_MILLIS = 2500;
+    public static final int DEFAULT_MAX_RETRIES = 4;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 50;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+
+    private final Random mRandom = new Random();
+    private long mBusyTimeoutMillis = DEFAULT_BUSY_TIMEOUT_MILLIS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    private final AtomicLong mLockWaitNanos = new AtomicLong();
+    private final AtomicLong mLockedCount = new AtomicLong();
+    private final AtomicLong mRetryCount = new AtomicLong();
+
+    /**
+     * Sets how long SQLite waits for a lock before failing a statement or transaction.
+     *
+     * @return `this` for chaining.
+     */
+    public ContentionPolicy setBusyTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("Busy timeout is negative");
+        mBusyTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the number of times a batch is retried after failing on the lock.
+     *
+     * @return `this` for chaining.
+     */
+    public ContentionPolicy setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) throw new IllegalArgumentException("Max retries is negative");
+        mMaxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Sets the backoff before the first retry, which doubles for each further retry up to the
+     * maximum.  Each sleep is chosen at random between half the backoff and the full backoff, so
+     * that competing processes do not retry in lockstep.
+     *
+     * @return `this` for chaining.
+     */
+    public ContentionPolicy setBackoff(long initial, long max, TimeUnit unit) {
+        if (initial < 0) throw new IllegalArgumentException("Initial backoff is negative");
+        if (max < initial) throw new IllegalArgumentException("Max backoff is below initial");
+        mInitialBackoffMillis = unit.toMillis(initial);
+        mMaxBackoffMillis = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * Returns the total time spent waiting for locks, in milliseconds.
+     */
+    public long getLockWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mLockWaitNanos.get());
+    }
+
+    /**
+     * Returns the number of attempts that failed with a SQLiteDatabaseLockedException or
+     * DatabaseLockedException.
+     */
+    public long getLockedCount() {
+        return mLockedCount.get();
+    }
+
+    /**
+     * Returns the number of times a batch was retried.
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * Resets all metrics to zero.
+     */
+    public void resetMetrics() {
+        mLockWaitNanos.set(0);
+        mLockedCount.set(0);
+        mRetryCount.set(0);
+    }
+
+    /**
+     * Sets the busy timeout on the connection and returns the previous timeout, in milliseconds.
+     */
+    long applyBusyTimeout(Database db) {
+        Long previous = db.queryForLong("PRAGMA busy_timeout", null);
+        setBusyTimeout(db, mBusyTimeoutMillis);
+        return (previous == null) ? -1 : previous;
+    }
+
+    /**
+     * Restores a busy timeout returned by applyBusyTimeout().
+     */
+    void restoreBusyTimeout(Database db, long timeoutMillis) {
+        if (timeoutMillis >= 0) setBusyTimeout(db, timeoutMillis);
+    }
+
+    /**
+     * Begins a transaction, recording the time spent acquiring the lock.
+     */
+    void beginTransaction(Database db) {
+        long start = System.nanoTime();
+        try {
+            db.beginTransaction();
+        } finally {
+            mLockWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records time spent waiting for another caller's migration to finish.
+     */
+    void recordLockWait(long nanos) {
+        mLockWaitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Returns true if the exception reports that another connection holds the database lock.
+     */
+    static boolean isLocked(RuntimeException e) {
+        return e instanceof SQLiteDatabaseLockedException || e instanceof DatabaseLockedException;
+    }
+
+    /**
+     * Records an attempt that failed on the lock after `elapsedNanos`, then sleeps before the
+     * next attempt, or rethrows the exception if `retry` exceeds the maximum number of retries.
+     *
+     * @param e     Exception for which isLocked() returned true.
+     * @param retry 1 for the first retry.
+     */
+    void onLocked(RuntimeException e, int retry, long elapsedNanos) {
+        mLockedCount.incrementAndGet();
+        mLockWaitNanos.addAndGet(elapsedNanos);
+        if (retry > mMaxRetries) throw e;
+
+        long backoff = mInitialBackoffMillis << Math.min(retry - 1, 30);
+        if (backoff > mMaxBackoffMillis || backoff < 0) backoff = mMaxBackoffMillis;
+        long sleepMillis = backoff / 2 + (long) (mRandom.nextDouble() * (backoff - backoff / 2));
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(sleepMillis);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            mLockWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+        mRetryCount.incrementAndGet();
+    }
+
+    private static void setBusyTimeout(Database db, long timeoutMillis) {
+        // PRAGMA busy_timeout returns a row, so it cannot go through execSQL().
+        db.queryForLong("PRAGMA busy_timeout = " + timeoutMillis, null);
+    }
+
+    @Override
+    public String toString() {
+        return "ContentionPolicy{lockWaitMillis=" + getLockWaitMillis()
+                + ", locked=" + getLockedCount() + ", retries=" + getRetryCount() + "}";
+    }
+}
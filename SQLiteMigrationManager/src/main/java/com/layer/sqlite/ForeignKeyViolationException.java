@@ -0,0 +1,89 @@
+package com.layer.sqlite;
+
+import android.database.SQLException;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by manageSchema() when `PRAGMA foreign_key_check` reports violations after a batch of
+ * migrations ran with deferred or disabled foreign key enforcement.  The check runs before every
+ * commit of the batch, including checkpoints, and the batch is rolled back to its last commit.
+ */
+public class ForeignKeyViolationException extends SQLException {
+    private final List<Violation> mViolations;
+    private final long mViolationCount;
+
+    public ForeignKeyViolationException(List<Violation> violations, long violationCount) {
+        super(violationCount + " foreign key violation(s) after migration"
+                + (violations.isEmpty() ? "" : ", first: " + violations.get(0)));
+        mViolations = Collections.unmodifiableList(violations);
+        mViolationCount = violationCount;
+    }
+
+    /**
+     * Returns the reported violations.  This may be a prefix of all violations; see
+     * getViolationCount().
+     */
+    public List<Violation> getViolations() {
+        return mViolations;
+    }
+
+    /**
+     * Returns the total number of violations found.
+     */
+    public long getViolationCount() {
+        return mViolationCount;
+    }
+
+    /**
+     * A single row of `PRAGMA foreign_key_check` output.
+     */
+    public static class Violation {
+        private final String mTable;
+        private final Long mRowId;
+        private final String mParent;
+        private final int mForeignKeyId;
+
+        public Violation(String table, Long rowId, String parent, int foreignKeyId) {
+            mTable = table;
+            mRowId = rowId;
+            mParent = parent;
+            mForeignKeyId = foreignKeyId;
+        }
+
+        /**
+         * Returns the table containing the violating row.
+         */
+        public String getTable() {
+            return mTable;
+        }
+
+        /**
+         * Returns the rowid of the violating row, or `null` for WITHOUT ROWID tables.
+         */
+        public Long getRowId() {
+            return mRowId;
+        }
+
+        /**
+         * Returns the parent table the row refers to.
+         */
+        public String getParent() {
+            return mParent;
+        }
+
+        /**
+         * Returns the index of the violated constraint in `PRAGMA foreign_key_list(table)`.
+         */
+        public int getForeignKeyId() {
+            return mForeignKeyId;
+        }
+
+        @Override
+        public String toString() {
+            return mTable + " rowid " + mRowId + " -> " + mParent + " (foreign key " + mForeignKeyId
+                    + ")";
+        }
+    }
+}
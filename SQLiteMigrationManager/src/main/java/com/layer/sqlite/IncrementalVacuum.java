@@ -0,0 +1,195 @@
+package com.layer.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Returns free pages left behind by destructive migrations to the file system, a bounded slice
+ * at a time, without a full VACUUM.
+ *
+ * When set on a SQLiteMigrationManager, `PRAGMA freelist_count` is sampled before and after each
+ * manageSchema() batch.  If the batch grew the freelist by at least the threshold and the
+ * database uses `auto_vacuum = INCREMENTAL`, slices of `PRAGMA incremental_vacuum(N)` run on the
+ * scheduler until the freelist is empty, each holding the write lock only briefly.  A database
+ * using `auto_vacuum = NONE` cannot be vacuumed incrementally until it is converted with a full
+ * VACUUM; the Listener is told so, and may call convert() when that is affordable.  Databases that
+ * have never been migrated and are still nearly empty are converted automatically.
+ */
+public class IncrementalVacuum {
+    public static final int DEFAULT_THRESHOLD_PAGES = 256;
+    public static final int DEFAULT_SLICE_PAGES = 128;
+    public static final long DEFAULT_SLICE_INTERVAL_MILLIS = 250;
+
+    /**
+     * Largest database, in pages, converted to incremental auto-vacuum automatically.
+     */
+    static final long MAX_CONVERT_PAGES = 32;
+
+    private static final long AUTO_VACUUM_NONE = 0;
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Receives reclamation progress.  Methods are called on the scheduler's threads, except
+     * onVacuumUnavailable(), which is called on the thread running manageSchema().
+     */
+    public interface Listener {
+        /**
+         * Called after each slice.
+         *
+         * @param db             Database being vacuumed.
+         * @param bytesReclaimed Total bytes returned to the file system so far.
+         * @param pagesRemaining Free pages remaining; 0 once reclamation is complete.
+         */
+        void onVacuumProgress(SQLiteDatabase db, long bytesReclaimed, long pagesRemaining);
+
+        /**
+         * Called when a batch freed at least the threshold of pages, but the database uses
+         * `auto_vacuum = NONE` and must be converted before it can be vacuumed incrementally.
+         *
+         * @param db        Database with free pages.
+         * @param freePages Current `PRAGMA freelist_count`.
+         */
+        void onVacuumUnavailable(SQLiteDatabase db, long freePages);
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private int mThresholdPages = DEFAULT_THRESHOLD_PAGES;
+    private int mSlicePages = DEFAULT_SLICE_PAGES;
+    private long mSliceIntervalMillis = DEFAULT_SLICE_INTERVAL_MILLIS;
+    private Listener mListener;
+
+    public IncrementalVacuum(ScheduledExecutorService scheduler) {
+        if (scheduler == null) throw new IllegalArgumentException("Scheduler is null");
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Sets the freelist growth, in pages, that triggers reclamation.
+     *
+     * @return `this` for chaining.
+     */
+    public IncrementalVacuum setThreshold(int pages) {
+        if (pages < 1) throw new IllegalArgumentException("Threshold must be positive");
+        mThresholdPages = pages;
+        return this;
+    }
+
+    /**
+     * Sets the number of pages reclaimed by each slice, and the delay between slices.
+     *
+     * @return `this` for chaining.
+     */
+    public IncrementalVacuum setSlice(int pages, long interval, TimeUnit unit) {
+        if (pages < 1) throw new IllegalArgumentException("Slice must be positive");
+        if (interval < 0) throw new IllegalArgumentException("Slice interval is negative");
+        mSlicePages = pages;
+        mSliceIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * Sets the Listener notified of reclamation progress.
+     *
+     * @return `this` for chaining.
+     */
+    public IncrementalVacuum setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Converts the database to `auto_vacuum = INCREMENTAL` with a full VACUUM, which rewrites the
+     * whole file and must not run inside a transaction.
+     */
+    public static void convert(SQLiteDatabase db) {
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+    }
+
+    /**
+     * Converts a nearly empty database that has never been migrated, and returns the freelist
+     * size before migrating.  Called outside of the migration transaction.
+     */
+    long beforeMigration(SQLiteDatabase db, boolean hasMigrationsTable) {
+        if (!hasMigrationsTable && queryLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_NONE
+                && queryLong(db, "PRAGMA page_count") <= MAX_CONVERT_PAGES) {
+            convert(db);
+        }
+        return queryLong(db, "PRAGMA freelist_count");
+    }
+
+    /**
+     * Starts reclamation if the committed batch grew the freelist by at least the threshold.
+     */
+    void afterMigration(SQLiteDatabase db, long freePagesBefore) {
+        long freePages = queryLong(db, "PRAGMA freelist_count");
+        if (freePages - freePagesBefore < mThresholdPages) return;
+
+        long autoVacuum = queryLong(db, "PRAGMA auto_vacuum");
+        if (autoVacuum == AUTO_VACUUM_INCREMENTAL) {
+            mScheduler.execute(new Slice(db, queryLong(db, "PRAGMA page_size")));
+        } else if (autoVacuum == AUTO_VACUUM_NONE && mListener != null) {
+            mListener.onVacuumUnavailable(db, freePages);
+        }
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery(sql, null);
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * Reclaims one slice of pages, then reschedules itself until the freelist is empty.
+     */
+    private class Slice implements Runnable {
+        private final SQLiteDatabase mDb;
+        private final long mPageSize;
+        private long mPagesReclaimed;
+
+        Slice(SQLiteDatabase db, long pageSize) {
+            mDb = db;
+            mPageSize = pageSize;
+        }
+
+        @Override
+        public void run() {
+            if (!mDb.isOpen()) return;
+            long before;
+            long after;
+            try {
+                before = queryLong(mDb, "PRAGMA freelist_count");
+                // incremental_vacuum returns a row per page freed; step through all of them.
+                Cursor c = mDb.rawQuery("PRAGMA incremental_vacuum(" + mSlicePages + ")", null);
+                try {
+                    while (c.moveToNext()) {
+                        // Rows are discarded.
+                    }
+                } finally {
+                    c.close();
+                }
+                after = queryLong(mDb, "PRAGMA freelist_count");
+            } catch (SQLiteDatabaseLockedException e) {
+                // Another writer holds the lock; try again after the interval.
+                mScheduler.schedule(this, mSliceIntervalMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            mPagesReclaimed += Math.max(0, before - after);
+            if (mListener != null) {
+                mListener.onVacuumProgress(mDb, mPagesReclaimed * mPageSize, after);
+            }
+            if (after > 0 && after < before) {
+                mScheduler.schedule(this, mSliceIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
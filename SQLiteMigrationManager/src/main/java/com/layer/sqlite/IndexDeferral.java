@@ -0,0 +1,135 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.CodeMigration;
+import com.layer.sqlite.migrations.DelimitedMigration;
+import com.layer.sqlite.migrations.Migration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Defers non-unique CREATE INDEX statements across a batch of migrations so that each index is
+ * built once, by a sort over the loaded rows, instead of being maintained row by row during the
+ * data loads that follow it.
+ *
+ * Deferred indexes are created, in their original order, before any statement that could observe
+ * or depend on them: anything other than row reads and writes (INSERT, UPDATE, DELETE, REPLACE,
+ * SELECT, WITH, VALUES, EXPLAIN) or CREATE statements that are not themselves deferred; any
+ * statement mentioning a deferred index by name; any statement other than an INSERT or REPLACE
+ * mentioning the table of a deferred index, whose plan could use the index; and any CodeMigration
+ * other than a DelimitedMigration.  Unique indexes are never deferred, since they change the
+ * outcome of inserts.  flush() must be called before the batch's transaction commits.
+ */
+class IndexDeferral implements SQLParser.Interceptor {
+    private final List<DeferredIndex> mDeferred = new ArrayList<DeferredIndex>();
+
+    @Override
+    public void beforeMigration(Database db, Migration migration) {
+        if (migration instanceof CodeMigration && !(migration instanceof DelimitedMigration)) {
+            flush(db);
+        }
+    }
+
+    @Override
+    public void onResumable(Database db) {
+    }
+
+    @Override
+    public boolean beforeStatement(Database db, String statement, SQLParser.Verb verb) {
+        switch (verb) {
+            case CREATE: {
+                DeferredIndex index = DeferredIndex.parse(statement);
+                if (index != null) {
+                    mDeferred.add(index);
+                    return true;
+                }
+                flushIfMentioned(db, statement, true);
+                return false;
+            }
+
+            case INSERT:
+            case REPLACE:
+                flushIfMentioned(db, statement, false);
+                return false;
+
+            case UPDATE:
+            case DELETE:
+            case SELECT:
+            case WITH:
+            case VALUES:
+            case EXPLAIN:
+                flushIfMentioned(db, statement, true);
+                return false;
+
+            default:
+                flush(db);
+                return false;
+        }
+    }
+
+    @Override
+    public void afterStatement(Database db, String statement, SQLParser.Verb verb,
+                               long lastRowId) {
+    }
+
+    @Override
+    public long getChunkStart(Database db, String statement) {
+        return SQLParser.NO_ROWID;
+    }
+
+    /**
+     * Creates all deferred indexes in the order they were deferred.
+     */
+    void flush(Database db) {
+        for (DeferredIndex index : mDeferred) {
+            db.execSQL(index.mSql, null);
+        }
+        mDeferred.clear();
+    }
+
+    /**
+     * Flushes if the statement mentions a deferred index, or with `checkTables`, the table of
+     * one.
+     */
+    private void flushIfMentioned(Database db, String statement, boolean checkTables) {
+        for (DeferredIndex index : mDeferred) {
+            if (SQLScanner.containsIgnoreCase(statement, index.mName)
+                    || (checkTables && SQLScanner.containsIgnoreCase(statement, index.mTable))) {
+                flush(db);
+                return;
+            }
+        }
+    }
+
+    static class DeferredIndex {
+        final String mSql;
+        final String mName;
+        final String mTable;
+
+        private DeferredIndex(String sql, String name, String table) {
+            mSql = sql;
+            mName = name;
+            mTable = table;
+        }
+
+        /**
+         * Parses `CREATE INDEX [IF NOT EXISTS] [schema.]name ON table ...`, returning `null` for
+         * any other statement, including unique indexes.
+         */
+        static DeferredIndex parse(String statement) {
+            SQLScanner scanner = new SQLScanner(statement);
+            if (!scanner.nextIs("CREATE")) return null;
+            if (!scanner.nextIs("INDEX")) return null;
+            if (scanner.nextIs("IF")) {
+                if (!scanner.nextIs("NOT") || !scanner.nextIs("EXISTS")) return null;
+            }
+            String name = scanner.next();
+            if (scanner.nextIs(".")) name = scanner.next();
+            if (name == null || !scanner.nextIs("ON")) return null;
+            String table = scanner.next();
+            if (table == null) return null;
+            return new DeferredIndex(statement, name, table);
+        }
+    }
+}
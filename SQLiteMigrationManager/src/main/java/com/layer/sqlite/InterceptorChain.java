@@ -0,0 +1,85 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.Migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes migrations and statements through several Interceptors in order.  A statement handled by
+ * one Interceptor is not passed to those after it.
+ */
+class InterceptorChain implements SQLParser.Interceptor {
+    private final List<SQLParser.Interceptor> mInterceptors =
+            new ArrayList<SQLParser.Interceptor>();
+
+    /**
+     * Appends an Interceptor to the chain, ignoring `null`.
+     *
+     * @return `this` for chaining.
+     */
+    InterceptorChain add(SQLParser.Interceptor interceptor) {
+        if (interceptor != null) mInterceptors.add(interceptor);
+        return this;
+    }
+
+    /**
+     * Returns the single Interceptor in the chain, this chain if there are several, or `null` if
+     * there are none.
+     */
+    SQLParser.Interceptor simplify() {
+        switch (mInterceptors.size()) {
+            case 0:
+                return null;
+            case 1:
+                return mInterceptors.get(0);
+            default:
+                return this;
+        }
+    }
+
+    @Override
+    public void beforeMigration(Database db, Migration migration) throws IOException {
+        for (SQLParser.Interceptor interceptor : mInterceptors) {
+            interceptor.beforeMigration(db, migration);
+        }
+    }
+
+    @Override
+    public void onResumable(Database db) throws IOException {
+        for (SQLParser.Interceptor interceptor : mInterceptors) {
+            interceptor.onResumable(db);
+        }
+    }
+
+    @Override
+    public boolean beforeStatement(Database db, String statement, SQLParser.Verb verb)
+            throws IOException {
+        for (SQLParser.Interceptor interceptor : mInterceptors) {
+            if (interceptor.beforeStatement(db, statement, verb)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void afterStatement(Database db, String statement, SQLParser.Verb verb,
+                               long lastRowId) throws IOException {
+        for (SQLParser.Interceptor interceptor : mInterceptors) {
+            interceptor.afterStatement(db, statement, verb, lastRowId);
+        }
+    }
+
+    /**
+     * Returns the first chunk start other than NO_ROWID.
+     */
+    @Override
+    public long getChunkStart(Database db, String statement) throws IOException {
+        for (SQLParser.Interceptor interceptor : mInterceptors) {
+            long start = interceptor.getChunkStart(db, statement);
+            if (start != SQLParser.NO_ROWID) return start;
+        }
+        return SQLParser.NO_ROWID;
+    }
+}
@@ -0,0 +1,117 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes manageSchema() on one database file across threads and processes, so that only one
+ * caller migrates while the others block, and then find no pending Migrations.
+ *
+ * Processes are serialized with an exclusive FileLock on a sidecar file named after the database,
+ * `<database>-migration.lock`, which the kernel grants in turn without polling.  A FileLock is
+ * held by the whole process and cannot be taken twice, so threads of one process are first
+ * serialized by a ReentrantLock per database path, and only the outermost holder takes the
+ * FileLock.  The sidecar file is left in place, since deleting it could let two processes lock
+ * different files.  In-memory databases are private to their connection and are not locked.
+ */
+class MigrationLock {
+    static final String SUFFIX = "-migration.lock";
+
+    /**
+     * In-process locks by canonical database path.  Entries are kept for the life of the process;
+     * there is one per migrated database file.
+     */
+    private static final Map<String, ReentrantLock> sLocks = new HashMap<String, ReentrantLock>();
+
+    private final ReentrantLock mThreadLock;
+    private final RandomAccessFile mFile;
+    private final FileLock mFileLock;
+
+    private MigrationLock(ReentrantLock threadLock, RandomAccessFile file, FileLock fileLock) {
+        mThreadLock = threadLock;
+        mFile = file;
+        mFileLock = fileLock;
+    }
+
+    /**
+     * Blocks until this thread holds the migration lock for the database.
+     *
+     * @param db               Database to lock.
+     * @param contentionPolicy ContentionPolicy recording the time spent waiting, or `null`.
+     * @return The held MigrationLock, to be released in a finally block.
+     */
+    static MigrationLock acquire(Database db, ContentionPolicy contentionPolicy)
+            throws IOException {
+        return acquire(db.getPath(), contentionPolicy);
+    }
+
+    /**
+     * Blocks until this thread holds the migration lock for the database file at `path`.
+     *
+     * @param path             Path of the database file, or an empty String or `:memory:` for
+     *                         an in-memory database.
+     * @param contentionPolicy ContentionPolicy recording the time spent waiting, or `null`.
+     * @return The held MigrationLock, to be released in a finally block.
+     */
+    static MigrationLock acquire(String path, ContentionPolicy contentionPolicy)
+            throws IOException {
+        if (path == null || path.length() == 0 || path.equals(":memory:")) {
+            return new MigrationLock(null, null, null);
+        }
+        long start = System.nanoTime();
+        String key = new File(path).getCanonicalPath();
+
+        ReentrantLock threadLock;
+        synchronized (sLocks) {
+            threadLock = sLocks.get(key);
+            if (threadLock == null) {
+                threadLock = new ReentrantLock();
+                sLocks.put(key, threadLock);
+            }
+        }
+
+        threadLock.lock();
+        RandomAccessFile file = null;
+        FileLock fileLock = null;
+        try {
+            if (threadLock.getHoldCount() == 1) {
+                file = new RandomAccessFile(path + SUFFIX, "rw");
+                FileChannel channel = file.getChannel();
+                fileLock = channel.lock();
+            }
+        } catch (IOException e) {
+            if (file != null) file.close();
+            threadLock.unlock();
+            throw e;
+        } catch (RuntimeException e) {
+            if (file != null) file.close();
+            threadLock.unlock();
+            throw e;
+        }
+        if (contentionPolicy != null) contentionPolicy.recordLockWait(System.nanoTime() - start);
+        return new MigrationLock(threadLock, file, fileLock);
+    }
+
+    /**
+     * Releases the lock taken by acquire().
+     */
+    void release() throws IOException {
+        try {
+            if (mFileLock != null) mFileLock.release();
+        } finally {
+            try {
+                if (mFile != null) mFile.close();
+            } finally {
+                if (mThreadLock != null) mThreadLock.unlock();
+            }
+        }
+    }
+}
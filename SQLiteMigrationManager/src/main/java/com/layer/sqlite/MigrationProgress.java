@@ -0,0 +1,195 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.Migration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists progress through a migration in the `schema_migration_progress` table, so that a
+ * migration interrupted after committing part of its work resumes where it stopped.
+ *
+ * Progress is recorded as a statement index and an optional rowid: statements before the index
+ * are complete, and if the rowid is not NULL, the chunked statement at the index is complete
+ * through that rowid.  Each slice of a chunked statement commits the batch's transaction together
+ * with its progress, which bounds the work held in one transaction but makes the migration
+ * non-atomic.  When the migration is retried, completed statements are skipped and the chunked
+ * statement resumes after the recorded rowid.  Statements before a chunked statement should not
+ * rely on connection state such as temporary tables, which does not survive a restart.
+ *
+ * A Migration whose header declares it resumable, as reported by onResumable(), is also
+ * checkpointed between statements, at most once per CHECKPOINT_INTERVAL_MILLIS, so a retry after
+ * the process is killed skips the statements already committed.
+ *
+ * If a deadline is set, a checkpoint committed after it throws a BudgetSpentException, which
+ * stops the batch part way through the Migration; a later batch resumes from the checkpoint.
+ */
+class MigrationProgress implements SQLParser.Interceptor {
+    /**
+     * Minimum time between checkpoints of a resumable Migration, bounding the cost of commits.
+     */
+    static final long CHECKPOINT_INTERVAL_MILLIS = 500;
+
+    /**
+     * Thrown after a checkpoint once the deadline has passed.  Everything before the checkpoint
+     * is committed, and the transaction in progress is empty.
+     */
+    static class BudgetSpentException extends RuntimeException {
+        BudgetSpentException() {
+            super("Migration budget spent");
+        }
+    }
+
+    private final IndexDeferral mIndexDeferral;
+    private final boolean mCheckForeignKeys;
+    private final boolean mDeferForeignKeys;
+    private final ContentionPolicy mContentionPolicy;
+    private boolean mHasTable;
+    private boolean mHasDeadline;
+    private long mDeadline;
+
+    private long mVersion;
+    private int mStatement;
+    private int mResumeStatement;
+    private long mResumeRowId;
+    private boolean mResumable;
+    private long mCheckpointNanos;
+    private int mApplied;
+    private int mCommitted;
+
+    /**
+     * @param db               Database being migrated, within the batch's transaction.
+     * @param indexDeferral    IndexDeferral to flush before each commit, or `null`.
+     * @param checkForeignKeys true to run `PRAGMA foreign_key_check` before each commit, when
+     *                         enforcement is deferred or disabled.
+     * @param deferForeignKeys true to re-enable `PRAGMA defer_foreign_keys` after each commit.
+     * @param contentionPolicy ContentionPolicy recording lock waits after each commit, or `null`.
+     */
+    MigrationProgress(Database db, IndexDeferral indexDeferral, boolean checkForeignKeys,
+                      boolean deferForeignKeys, ContentionPolicy contentionPolicy) {
+        mIndexDeferral = indexDeferral;
+        mCheckForeignKeys = checkForeignKeys;
+        mDeferForeignKeys = deferForeignKeys;
+        mContentionPolicy = contentionPolicy;
+        mHasTable = db.queryForLong("SELECT 1 FROM sqlite_master WHERE type = 'table' "
+                + "AND name = 'schema_migration_progress'", null) != null;
+    }
+
+    /**
+     * Stops the batch at the first checkpoint committed once System.nanoTime() reaches the
+     * deadline.
+     *
+     * @return `this` for chaining.
+     */
+    MigrationProgress setDeadline(long deadline) {
+        mHasDeadline = true;
+        mDeadline = deadline;
+        return this;
+    }
+
+    @Override
+    public void beforeMigration(Database db, Migration migration) {
+        mVersion = migration.getVersion();
+        mResumable = false;
+        mCheckpointNanos = System.nanoTime();
+        mStatement = -1;
+        mResumeStatement = 0;
+        mResumeRowId = SQLParser.NO_ROWID;
+        if (!mHasTable) return;
+
+        db.query("SELECT statement, rowid FROM schema_migration_progress WHERE version = "
+                + mVersion, null, new Database.RowHandler() {
+            @Override
+            public boolean onRow(Database.Row row) {
+                mResumeStatement = (int) row.getLong(0);
+                if (!row.isNull(1)) mResumeRowId = row.getLong(1);
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public void onResumable(Database db) {
+        mResumable = true;
+    }
+
+    @Override
+    public boolean beforeStatement(Database db, String statement, SQLParser.Verb verb) {
+        // Skip statements completed before an interruption.
+        mStatement++;
+        return mStatement < mResumeStatement;
+    }
+
+    @Override
+    public void afterStatement(Database db, String statement, SQLParser.Verb verb,
+                               long lastRowId) {
+        if (lastRowId != SQLParser.NO_ROWID) {
+            checkpoint(db, mStatement, lastRowId);
+        } else if (mResumable && System.nanoTime() - mCheckpointNanos
+                >= TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_INTERVAL_MILLIS)) {
+            checkpoint(db, mStatement + 1, SQLParser.NO_ROWID);
+        }
+    }
+
+    @Override
+    public long getChunkStart(Database db, String statement) {
+        return (mStatement == mResumeStatement) ? mResumeRowId : SQLParser.NO_ROWID;
+    }
+
+    /**
+     * Clears the progress of the current migration once it has been applied.
+     */
+    void afterMigration(Database db) {
+        if (mHasTable) {
+            db.execSQL("DELETE FROM schema_migration_progress WHERE version = " + mVersion, null);
+        }
+        mApplied++;
+    }
+
+    /**
+     * Returns the number of Migrations applied and committed so far, which survive a rollback of
+     * the batch's current transaction.
+     */
+    int getCommitted() {
+        return mCommitted;
+    }
+
+    /**
+     * Records progress and commits everything applied so far, continuing in a new transaction.
+     *
+     * @throws BudgetSpentException If the deadline has passed.
+     */
+    private void checkpoint(Database db, int statement, long rowId) {
+        if (!mHasTable) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS schema_migration_progress "
+                    + "(version INTEGER PRIMARY KEY, statement INTEGER NOT NULL, rowid INTEGER)",
+                    null);
+            mHasTable = true;
+        }
+        db.execSQL("INSERT OR REPLACE INTO schema_migration_progress (version, statement, rowid) "
+                + "VALUES (?, ?, ?)", new Object[]{mVersion, statement,
+                (rowId == SQLParser.NO_ROWID) ? null : rowId});
+        commit(db);
+        if (mHasDeadline && System.nanoTime() - mDeadline >= 0) throw new BudgetSpentException();
+    }
+
+    /**
+     * Commits everything applied so far and continues in a new transaction.  If foreign keys are
+     * checked, a violation throws a ForeignKeyViolationException instead, and nothing since the
+     * last commit is kept.
+     */
+    void commit(Database db) {
+        if (mIndexDeferral != null) mIndexDeferral.flush(db);
+        if (mCheckForeignKeys) SQLiteMigrationManager.checkForeignKeys(db);
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        mCommitted = mApplied;
+        if (mContentionPolicy != null) {
+            mContentionPolicy.beginTransaction(db);
+        } else {
+            db.beginTransaction();
+        }
+        if (mDeferForeignKeys) db.execSQL("PRAGMA defer_foreign_keys = ON", null);
+        mCheckpointNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,122 @@
+package com.layer.sqlite;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.CancellationToken;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+/**
+ * The outcome of a time-budgeted or cancellable call to SQLiteMigrationManager.manageSchema(),
+ * which can resume the Migrations that did not fit in the budget or were cancelled.
+ */
+public class MigrationResult {
+    private final SQLiteMigrationManager mMigrationManager;
+    private final SQLiteMigrationManager.BootstrapAction mAction;
+    private final int mApplied;
+    private final int mRemaining;
+    private final boolean mCancelled;
+
+    MigrationResult(SQLiteMigrationManager migrationManager,
+                    SQLiteMigrationManager.BootstrapAction action, int applied, int remaining,
+                    boolean cancelled) {
+        mMigrationManager = migrationManager;
+        mAction = action;
+        mApplied = applied;
+        mRemaining = remaining;
+        mCancelled = cancelled;
+    }
+
+    /**
+     * Returns the number of Migrations applied and committed.
+     */
+    public int getApplied() {
+        return mApplied;
+    }
+
+    /**
+     * Returns the number of pending Migrations that were not applied, including one rolled back
+     * by cancellation or stopped at a checkpoint when the budget was spent.
+     */
+    public int getRemaining() {
+        return mRemaining;
+    }
+
+    /**
+     * Returns true if no pending Migrations remain.
+     */
+    public boolean isComplete() {
+        return mRemaining == 0;
+    }
+
+    /**
+     * Returns true if the batch stopped because its CancellationToken was cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Applies the remaining Migrations within a new time budget.  Pending Migrations are found
+     * again from the database, which may have been reopened since this result was returned.
+     *
+     * @param db           Database on which to operate.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     SQLiteMigrationManager.NO_BUDGET to apply all remaining Migrations.
+     * @return The MigrationResult of the resumed batch.
+     */
+    public MigrationResult resume(SQLiteDatabase db, long budgetMillis)
+            throws IOException, URISyntaxException {
+        return mMigrationManager.manageSchema(db, mAction, budgetMillis);
+    }
+
+    /**
+     * Applies the remaining Migrations within a new time budget, checking a CancellationToken.
+     *
+     * @param db           Database on which to operate.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     SQLiteMigrationManager.NO_BUDGET to apply all remaining Migrations.
+     * @param token        CancellationToken to check, or `null`.
+     * @return The MigrationResult of the resumed batch.
+     */
+    public MigrationResult resume(SQLiteDatabase db, long budgetMillis, CancellationToken token)
+            throws IOException, URISyntaxException {
+        return mMigrationManager.manageSchema(db, mAction, budgetMillis, token);
+    }
+
+    /**
+     * Applies the remaining Migrations to a Database within a new time budget.
+     *
+     * @param db           Database on which to operate.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     SQLiteMigrationManager.NO_BUDGET to apply all remaining Migrations.
+     * @return The MigrationResult of the resumed batch.
+     */
+    public MigrationResult resume(Database db, long budgetMillis)
+            throws IOException, URISyntaxException {
+        return mMigrationManager.manageSchema(db, mAction, budgetMillis);
+    }
+
+    /**
+     * Applies the remaining Migrations to a Database within a new time budget, checking a
+     * CancellationToken.
+     *
+     * @param db           Database on which to operate.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     SQLiteMigrationManager.NO_BUDGET to apply all remaining Migrations.
+     * @param token        CancellationToken to check, or `null`.
+     * @return The MigrationResult of the resumed batch.
+     */
+    public MigrationResult resume(Database db, long budgetMillis, CancellationToken token)
+            throws IOException, URISyntaxException {
+        return mMigrationManager.manageSchema(db, mAction, budgetMillis, token);
+    }
+
+    @Override
+    public String toString() {
+        return "MigrationResult{applied=" + mApplied + ", remaining=" + mRemaining
+                + ", cancelled=" + mCancelled + "}";
+    }
+}
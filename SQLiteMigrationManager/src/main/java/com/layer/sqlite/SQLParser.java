@@ -6,34 +6,259 @@
  */
 package com.layer.sqlite;
 
-import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.layer.sqlite.database.AndroidDatabase;
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.CancellationToken;
 import com.layer.sqlite.migrations.CodeMigration;
+import com.layer.sqlite.migrations.FileMigration;
 import com.layer.sqlite.migrations.Migration;
 import com.layer.sqlite.migrations.StreamMigration;
+import com.layer.sqlite.schema.FileSchema;
 import com.layer.sqlite.schema.Schema;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class SQLParser {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Rowid reported for statements that are not executed in slices, and returned when a chunked
+     * statement should start from its first row.
+     */
+    public static final long NO_ROWID = Long.MIN_VALUE;
+
+    /**
+     * A directive comment preceding a statement, such as `-- @chunk 1000`.
+     */
+    static final Pattern DIRECTIVE =
+            Pattern.compile("^--[ \\t]*@(\\w+)(?:[ \\t]+([^\\r\\n]*?))?[ \\t]*$");
+
+    /**
+     * A parameter substituted by a ParameterResolver, such as `${account}`.
+     */
+    static final Pattern PARAMETER = Pattern.compile("\\$\\{(\\w+)\\}");
+
+    /**
+     * Resolves parameters such as `${account}` in migration statements for each database, so that
+     * one parsed migration can create differently-named objects in different databases.  The
+     * returned text is substituted verbatim, including inside string literals, so it must be
+     * valid SQL in place, such as a quoted identifier.
+     */
+    public interface ParameterResolver {
+        /**
+         * Returns the text substituted for the parameter in statements run on the database.
+         *
+         * @param db   Database the statement is about to run on.
+         * @param name Parameter name, without `${` and `}`.
+         * @return The substitution, or `null` if the parameter is unknown.
+         */
+        String resolve(Database db, String name);
+    }
+
+    /**
+     * A statement with its directives read and its Verb classified, ready to be executed on any
+     * number of databases.  Immutable.
+     */
+    static final class ParsedStatement {
+        final String mSql;
+        final Verb mVerb;
+        final int mChunkRows;
+        final boolean mParameterized;
+
+        private ParsedStatement(String sql, Verb verb, int chunkRows) {
+            mSql = sql;
+            mVerb = verb;
+            mChunkRows = chunkRows;
+            mParameterized = sql.contains("${");
+        }
+
+        /**
+         * Parses a tokenized statement, or returns `null` if it is empty or only comments.
+         *
+         * @throws IllegalArgumentException If the statement cannot be parsed, or if it begins or
+         *                                  ends a transaction.
+         */
+        static ParsedStatement parse(String statement) {
+            int start = Verb.skipWhitespace(statement, 0);
+
+            // Read directives preceding the statement.
+            int chunkRows = 0;
+            boolean hasDirectives = false;
+            Matcher directive;
+            while ((directive = directiveAt(statement, start)) != null) {
+                if (directive.group(1).equalsIgnoreCase("chunk")) {
+                    chunkRows = parseChunkRows(directive.group(2));
+                }
+                start = Verb.skipWhitespace(statement, directive.end());
+                hasDirectives = true;
+            }
+            if (hasDirectives) {
+                statement = statement.substring(start);
+                start = 0;
+            }
+
+            if (start == statement.length()) {
+                // Skip empty statements.
+                return null;
+            }
+
+            if (statement.startsWith("--", start)) {
+                // Skip comments.
+                return null;
+            }
+
+            Verb verb = Verb.of(statement, start);
+            if (verb == null) {
+                throw new IllegalArgumentException("Cannot parse statement: " + statement.trim());
+            }
+            if (verb.isTransactionControl()) {
+                throw new IllegalArgumentException("Cannot control transactions in a migration: "
+                        + statement.trim());
+            }
+            return new ParsedStatement(statement, verb, chunkRows);
+        }
+
+        /**
+         * Returns the statement's SQL with its parameters substituted for the database.
+         *
+         * @throws IllegalArgumentException If a parameter cannot be resolved.
+         */
+        String resolve(Database db, ParameterResolver resolver) {
+            if (!mParameterized || resolver == null) return mSql;
+            Matcher matcher = PARAMETER.matcher(mSql);
+            StringBuffer sql = new StringBuffer(mSql.length());
+            while (matcher.find()) {
+                String value = resolver.resolve(db, matcher.group(1));
+                if (value == null) {
+                    throw new IllegalArgumentException("Unresolved parameter " + matcher.group()
+                            + " in statement: " + mSql.trim());
+                }
+                matcher.appendReplacement(sql, Matcher.quoteReplacement(value));
+            }
+            matcher.appendTail(sql);
+            return sql.toString();
+        }
+
+        /**
+         * Returns a matched directive on the line starting at `start`, or `null`.
+         */
+        private static Matcher directiveAt(String statement, int start) {
+            if (!statement.startsWith("--", start)) return null;
+            int end = start;
+            while (end < statement.length() && statement.charAt(end) != '\n'
+                    && statement.charAt(end) != '\r') {
+                end++;
+            }
+            Matcher matcher = DIRECTIVE.matcher(statement).region(start, end);
+            return matcher.matches() ? matcher : null;
+        }
+
+        private static int parseChunkRows(String value) {
+            int rows;
+            try {
+                rows = (value == null) ? 0 : Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                rows = 0;
+            }
+            if (rows < 1) throw new IllegalArgumentException("Invalid chunk size: " + value);
+            return rows;
+        }
+    }
+
     public static void execute(SQLiteDatabase db, Schema schema) throws IOException {
-        execute(db, schema.getStream());
+        execute(new AndroidDatabase(db), schema);
     }
 
     public static void execute(SQLiteDatabase db, Migration migration) throws IOException {
-        if (migration instanceof StreamMigration) {
-            execute(db, ((StreamMigration) migration).getStream());
-        } else if (migration instanceof CodeMigration) {
-            ((CodeMigration) migration).execute(db);
+        execute(new AndroidDatabase(db), migration);
+    }
+
+    /**
+     * Executes a schema on a Database.
+     *
+     * @param db     The database on which to execute the schema.
+     * @param schema The schema to execute.
+     */
+    public static void execute(Database db, Schema schema) throws IOException {
+        if (schema instanceof FileSchema) {
+            Execute.statements(db, new Tokenizer(((FileSchema) schema).getBuffer()));
+        } else {
+            InputStream in = schema.getStream();
+            try {
+                Execute.statements(db, new Tokenizer(Statements.readFully(in)));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Executes a migration on a Database.
+     *
+     * @param db        The database on which to execute the migration.
+     * @param migration The migration to execute.
+     */
+    public static void execute(Database db, Migration migration) throws IOException {
+        execute(db, migration, null, null, null);
+    }
+
+    /**
+     * Executes a migration on a Database, passing each of its statements through an Interceptor
+     * and substituting its parameters as it is read, and passing the CancellationToken to
+     * CodeMigrations, which are executed with CodeMigration.execute(Database, CancellationToken).
+     *
+     * @param db          The database on which to execute the migration.
+     * @param migration   The migration to execute.
+     * @param interceptor Interceptor for the migration and its statements, or `null`.
+     * @param token       CancellationToken for CodeMigrations, or `null`.
+     * @param resolver    ParameterResolver for the statements' parameters, or `null`.
+     */
+    static void execute(Database db, Migration migration, Interceptor interceptor,
+                        CancellationToken token, ParameterResolver resolver) throws IOException {
+        if (interceptor != null) interceptor.beforeMigration(db, migration);
+        if (migration instanceof CodeMigration) {
+            ((CodeMigration) migration).execute(db, token);
+        } else {
+            Execute.statements(db, tokenize(migration), interceptor, resolver);
+        }
+    }
+
+    /**
+     * Returns a Tokenizer over the SQL of a StreamMigration.  FileMigrations are tokenized from
+     * their memory-mapped buffer; other streams are read fully and closed.
+     *
+     * @param migration The StreamMigration to tokenize.
+     * @return A Tokenizer over the migration's statements.
+     * @throws IllegalArgumentException If the migration is not a StreamMigration.
+     */
+    public static Tokenizer tokenize(Migration migration) throws IOException {
+        if (migration instanceof FileMigration) {
+            return new Tokenizer(((FileMigration) migration).getBuffer());
+        } else if (migration instanceof StreamMigration) {
+            InputStream in = ((StreamMigration) migration).getStream();
+            try {
+                return new Tokenizer(Statements.readFully(in));
+            } finally {
+                in.close();
+            }
         } else {
             throw new IllegalArgumentException("Unknown migration type: " + migration);
         }
@@ -42,66 +267,614 @@ public class SQLParser {
     protected static void execute(SQLiteDatabase db, InputStream in)
             throws IOException, SQLException {
         try {
-            Execute.statements(db, Statements.fromStream(in));
+            Execute.statements(new AndroidDatabase(db), new Tokenizer(Statements.readFully(in)));
         } finally {
             in.close();
         }
     }
 
+    protected static void execute(SQLiteDatabase db, ByteBuffer buffer)
+            throws IOException, SQLException {
+        Execute.statements(new AndroidDatabase(db), new Tokenizer(buffer));
+    }
+
     /**
      * Generates lists of statements for execution from various sources.
      */
     public static class Statements {
-        public static List<String> fromStream(InputStream in) {
-            String contents = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+        public static List<String> fromStream(InputStream in) throws IOException {
+            return fromBuffer(readFully(in));
+        }
+
+        /**
+         * Tokenizes the UTF-8 SQL between the buffer's position and limit.  The buffer is read
+         * with absolute gets, so memory-mapped buffers are scanned in place and only the bytes of
+         * each emitted statement are decoded into a String.
+         */
+        public static List<String> fromBuffer(ByteBuffer buffer) {
+            List<String> statements = new ArrayList<String>();
+            Tokenizer tokenizer = new Tokenizer(buffer);
+            String statement;
+            while ((statement = tokenizer.next()) != null) {
+                statements.add(statement);
+            }
+            return statements;
+        }
+
+        static ByteBuffer readFully(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+    }
+
+    /**
+     * Splits UTF-8 encoded SQL into statements one at a time.  Block comments are removed,
+     * lines starting with `--` are removed unless they are directives such as `-- @chunk 1000`,
+     * and statements are separated by runs of whitespace containing at least two newlines.
+     * Emitted statements are trimmed and never empty.  Directives are kept at the start of the
+     * statement that follows them, for Execute to interpret.
+     *
+     * All delimiters are ASCII, which never appears inside a multi-byte UTF-8 sequence, so the
+     * input is scanned as raw bytes without decoding.
+     */
+    public static class Tokenizer {
+        private final ByteBuffer mBuffer;
+        private final int mStart;
+        private final int mLimit;
+        private int mPosition;
+        private Boolean mResumable;
+
+        // Block comments opening at or after this index have no closing `*/`.
+        private int mUnclosedFrom = Integer.MAX_VALUE;
+
+        // Bytes of the statement being built; reused between statements.
+        private byte[] mScratch = new byte[256];
+
+        public Tokenizer(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mStart = buffer.position();
+            mPosition = mStart;
+            mLimit = buffer.limit();
+        }
+
+        /**
+         * Returns true if a StreamMigration.RESUMABLE_DIRECTIVE is among the comment lines at the
+         * top of the input.  Only the header is scanned, without moving the tokenizer, and the
+         * result is cached.
+         */
+        public boolean isResumable() {
+            if (mResumable == null) mResumable = scanHeaderForResumable();
+            return mResumable;
+        }
+
+        private boolean scanHeaderForResumable() {
+            int index = mStart;
+            while (index < mLimit) {
+                while (index < mLimit && isWhitespace(mBuffer.get(index))) index++;
+                if (byteAt(index) != '-' || byteAt(index + 1) != '-') return false;
+                int end = index;
+                while (end < mLimit && mBuffer.get(end) != '\n' && mBuffer.get(end) != '\r') {
+                    end++;
+                }
+                byte[] line = new byte[end - index];
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = mBuffer.get(index + i);
+                }
+                String comment = new String(line, UTF_8).trim();
+                if (StreamMigration.RESUMABLE_DIRECTIVE.matcher(comment).matches()) return true;
+                index = end;
+            }
+            return false;
+        }
 
-            // Remove block comments
-            Pattern blockComment = Pattern.compile("/\\*.*?\\*/",
-                    Pattern.MULTILINE | Pattern.DOTALL);
-            contents = blockComment.matcher(contents).replaceAll("");
+        /**
+         * Returns the next statement, or `null` when the input is exhausted.
+         */
+        public String next() {
+            int length = 0;
+            int runStart = 0;
+            int runNewlines = 0;
+            boolean atLineStart = true;
 
-            // Remove line comments
-            Pattern lineComment = Pattern.compile("^\\s*--.*?$",
-                    Pattern.MULTILINE | Pattern.DOTALL);
-            contents = lineComment.matcher(contents).replaceAll("");
+            while (mPosition < mLimit) {
+                byte b = mBuffer.get(mPosition);
 
-            // TODO: make a parser smarter than simply looking for empty lines to split on
-            return Arrays.asList(contents.split("(\\s*\\r?\\n\\s*){2,}"));
+                if (b == '/' && skipBlockComment()) {
+                    continue;
+                }
+
+                if (isWhitespace(b)) {
+                    if (b == '\n') runNewlines++;
+                    if (b == '\n' || b == '\r') atLineStart = true;
+                    length = append(length, b);
+                    mPosition++;
+                    continue;
+                }
+
+                if (b == '-' && atLineStart && byteAt(skipBlockComments(mPosition + 1)) == '-') {
+                    if (!isDirective()) {
+                        skipLineComment();
+                        continue;
+                    }
+                    // Keep the directive line as content; it ends at the line terminator.
+                    if (runNewlines >= 2 && runStart > 0) {
+                        return new String(mScratch, 0, runStart, UTF_8);
+                    }
+                    if (runStart == 0) length = 0;
+                    while (mPosition < mLimit) {
+                        b = mBuffer.get(mPosition);
+                        if (b == '\n' || b == '\r') break;
+                        length = append(length, b);
+                        mPosition++;
+                    }
+                    runStart = length;
+                    runNewlines = 0;
+                    atLineStart = false;
+                    continue;
+                }
+
+                // Content: a preceding whitespace run with two or more newlines ends a statement.
+                if (runNewlines >= 2 && runStart > 0) {
+                    return new String(mScratch, 0, runStart, UTF_8);
+                }
+                if (runStart == 0) {
+                    // Leading whitespace is dropped.
+                    length = 0;
+                }
+                length = append(length, b);
+                mPosition++;
+                runStart = length;
+                runNewlines = 0;
+                atLineStart = false;
+            }
+
+            return (runStart > 0) ? new String(mScratch, 0, runStart, UTF_8) : null;
+        }
+
+        private int append(int length, byte b) {
+            if (length == mScratch.length) {
+                mScratch = Arrays.copyOf(mScratch, length * 2);
+            }
+            mScratch[length] = b;
+            return length + 1;
+        }
+
+        private byte byteAt(int index) {
+            return (index < mLimit) ? mBuffer.get(index) : 0;
+        }
+
+        /**
+         * Returns true if the `--` comment at the current position starts with `@`.
+         */
+        private boolean isDirective() {
+            int index = mPosition + 2;
+            while (byteAt(index) == ' ' || byteAt(index) == '\t') index++;
+            return byteAt(index) == '@';
+        }
+
+        /**
+         * Skips a block comment at the current position if one is present and closed.
+         */
+        private boolean skipBlockComment() {
+            int end = skipBlockComments(mPosition);
+            if (end == mPosition) return false;
+            mPosition = end;
+            return true;
+        }
+
+        /**
+         * Returns the index following any closed block comments starting at `index`.
+         */
+        private int skipBlockComments(int index) {
+            while (index < mUnclosedFrom && byteAt(index) == '/' && byteAt(index + 1) == '*') {
+                int close = -1;
+                for (int i = index + 2; i + 1 < mLimit; i++) {
+                    if (mBuffer.get(i) == '*' && mBuffer.get(i + 1) == '/') {
+                        close = i;
+                        break;
+                    }
+                }
+                if (close == -1) {
+                    mUnclosedFrom = index;
+                    break;
+                }
+                index = close + 2;
+            }
+            return index;
+        }
+
+        /**
+         * Skips a line comment up to, but not including, its line terminator.
+         */
+        private void skipLineComment() {
+            while (mPosition < mLimit) {
+                byte b = mBuffer.get(mPosition);
+                if (b == '\n' || b == '\r') return;
+                if (b == '/' && skipBlockComment()) continue;
+                mPosition++;
+            }
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0x0B || b == '\f';
         }
     }
 
     /**
-     * Executes lists of statements.
+     * Overlaps tokenizing with execution across a list of migrations.  A producer task reads and
+     * tokenizes migrations in order on an Executor, handing statements to the executing thread
+     * through a bounded queue; at most `depth` statements are parsed ahead of execution.
+     *
+     * The executing thread calls start(), then execute() for each migration in the same order the
+     * Pipeline was created with, and must call close() when finished, including on failure.
+     *
+     * If the producer task has not started by the time the executing thread waits for it, for
+     * example because the Executor is busy with other tasks, the executing thread tokenizes the
+     * migrations itself.  It also does so if the Executor rejects the task or runs it on the
+     * executing thread, where the producer would block on the full queue.
      */
-    protected static class Execute {
-        private final static Set<String> COMMENT_PREFIXES = new HashSet<String>(
-                Arrays.asList("--"));
-        private final static Set<String> EXEC_PREFIXES = new HashSet<String>(
-                Arrays.asList("ALTER", "ANALYZE", "CREATE", "DELETE", "DROP", "INSERT", "UPDATE"));
-        private final static Set<String> QUERY_PREFIXES = new HashSet<String>(
-                Arrays.asList("PRAGMA"));
+    public static class Pipeline {
+        /**
+         * Time the executing thread waits for the producer task to start before tokenizing the
+         * migrations itself.
+         */
+        static final long PRODUCER_START_MILLIS = 10;
+
+        /**
+         * Queued before the statements of a migration whose header declares it resumable.
+         */
+        private static final Object RESUMABLE = new Object();
+
+        private static final int PENDING = 0;
+        private static final int PRODUCING = 1;
+        private static final int INLINE = 2;
+
+        private final List<Migration> mMigrations;
+        private final BlockingQueue<Object> mQueue;
+        private final AtomicInteger mState = new AtomicInteger(PENDING);
+        private volatile boolean mClosed;
+
+        // Progress through the migrations when the executing thread tokenizes them.
+        private int mInlineIndex;
+        private Tokenizer mInlineTokenizer;
+
+        public Pipeline(List<Migration> migrations, int depth) {
+            if (depth < 1) throw new IllegalArgumentException("Pipeline depth must be positive");
+            mMigrations = new ArrayList<Migration>(migrations);
+            mQueue = new ArrayBlockingQueue<Object>(depth);
+        }
+
+        /**
+         * Starts the producer task on the given Executor.
+         *
+         * @return `this` for chaining.
+         */
+        public Pipeline start(Executor executor) {
+            final Thread executing = Thread.currentThread();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (Thread.currentThread() == executing) {
+                            mState.compareAndSet(PENDING, INLINE);
+                        } else if (mState.compareAndSet(PENDING, PRODUCING)) {
+                            produce();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mState.compareAndSet(PENDING, INLINE);
+            }
+            return this;
+        }
 
         /**
-         * Returns true if the provided statement begins with a prefix from a given prefixes set.
+         * Tokenizes each migration in order, queueing its statements followed by the migration
+         * itself as an end marker, preceded by RESUMABLE if its header declares it resumable.
+         * CodeMigrations queue only the end marker.
+         */
+        private void produce() {
+            try {
+                for (Migration migration : mMigrations) {
+                    if (!(migration instanceof CodeMigration)) {
+                        Tokenizer tokenizer = tokenize(migration);
+                        if (tokenizer.isResumable() && !put(RESUMABLE)) return;
+                        String statement;
+                        while ((statement = tokenizer.next()) != null) {
+                            if (!put(statement)) return;
+                        }
+                    }
+                    if (!put(migration)) return;
+                }
+            } catch (Throwable t) {
+                put(new Failure(t));
+            }
+        }
+
+        private boolean put(Object item) {
+            if (mClosed) return false;
+            try {
+                mQueue.put(item);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Executes the next migration, consuming its statements from the queue.
+         *
+         * @param db        The database on which to execute the migration.
+         * @param migration The migration expected next, for verification.
+         */
+        public void execute(SQLiteDatabase db, Migration migration) throws IOException {
+            execute(new AndroidDatabase(db), migration, null, null, null);
+        }
+
+        /**
+         * Executes the next migration on a Database, passing each of its statements through an
+         * Interceptor and substituting its parameters as it is dequeued, and passing the
+         * CancellationToken to CodeMigrations.
          *
-         * @param prefixes
-         * @param statement
-         * @return
+         * @param db          The database on which to execute the migration.
+         * @param migration   The migration expected next, for verification.
+         * @param interceptor Interceptor for the migration and its statements, or `null`.
+         * @param token       CancellationToken for CodeMigrations, or `null`.
+         * @param resolver    ParameterResolver for the statements' parameters, or `null`.
+         */
+        void execute(Database db, Migration migration, Interceptor interceptor,
+                     CancellationToken token, ParameterResolver resolver) throws IOException {
+            if (interceptor != null) interceptor.beforeMigration(db, migration);
+            while (true) {
+                Object item = next(migration);
+                if (item instanceof String) {
+                    Execute.statement(db, (String) item, interceptor, resolver);
+                } else if (item == RESUMABLE) {
+                    if (interceptor != null) interceptor.onResumable(db);
+                } else if (item instanceof Failure) {
+                    Throwable cause = ((Failure) item).mCause;
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IOException("Failed to parse " + migration, cause);
+                } else if (item == migration) {
+                    if (migration instanceof CodeMigration) {
+                        ((CodeMigration) migration).execute(db, token);
+                    }
+                    return;
+                } else {
+                    throw new IllegalStateException("Pipeline out of order at " + migration);
+                }
+            }
+        }
+
+        /**
+         * Returns the next statement or end marker, from the producer task or, if it has not
+         * started, by tokenizing on the executing thread.
          */
-        private static boolean isPrefixMatch(Set<String> prefixes, String statement) {
-            String upper = statement.toUpperCase();
-            for (String prefix : prefixes) {
-                if (upper.startsWith(prefix)) {
-                    return true;
+        private Object next(Migration migration) throws IOException {
+            while (mState.get() != INLINE) {
+                Object item;
+                try {
+                    item = mQueue.poll(PRODUCER_START_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for " + migration);
                 }
+                if (item != null) return item;
+                mState.compareAndSet(PENDING, INLINE);
             }
-            return false;
+
+            while (true) {
+                if (mInlineTokenizer != null) {
+                    String statement = mInlineTokenizer.next();
+                    if (statement != null) return statement;
+                    mInlineTokenizer = null;
+                    return mMigrations.get(mInlineIndex++);
+                }
+                if (mInlineIndex == mMigrations.size()) {
+                    throw new IllegalStateException("Pipeline out of order at " + migration);
+                }
+                Migration upcoming = mMigrations.get(mInlineIndex);
+                if (upcoming instanceof CodeMigration) return mMigrations.get(mInlineIndex++);
+                mInlineTokenizer = tokenize(upcoming);
+                if (mInlineTokenizer.isResumable()) return RESUMABLE;
+            }
+        }
+
+        /**
+         * Stops the producer and releases queued statements.
+         */
+        public void close() {
+            mClosed = true;
+            mQueue.clear();
+        }
+
+        private static class Failure {
+            private final Throwable mCause;
+
+            Failure(Throwable cause) {
+                mCause = cause;
+            }
+        }
+    }
+
+    /**
+     * Observes migrations as they execute, and may take over the execution of their statements.
+     */
+    interface Interceptor {
+        /**
+         * Called before a migration's statements execute, or before a CodeMigration executes.
+         */
+        void beforeMigration(Database db, Migration migration) throws IOException;
+
+        /**
+         * Called after beforeMigration() and before the first statement of a migration whose
+         * header declares it resumable with `-- @resumable`.  The header is read while the
+         * migration is tokenized.
+         */
+        void onResumable(Database db) throws IOException;
+
+        /**
+         * Called before a classified statement executes.
+         *
+         * @return true if the statement was handled and must not be executed.
+         */
+        boolean beforeStatement(Database db, String statement, Verb verb) throws IOException;
+
+        /**
+         * Called after a statement executes, and after each slice of a chunked statement.
+         *
+         * @param lastRowId The highest rowid covered so far by a chunked statement, or NO_ROWID.
+         */
+        void afterStatement(Database db, String statement, Verb verb, long lastRowId)
+                throws IOException;
+
+        /**
+         * Called before a chunked statement executes its first slice.
+         *
+         * @return The rowid after which the statement resumes, or NO_ROWID to start from its
+         * first row.
+         */
+        long getChunkStart(Database db, String statement) throws IOException;
+    }
+
+    /**
+     * The leading keyword of a SQLite statement, which determines how it is executed.
+     */
+    public enum Verb {
+        ALTER(Mode.EXEC),
+        ANALYZE(Mode.EXEC),
+        ATTACH(Mode.EXEC),
+        BEGIN(Mode.EXEC),
+        COMMIT(Mode.EXEC),
+        CREATE(Mode.EXEC),
+        DELETE(Mode.EXEC),
+        DETACH(Mode.EXEC),
+        DROP(Mode.EXEC),
+        END(Mode.EXEC),
+        EXPLAIN(Mode.ITERATE),
+        INSERT(Mode.EXEC),
+        PRAGMA(Mode.QUERY),
+        REINDEX(Mode.EXEC),
+        RELEASE(Mode.EXEC),
+        REPLACE(Mode.EXEC),
+        ROLLBACK(Mode.EXEC),
+        SAVEPOINT(Mode.EXEC),
+        SELECT(Mode.ITERATE),
+        UPDATE(Mode.EXEC),
+        VACUUM(Mode.EXEC),
+        VALUES(Mode.ITERATE),
+        WITH(Mode.ITERATE);
+
+        /**
+         * How a statement is executed.
+         * <p><ul>
+         * <li>EXEC: Executed with execSQL(); the statement returns no rows.</li>
+         * <li>QUERY: Queried and stepped once; any rows are discarded.</li>
+         * <li>ITERATE: Queried and stepped to completion, for statements whose effects happen
+         * while rows are produced (e.g. SELECT calling functions, or WITH ... INSERT).</li>
+         * </ul></p>
+         */
+        public enum Mode {
+            EXEC,
+            QUERY,
+            ITERATE
+        }
+
+        // Verbs indexed by their initial letter, A-Z.
+        private static final Verb[][] BY_INITIAL = new Verb[26][];
+
+        static {
+            for (char initial = 'A'; initial <= 'Z'; initial++) {
+                List<Verb> verbs = new ArrayList<Verb>();
+                for (Verb verb : values()) {
+                    if (verb.name().charAt(0) == initial) verbs.add(verb);
+                }
+                BY_INITIAL[initial - 'A'] = verbs.toArray(new Verb[verbs.size()]);
+            }
+        }
+
+        private final Mode mMode;
+
+        Verb(Mode mode) {
+            mMode = mode;
+        }
+
+        public Mode getMode() {
+            return mMode;
+        }
+
+        /**
+         * Returns true if the verb begins or ends a transaction, which would break out of the
+         * transaction that migrations run in.  ROLLBACK TO is included, since Android treats any
+         * ROLLBACK as ending its transaction.  SAVEPOINT and RELEASE nest within the transaction
+         * and are not included.
+         */
+        public boolean isTransactionControl() {
+            return this == BEGIN || this == COMMIT || this == END || this == ROLLBACK;
         }
 
         /**
-         * Executes each statement in the statements list.  The actual SQLiteDatabase method used
-         * to execute each statement is determined by comparing the beginning of the statement to
-         * prefixes in the COMMENT_PREFIXES, EXEC_PREFIXES, and QUERY_PREFIXES sets.
+         * Returns the Verb of the statement's first keyword, or `null` if it is not a SQLite
+         * statement keyword.  Leading whitespace is skipped.  The keyword is compared in place
+         * without case conversion, so classifying allocates nothing.
+         */
+        public static Verb of(String statement) {
+            return of(statement, skipWhitespace(statement, 0));
+        }
+
+        static Verb of(String statement, int start) {
+            if (start >= statement.length()) return null;
+            char initial = statement.charAt(start);
+            if (initial >= 'a' && initial <= 'z') initial -= ('a' - 'A');
+            if (initial < 'A' || initial > 'Z') return null;
+
+            for (Verb verb : BY_INITIAL[initial - 'A']) {
+                String keyword = verb.name();
+                int end = start + keyword.length();
+                if (statement.regionMatches(true, start, keyword, 0, keyword.length())
+                        && (end == statement.length() || !isIdentifierChar(statement.charAt(end)))) {
+                    return verb;
+                }
+            }
+            return null;
+        }
+
+        static int skipWhitespace(String statement, int index) {
+            while (index < statement.length() && statement.charAt(index) <= ' ') index++;
+            return index;
+        }
+
+        private static boolean isIdentifierChar(char c) {
+            return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '$' || c > 0x7F;
+        }
+    }
+
+    /**
+     * Executes lists of statements.
+     */
+    protected static class Execute {
+        /**
+         * Stops a query after its first row.
+         */
+        private static final Database.RowHandler STOP = new Database.RowHandler() {
+            @Override
+            public boolean onRow(Database.Row row) {
+                return false;
+            }
+        };
+
+        /**
+         * Executes each statement in the statements list.  The actual Database method used to
+         * execute each statement is determined by the statement's Verb.
          *
          * @param db         The database on which to execute statements.
          * @param statements The list of statements to execute.
@@ -110,36 +883,148 @@ public class SQLParser {
          */
         public static void statements(SQLiteDatabase db, List<String> statements)
                 throws IOException, SQLException {
+            statements(new AndroidDatabase(db), statements);
+        }
+
+        /**
+         * Executes each statement in the statements list on a Database.
+         *
+         * @param db         The database on which to execute statements.
+         * @param statements The list of statements to execute.
+         * @throws IllegalArgumentException If a statement cannot be parsed.
+         */
+        public static void statements(Database db, List<String> statements) throws IOException {
             for (String statement : statements) {
-                statement = statement.trim();
+                statement(db, statement, null, null);
+            }
+        }
 
-                if (statement.isEmpty()) {
-                    // Skip empty statements.
-                    continue;
-                }
+        /**
+         * Executes each statement produced by the tokenizer as soon as it is emitted, so only one
+         * statement is held in memory at a time.
+         *
+         * @param db        The database on which to execute statements.
+         * @param tokenizer The source of statements to execute.
+         * @throws IllegalArgumentException If a statement cannot be parsed.
+         */
+        public static void statements(SQLiteDatabase db, Tokenizer tokenizer)
+                throws IOException, SQLException {
+            statements(new AndroidDatabase(db), tokenizer);
+        }
 
-                if (isPrefixMatch(COMMENT_PREFIXES, statement)) {
-                    // Skip comments.
-                    continue;
-                }
+        /**
+         * Executes each statement produced by the tokenizer on a Database.
+         *
+         * @param db        The database on which to execute statements.
+         * @param tokenizer The source of statements to execute.
+         * @throws IllegalArgumentException If a statement cannot be parsed.
+         */
+        public static void statements(Database db, Tokenizer tokenizer) throws IOException {
+            statements(db, tokenizer, null, null);
+        }
 
-                if (isPrefixMatch(EXEC_PREFIXES, statement)) {
-                    // Execute.
-                    db.execSQL(statement);
-                    continue;
-                }
+        /**
+         * Executes each statement produced by the tokenizer on a Database, passing each through
+         * an Interceptor and substituting its parameters as it is read, so that no more than one
+         * statement is held at a time.
+         *
+         * @param db          The database on which to execute statements.
+         * @param tokenizer   The source of statements to execute.
+         * @param interceptor Interceptor for each statement, or `null`.
+         * @param resolver    ParameterResolver for the statements' parameters, or `null`.
+         * @throws IllegalArgumentException If a statement cannot be parsed.
+         */
+        static void statements(Database db, Tokenizer tokenizer, Interceptor interceptor,
+                               ParameterResolver resolver) throws IOException {
+            if (interceptor != null && tokenizer.isResumable()) interceptor.onResumable(db);
+            String statement;
+            while ((statement = tokenizer.next()) != null) {
+                statement(db, statement, interceptor, resolver);
+            }
+        }
 
-                if (isPrefixMatch(QUERY_PREFIXES, statement)) {
-                    // Query.
-                    Cursor cursor = db.rawQuery(statement, null);
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                    continue;
-                }
+        /**
+         * Executes a single statement.
+         *
+         * @param db        The database on which to execute the statement.
+         * @param statement The statement to execute.
+         * @throws IllegalArgumentException If the statement cannot be parsed.
+         */
+        public static void statement(SQLiteDatabase db, String statement)
+                throws IOException, SQLException {
+            statement(new AndroidDatabase(db), statement);
+        }
 
-                throw new IllegalArgumentException("Cannot parse statement: " + statement);
+        /**
+         * Executes a single statement on a Database.
+         *
+         * @param db        The database on which to execute the statement.
+         * @param statement The statement to execute.
+         * @throws IllegalArgumentException If the statement cannot be parsed.
+         */
+        public static void statement(Database db, String statement) throws IOException {
+            statement(db, statement, null, null);
+        }
+
+        /**
+         * Executes a single statement on a Database unless the Interceptor handles it.  A
+         * statement preceded by a `-- @chunk N` directive is an UPDATE or DELETE executed in
+         * rowid-ordered slices of N rows, with the Interceptor notified after each slice.  Other
+         * directives are ignored.
+         *
+         * @param db          The database on which to execute the statement.
+         * @param statement   The statement to execute.
+         * @param interceptor Interceptor for the statement, or `null`.
+         * @param resolver    ParameterResolver for the statement's parameters, or `null`.
+         * @throws IllegalArgumentException If the statement cannot be parsed.
+         */
+        static void statement(Database db, String statement, Interceptor interceptor,
+                              ParameterResolver resolver) throws IOException {
+            ParsedStatement parsed = ParsedStatement.parse(statement);
+            if (parsed != null) statement(db, parsed, interceptor, resolver);
+        }
+
+        /**
+         * Executes a parsed statement unless the Interceptor handles it, substituting its
+         * parameters for the database first.
+         *
+         * @param db          The database on which to execute the statement.
+         * @param parsed      The statement to execute.
+         * @param interceptor Interceptor for the statement, or `null`.
+         * @param resolver    ParameterResolver for the statement's parameters, or `null` to
+         *                    execute the statement as written.
+         */
+        static void statement(Database db, ParsedStatement parsed, Interceptor interceptor,
+                              ParameterResolver resolver) throws IOException {
+            String statement = parsed.resolve(db, resolver);
+            Verb verb = parsed.mVerb;
+            if (interceptor != null && interceptor.beforeStatement(db, statement, verb)) {
+                // Handled by the interceptor.
+                return;
+            }
+
+            if (parsed.mChunkRows > 0) {
+                ChunkedStatement.parse(statement, verb).execute(db, parsed.mChunkRows, interceptor);
+                return;
             }
+
+            switch (verb.getMode()) {
+                case EXEC:
+                    db.execSQL(statement, null);
+                    break;
+
+                case QUERY:
+                    // Step once so the statement runs, then discard any rows.
+                    db.query(statement, null, STOP);
+                    break;
+
+                case ITERATE:
+                    // Step through every row so the whole statement runs.
+                    db.query(statement, null, null);
+                    break;
+            }
+
+            if (interceptor != null) interceptor.afterStatement(db, statement, verb, NO_ROWID);
         }
     }
-}
\ No newline at end of file
+}
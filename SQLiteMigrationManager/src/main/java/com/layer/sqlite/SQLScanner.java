@@ -0,0 +1,113 @@
+package com.layer.sqlite;
+
+/**
+ * Reads the words of a single SQL statement, skipping whitespace and comments.  Identifiers and
+ * keywords are returned as written, quoted identifiers are returned unquoted, string literals are
+ * returned with their quotes, and any other character is returned on its own.
+ */
+class SQLScanner {
+    private final String mSql;
+    private int mPosition;
+
+    SQLScanner(String sql) {
+        mSql = sql;
+    }
+
+    /**
+     * Returns the next word, or `null` at the end of the statement.
+     */
+    String next() {
+        skipWhitespaceAndComments();
+        if (mPosition >= mSql.length()) return null;
+
+        char c = mSql.charAt(mPosition);
+        switch (c) {
+            case '"':
+            case '`':
+                return quoted(c, c);
+            case '[':
+                return quoted('[', ']');
+            case '\'': {
+                int start = mPosition;
+                quoted('\'', '\'');
+                return mSql.substring(start, mPosition);
+            }
+        }
+
+        int start = mPosition;
+        while (mPosition < mSql.length() && isWordChar(mSql.charAt(mPosition))) mPosition++;
+        if (mPosition == start) mPosition++;
+        return mSql.substring(start, mPosition);
+    }
+
+    /**
+     * Consumes the next word and returns true if it matches the keyword, ignoring case; otherwise
+     * consumes nothing and returns false.
+     */
+    boolean nextIs(String keyword) {
+        int position = mPosition;
+        String word = next();
+        if (word != null && word.equalsIgnoreCase(keyword)) return true;
+        mPosition = position;
+        return false;
+    }
+
+    /**
+     * Returns the index of the next unread character.
+     */
+    int position() {
+        return mPosition;
+    }
+
+    private String quoted(char open, char close) {
+        StringBuilder word = new StringBuilder();
+        mPosition++;
+        while (mPosition < mSql.length()) {
+            char c = mSql.charAt(mPosition++);
+            if (c == close) {
+                if (close != ']' && mPosition < mSql.length() && mSql.charAt(mPosition) == close) {
+                    // Doubled quote
+                    word.append(c);
+                    mPosition++;
+                    continue;
+                }
+                break;
+            }
+            word.append(c);
+        }
+        return word.toString();
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (mPosition < mSql.length()) {
+            char c = mSql.charAt(mPosition);
+            if (c <= ' ') {
+                mPosition++;
+            } else if (mSql.startsWith("--", mPosition)) {
+                int end = mSql.indexOf('\n', mPosition);
+                mPosition = (end == -1) ? mSql.length() : end + 1;
+            } else if (mSql.startsWith("/*", mPosition)) {
+                int end = mSql.indexOf("*/", mPosition + 2);
+                mPosition = (end == -1) ? mSql.length() : end + 2;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '_' || c == '$' || c > 0x7F;
+    }
+
+    /**
+     * Returns true if `sql` contains `word`, ignoring case.
+     */
+    static boolean containsIgnoreCase(String sql, String word) {
+        int last = sql.length() - word.length();
+        for (int i = 0; i <= last; i++) {
+            if (sql.regionMatches(true, i, word, 0, word.length())) return true;
+        }
+        return false;
+    }
+}
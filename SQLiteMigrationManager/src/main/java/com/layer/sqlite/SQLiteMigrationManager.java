@@ -7,16 +7,21 @@
 package com.layer.sqlite;
 
 import android.content.ContentValues;
-import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.layer.sqlite.database.AndroidDatabase;
+import com.layer.sqlite.database.Database;
 import com.layer.sqlite.datasource.DataSource;
+import com.layer.sqlite.migrations.CancellationToken;
+import com.layer.sqlite.migrations.CodeMigration;
 import com.layer.sqlite.migrations.Migration;
+import com.layer.sqlite.migrations.MigrationCancelledException;
 import com.layer.sqlite.schema.Schema;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -24,9 +29,17 @@ import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 public class SQLiteMigrationManager {
     public static final long NO_VERSIONS = -1;
+    public static final long NO_BUDGET = -1;
 
     /**
      * `BootstrapAction` tells SQLiteMigrationManager which action to take when no
@@ -45,9 +58,143 @@ public class SQLiteMigrationManager {
     }
 
     /**
-     * DataSources from which to find Schemas and Migrations
+     * `ForeignKeyMode` tells SQLiteMigrationManager how to enforce foreign keys while manageSchema()
+     * applies Migrations.  It only has an effect when `PRAGMA foreign_keys` is enabled.
+     * <p><ul>
+     * <li>ENFORCE: Check each statement immediately, as SQLite normally does.</li>
+     * <li>DEFER: Enable `PRAGMA defer_foreign_keys` for the migration transaction, so constraints
+     * are checked once at the end rather than after every statement.</li>
+     * <li>DISABLE: Disable `PRAGMA foreign_keys` for the migration transaction, and restore it
+     * afterwards.  No foreign key actions (such as ON DELETE CASCADE) fire during migration.</li>
+     * </ul></p>
+     * With DEFER and DISABLE, `PRAGMA foreign_key_check` runs after the last Migration and before
+     * every earlier commit, such as a chunked statement's checkpoints, and a
+     * ForeignKeyViolationException rolls back the batch to its last commit if any violations are
+     * found.
+     * <p>
+     * `PRAGMA foreign_key_check` requires SQLite 3.7.16 and `PRAGMA defer_foreign_keys` requires
+     * SQLite 3.8.0, newer than the SQLite of some supported Android versions.  On older SQLite,
+     * DISABLE and DEFER fall back to ENFORCE.
+     */
+    public enum ForeignKeyMode {
+        ENFORCE,
+        DEFER,
+        DISABLE
+    }
+
+    /**
+     * `StatisticsRefresh` tells SQLiteMigrationManager how to refresh query planner statistics for
+     * the tables written by Migrations applied in manageSchema().
+     * <p><ul>
+     * <li>NONE: Do not refresh statistics.</li>
+     * <li>ANALYZE: Run a full ANALYZE on each table written.</li>
+     * <li>APPROXIMATE: Run ANALYZE on each table written, bounded by `PRAGMA analysis_limit` as
+     * `PRAGMA optimize` does.</li>
+     * </ul></p>
+     * If a CodeMigration other than a DelimitedMigration was applied, `PRAGMA optimize` also runs,
+     * since the tables it wrote are unknown.
+     */
+    public enum StatisticsRefresh {
+        NONE,
+        ANALYZE,
+        APPROXIMATE
+    }
+
+    /**
+     * Maximum number of violations recorded in a ForeignKeyViolationException.
+     */
+    private static final int MAX_REPORTED_VIOLATIONS = 100;
+
+    // A SQLiteMigrationManager may be shared by threads migrating different databases.  Its
+    // configuration is held in volatile fields read without locking, and each batch reads every
+    // setting once.  Settings made of two fields are written second-field-first and read
+    // first-field-first, so a reader never sees the first field's new value with a stale second.
+
+    /**
+     * DataSources from which to find Schemas and Migrations, in the order they were added.  An
+     * unmodifiable snapshot, replaced as a whole by addDataSource() so that readers iterate it
+     * without locking.
+     */
+    private volatile Set<DataSource> mDataSources = Collections.emptySet();
+
+    /**
+     * Executor on which DataSources are queried for Migrations, or `null` to query serially on
+     * the calling thread.
+     */
+    private volatile Executor mDiscoveryExecutor;
+
+    /**
+     * Executor on which pending Migrations are read and tokenized ahead of execution, or `null`
+     * to read and execute each Migration in turn on the calling thread.
+     */
+    private volatile Executor mPipelineExecutor;
+    private volatile int mPipelineDepth;
+
+    /**
+     * Parsed SQL Migrations shared by manageSchema() calls, or `null` to read and parse each
+     * Migration every time it is applied.
+     */
+    private volatile StatementProgram.Cache mProgramCache;
+
+    /**
+     * Resolves `${name}` parameters in SQL Migrations for each database, or `null` to execute
+     * statements as written.
+     */
+    private volatile SQLParser.ParameterResolver mParameterResolver;
+
+    /**
+     * Whether manageSchema() defers non-unique index creation until after data loads.
+     */
+    private volatile boolean mDeferIndexes;
+
+    /**
+     * How manageSchema() enforces foreign keys while Migrations are applied.
+     */
+    private volatile ForeignKeyMode mForeignKeyMode = ForeignKeyMode.ENFORCE;
+
+    /**
+     * How manageSchema() refreshes statistics for written tables, and the Executor to refresh on,
+     * or `null` to refresh on the calling thread.
+     */
+    private volatile StatisticsRefresh mStatisticsRefresh = StatisticsRefresh.NONE;
+    private volatile Executor mStatisticsExecutor;
+
+    /**
+     * Reclaims space freed by manageSchema() batches, or `null` to leave free pages in place.
+     */
+    private volatile IncrementalVacuum mIncrementalVacuum;
+
+    /**
+     * Waits out and measures lock contention in manageSchema(), or `null` to fail on the first
+     * SQLiteDatabaseLockedException or DatabaseLockedException.
+     */
+    private volatile ContentionPolicy mContentionPolicy;
+
+    /**
+     * Whether manageSchema() holds a MigrationLock on the database while it runs.
      */
-    private final Set<DataSource> mDataSources = new HashSet<DataSource>();
+    private volatile boolean mMigrationLock;
+
+    /**
+     * Current versions of the databases this manager has checked.
+     */
+    private final VersionCache mVersionCache = new VersionCache();
+
+    /**
+     * Versions available from a snapshot of the DataSources, or `null` until isDowngrade() needs
+     * them.  Replaced when a DataSource is added.
+     */
+    private volatile Catalog mCatalog;
+
+    private static final class Catalog {
+        final Set<DataSource> mDataSources;
+        final Set<Long> mVersions;
+
+        Catalog(Set<DataSource> dataSources, Set<Long> versions) {
+            mDataSources = dataSources;
+            mVersions = versions;
+        }
+    }
 
     /**
      * Applies pending Migrations in order.  If a migration throws an SQLException, the process is
@@ -63,48 +210,398 @@ public class SQLiteMigrationManager {
      * @see com.layer.sqlite.SQLiteMigrationManager.BootstrapAction
      */
     public int manageSchema(SQLiteDatabase db, BootstrapAction action) throws IOException, URISyntaxException {
+        return manageSchema(db, action, NO_BUDGET).getApplied();
+    }
+
+    /**
+     * Applies pending Migrations in order until the time budget is spent, and commits the
+     * Migrations applied so far.  The budget is checked between Migrations, so at least one
+     * pending Migration is always started, and after each checkpoint of a chunked or resumable
+     * Migration, which stops it part way through to be resumed from the checkpoint; any other
+     * Migration started runs to completion and may overrun the budget.  The returned
+     * MigrationResult reports whether Migrations remain, and can resume them later, for example
+     * on a background thread or at the next launch.
+     *
+     * @param db           Database on which to operate.
+     * @param action       NoSchemaAction action to take when hasMigrationsTable() returns false.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     NO_BUDGET to apply all pending Migrations.
+     * @return The MigrationResult of this batch.
+     * @see #manageSchema(android.database.sqlite.SQLiteDatabase, BootstrapAction)
+     */
+    public MigrationResult manageSchema(SQLiteDatabase db, BootstrapAction action, long budgetMillis)
+            throws IOException, URISyntaxException {
+        return manageSchema(new AndroidDatabase(db), action, budgetMillis, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Applies pending Migrations in order until the time budget is spent or the token is
+     * cancelled.  Each Migration is committed as soon as it is applied, so cancellation only rolls
+     * back the Migration in progress, to its start or to its last checkpoint if it is chunked or
+     * resumable.  The token is checked between Migrations, statements and chunks, and between the
+     * batches of CodeMigrations that support cancellation.  A cancelled batch returns normally
+     * with a cancelled MigrationResult.
+     *
+     * @param db           Database on which to operate.
+     * @param action       NoSchemaAction action to take when hasMigrationsTable() returns false.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     NO_BUDGET to apply all pending Migrations.
+     * @param token        CancellationToken to check, or `null` to apply the batch atomically.
+     * @return The MigrationResult of this batch.
+     * @see #manageSchema(android.database.sqlite.SQLiteDatabase, BootstrapAction, long)
+     */
+    public MigrationResult manageSchema(SQLiteDatabase db, BootstrapAction action, long budgetMillis,
+                                        CancellationToken token)
+            throws IOException, URISyntaxException {
+        return manageSchema(new AndroidDatabase(db), action, budgetMillis, Long.MAX_VALUE, token);
+    }
+
+    /**
+     * Applies pending Migrations in order on a Database, which may be an AndroidDatabase or a
+     * Database off-device, such as a JdbcDatabase.
+     *
+     * @param db     Database on which to operate.
+     * @param action NoSchemaAction action to take when hasMigrationsTable() returns false.
+     * @return The number of migrations applied.
+     * @see #manageSchema(com.layer.sqlite.database.Database, BootstrapAction, long)
+     */
+    public int manageSchema(Database db, BootstrapAction action)
+            throws IOException, URISyntaxException {
+        return manageSchema(db, action, NO_BUDGET).getApplied();
+    }
+
+    /**
+     * Applies pending Migrations in order on a Database until the time budget is spent, and
+     * commits the Migrations applied so far, as manageSchema(SQLiteDatabase, BootstrapAction,
+     * long) does.  Every Database is migrated by the same engine with every setting of this
+     * manager, except that an IncrementalVacuum only reclaims space on an AndroidDatabase.
+     *
+     * @param db           Database on which to operate.
+     * @param action       NoSchemaAction action to take when hasMigrationsTable() returns false.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     NO_BUDGET to apply all pending Migrations.
+     * @return The MigrationResult of this batch.
+     */
+    public MigrationResult manageSchema(Database db, BootstrapAction action, long budgetMillis)
+            throws IOException, URISyntaxException {
+        return manageSchema(db, action, budgetMillis, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Applies pending Migrations in order on a Database until the time budget is spent or the
+     * token is cancelled, as manageSchema(SQLiteDatabase, BootstrapAction, long,
+     * CancellationToken) does.
+     *
+     * @param db           Database on which to operate.
+     * @param action       NoSchemaAction action to take when hasMigrationsTable() returns false.
+     * @param budgetMillis Milliseconds after which no further Migrations are started, or
+     *                     NO_BUDGET to apply all pending Migrations.
+     * @param token        CancellationToken to check, or `null` to apply the batch atomically.
+     * @return The MigrationResult of this batch.
+     */
+    public MigrationResult manageSchema(Database db, BootstrapAction action, long budgetMillis,
+                                        CancellationToken token)
+            throws IOException, URISyntaxException {
+        return manageSchema(db, action, budgetMillis, Long.MAX_VALUE, token);
+    }
+
+    /**
+     * Applies pending Migrations now through the last CRITICAL one, and queues the rest on the
+     * Executor.  Migrations are always applied in version order, so lower-priority Migrations
+     * with lower versions than a CRITICAL one are applied now too.  The queued task then applies
+     * the remaining Migrations one priority tier at a time, committing through the last HIGH
+     * Migration first, then through the last NORMAL, then the rest, so a Migration is only
+     * delayed by Migrations that are more urgent or that precede it.
+     *
+     * @param db       Database on which to operate.
+     * @param action   NoSchemaAction action to take when hasMigrationsTable() returns false.
+     * @param executor Executor on which to apply non-critical Migrations.
+     * @return A Future for the number of Migrations applied on the Executor.
+     * @see com.layer.sqlite.migrations.Migration.Priority
+     */
+    public Future<Integer> scheduleSchema(SQLiteDatabase db, BootstrapAction action,
+                                          Executor executor) throws IOException, URISyntaxException {
+        return scheduleSchema(new AndroidDatabase(db), action, executor);
+    }
+
+    /**
+     * Applies pending Migrations on a Database now through the last CRITICAL one, and queues the
+     * rest on the Executor, as scheduleSchema(SQLiteDatabase, BootstrapAction, Executor) does.
+     * The Database is used by the Executor's task after this returns, so it must not be used by
+     * other threads until the returned Future completes.
+     *
+     * @param db       Database on which to operate.
+     * @param action   NoSchemaAction action to take when hasMigrationsTable() returns false.
+     * @param executor Executor on which to apply non-critical Migrations.
+     * @return A Future for the number of Migrations applied on the Executor.
+     */
+    public Future<Integer> scheduleSchema(final Database db, final BootstrapAction action,
+                                          Executor executor)
+            throws IOException, URISyntaxException {
+        if (executor == null) throw new IllegalArgumentException("Executor is null");
+
+        // Find the last pending version at each priority or above.
+        Migration.Priority[] priorities = Migration.Priority.values();
+        final long[] throughVersions = new long[priorities.length];
+        Arrays.fill(throughVersions, NO_VERSIONS);
+        for (Migration migration : getPendingMigrations(db)) {
+            int ordinal = migration.getPriority().ordinal();
+            for (int i = ordinal; i < priorities.length; i++) {
+                throughVersions[i] = Math.max(throughVersions[i], migration.getVersion());
+            }
+        }
+
+        // Critical migrations, and any preceding them, are applied now.
+        final int critical = Migration.Priority.CRITICAL.ordinal();
+        manageSchema(db, action, NO_BUDGET, throughVersions[critical], null);
+
+        FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int numApplied = 0;
+                long appliedThrough = throughVersions[critical];
+                for (int i = critical + 1; i < throughVersions.length; i++) {
+                    if (throughVersions[i] <= appliedThrough) continue;
+                    numApplied += manageSchema(db, action, NO_BUDGET, throughVersions[i], null)
+                            .getApplied();
+                    appliedThrough = throughVersions[i];
+                }
+                return numApplied;
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Applies pending Migrations with versions up to `throughVersion` within the time budget,
+     * committing each one separately if a CancellationToken is given.  Attempts that fail on the
+     * lock are retried as the ContentionPolicy allows, within the MigrationLock if it is enabled.
+     */
+    private MigrationResult manageSchema(Database db, BootstrapAction action, long budgetMillis,
+                                         long throughVersion, CancellationToken token)
+            throws IOException, URISyntaxException {
+        if (budgetMillis < 0 && budgetMillis != NO_BUDGET) {
+            throw new IllegalArgumentException("Budget is negative: " + budgetMillis);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
         if (db == null) throw new IllegalArgumentException("Database is null");
         if (!db.isOpen()) throw new IllegalArgumentException("Database is not open: " + db);
         if (db.isReadOnly()) throw new IllegalArgumentException("Database is read only: " + db);
 
-        int numApplied = 0;
-
-        // Begin schema transaction.
-        db.beginTransaction();
+        ContentionPolicy contentionPolicy = mContentionPolicy;
+        MigrationLock migrationLock = mMigrationLock
+                ? MigrationLock.acquire(db, contentionPolicy) : null;
         try {
-            // Bootstrap if no `schema_migrations` is present.
-            if (!hasMigrationsTable(db)) {
-                switch (action) {
-                    case APPLY_SCHEMA:
-                        applySchema(db);
-                        break;
-                    case CREATE_MIGRATIONS_TABLE:
-                        createMigrationsTable(db);
-                        break;
-                    case NONE:
-                    default:
-                        break;
+            if (contentionPolicy == null) {
+                return attemptSchema(db, action, budgetMillis, deadline, throughVersion, token,
+                        null, new int[1]);
+            }
+            long previousBusyTimeout = contentionPolicy.applyBusyTimeout(db);
+            try {
+                // Migrations committed by failed attempts are not pending for the next one.
+                int retriedApplied = 0;
+                int[] committed = new int[1];
+                for (int retry = 1; ; retry++) {
+                    long start = System.nanoTime();
+                    committed[0] = 0;
+                    try {
+                        MigrationResult result = attemptSchema(db, action, budgetMillis,
+                                deadline, throughVersion, token, contentionPolicy, committed);
+                        if (retriedApplied == 0) return result;
+                        return new MigrationResult(this, action,
+                                retriedApplied + result.getApplied(), result.getRemaining(),
+                                result.isCancelled());
+                    } catch (RuntimeException e) {
+                        if (!ContentionPolicy.isLocked(e)) throw e;
+                        // The attempt rolled back to its last commit; retry from there.
+                        retriedApplied += committed[0];
+                        contentionPolicy.onLocked(e, retry, System.nanoTime() - start);
+                    }
                 }
+            } finally {
+                contentionPolicy.restoreBusyTimeout(db, previousBusyTimeout);
             }
+        } finally {
+            if (migrationLock != null) migrationLock.release();
+        }
+    }
+
+    /**
+     * Makes one attempt at applying pending Migrations, rolling back to the last commit if it
+     * fails.
+     *
+     * @param committed Receives the number of Migrations committed before a failure.
+     */
+    private MigrationResult attemptSchema(Database db, BootstrapAction action,
+                                          long budgetMillis, long deadline, long throughVersion,
+                                          CancellationToken token,
+                                          ContentionPolicy contentionPolicy, int[] committed)
+            throws IOException, URISyntaxException {
+        int numApplied = 0;
+        int numRemaining = 0;
+        boolean cancelled = false;
+        boolean budgetSpent = false;
+
+        // Read the configuration once, since it may be changed by other threads.
+        ForeignKeyMode foreignKeyMode = mForeignKeyMode;
+        IncrementalVacuum incrementalVacuum = (db instanceof AndroidDatabase)
+                ? mIncrementalVacuum : null;
+        Executor pipelineExecutor = mPipelineExecutor;
+        int pipelineDepth = mPipelineDepth;
+        StatementProgram.Cache programCache = mProgramCache;
+        SQLParser.ParameterResolver parameterResolver = mParameterResolver;
 
-            // Apply Migrations.
-            for (Migration migration : getPendingMigrations(db)) {
-                SQLParser.execute(db, migration);
-                insertVersion(db, migration.getVersion());
-                numApplied++;
+        // Foreign key enforcement can only be changed outside of a transaction.
+        boolean checkForeignKeys = foreignKeyMode != ForeignKeyMode.ENFORCE
+                && isForeignKeysEnabled(db) && isSupported(db, foreignKeyMode);
+        boolean restoreForeignKeys = false;
+        if (checkForeignKeys && foreignKeyMode == ForeignKeyMode.DISABLE) {
+            db.execSQL("PRAGMA foreign_keys = OFF", null);
+            restoreForeignKeys = true;
+        }
+
+        long freePagesBefore = (incrementalVacuum != null) ? incrementalVacuum.beforeMigration(
+                ((AndroidDatabase) db).getSQLiteDatabase(), hasMigrationsTable(db)) : 0;
+        TableTracker tableTracker = (mStatisticsRefresh != StatisticsRefresh.NONE)
+                ? new TableTracker() : null;
+
+        try {
+            // Begin schema transaction.
+            if (contentionPolicy != null) {
+                contentionPolicy.beginTransaction(db);
+            } else {
+                db.beginTransaction();
             }
+            try {
+                // Deferral resets automatically when the transaction ends.
+                if (checkForeignKeys && foreignKeyMode == ForeignKeyMode.DEFER) {
+                    db.execSQL("PRAGMA defer_foreign_keys = ON", null);
+                }
+
+                // Bootstrap if no `schema_migrations` is present.
+                if (!hasMigrationsTable(db)) {
+                    switch (action) {
+                        case APPLY_SCHEMA:
+                            applySchema(db);
+                            break;
+                        case CREATE_MIGRATIONS_TABLE:
+                            createMigrationsTable(db);
+                            break;
+                        case NONE:
+                        default:
+                            break;
+                    }
+                }
+
+                // Apply Migrations, from parsed programs if they fit the program cache, or else
+                // streamed statement by statement, tokenizing ahead on the pipeline executor if
+                // one is set and no cache is.
+                List<Migration> pendingMigrations = getPendingMigrations(db);
+                SQLParser.Pipeline pipeline = null;
+                if (programCache == null && pipelineExecutor != null
+                        && !pendingMigrations.isEmpty()) {
+                    pipeline = new SQLParser.Pipeline(pendingMigrations, pipelineDepth)
+                            .start(pipelineExecutor);
+                }
+                IndexDeferral indexDeferral = mDeferIndexes ? new IndexDeferral() : null;
+                MigrationProgress progress = new MigrationProgress(db, indexDeferral,
+                        checkForeignKeys,
+                        checkForeignKeys && foreignKeyMode == ForeignKeyMode.DEFER,
+                        contentionPolicy);
+                if (budgetMillis != NO_BUDGET) progress.setDeadline(deadline);
+                SQLParser.Interceptor interceptor = new InterceptorChain()
+                        .add(progress)
+                        .add((token != null) ? new CancellationCheck(token) : null)
+                        .add(tableTracker)
+                        .add(indexDeferral)
+                        .simplify();
+                try {
+                    for (Migration migration : pendingMigrations) {
+                        if (migration.getVersion() > throughVersion) break;
+
+                        // Stop at a migration boundary once the budget is spent.
+                        if (budgetMillis != NO_BUDGET && numApplied > 0
+                                && System.nanoTime() - deadline >= 0) {
+                            break;
+                        }
+                        StatementProgram program = (programCache != null
+                                && !(migration instanceof CodeMigration))
+                                ? programCache.get(migration) : null;
+                        if (program != null) {
+                            program.execute(db, migration, interceptor, parameterResolver);
+                        } else if (pipeline != null) {
+                            pipeline.execute(db, migration, interceptor, token, parameterResolver);
+                        } else {
+                            SQLParser.execute(db, migration, interceptor, token,
+                                    parameterResolver);
+                        }
+                        insertVersion(db, migration.getVersion());
+                        progress.afterMigration(db);
+                        numApplied++;
 
-            // Set schema transaction successful.
-            db.setTransactionSuccessful();
+                        // Commit each migration so that cancellation keeps the ones applied.
+                        if (token != null) {
+                            progress.commit(db);
+                        }
+                    }
+                    if (indexDeferral != null) indexDeferral.flush(db);
+                } catch (MigrationCancelledException e) {
+                    // Roll back the migration in progress when the transaction ends.
+                    cancelled = true;
+                } catch (MigrationProgress.BudgetSpentException e) {
+                    // The migration in progress stopped at a checkpoint, leaving nothing to commit.
+                    budgetSpent = true;
+                } finally {
+                    numRemaining = pendingMigrations.size() - numApplied;
+                    committed[0] = progress.getCommitted();
+                    if (pipeline != null) pipeline.close();
+                }
+
+                if (!cancelled && !budgetSpent) {
+                    // Check all constraints once, before committing.
+                    if (checkForeignKeys) checkForeignKeys(db);
+
+                    // Set schema transaction successful.
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                // End the outer transaction, unless a checkpoint failed to begin the next one.
+                if (db.inTransaction()) db.endTransaction();
+                invalidateVersion(db);
+            }
         } finally {
-            // End the outer transaction.
-            db.endTransaction();
+            if (restoreForeignKeys) db.execSQL("PRAGMA foreign_keys = ON", null);
         }
         validateDbReady(db, false);
-        return numApplied;
+
+        // Refresh planner statistics for the tables the batch wrote.
+        if (tableTracker != null && numApplied > 0) refreshStatistics(db, tableTracker);
+
+        // Reclaim pages freed by the batch in the background.
+        if (incrementalVacuum != null && numApplied > 0) {
+            incrementalVacuum.afterMigration(((AndroidDatabase) db).getSQLiteDatabase(),
+                    freePagesBefore);
+        }
+        return new MigrationResult(this, action, numApplied, numRemaining, cancelled);
     }
 
-    private static void validateDbReady(SQLiteDatabase db, boolean inTransaction) {
+    private void refreshStatistics(final Database db, final TableTracker tableTracker) {
+        final boolean approximate = (mStatisticsRefresh == StatisticsRefresh.APPROXIMATE);
+        Executor executor = mStatisticsExecutor;
+        if (executor == null) {
+            tableTracker.refresh(db, approximate);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (db.isOpen()) tableTracker.refresh(db, approximate);
+            }
+        });
+    }
+
+    private static void validateDbReady(Database db, boolean inTransaction) {
         if (db == null) throw new IllegalArgumentException("Database is null");
         if (!db.isOpen()) throw new IllegalArgumentException("Database is not open: " + db);
         if (db.isReadOnly()) throw new IllegalArgumentException("Database is read only: " + db);
@@ -118,15 +615,239 @@ public class SQLiteMigrationManager {
 
     /**
      * Adds a DataSource to the set of available sources for providing Schema and Migrations.
+     * DataSources are consulted in the order they were added.  Safe to call while other threads
+     * use this SQLiteMigrationManager; calls already in progress keep the DataSources they
+     * started with.
      *
      * @param dataSources DataSources to add to the set of managed sources.
      * @return `this` for chaining.
      */
-    public SQLiteMigrationManager addDataSource(DataSource... dataSources) {
-        mDataSources.addAll(Arrays.asList(dataSources));
+    public synchronized SQLiteMigrationManager addDataSource(DataSource... dataSources) {
+        Set<DataSource> copy = new LinkedHashSet<DataSource>(mDataSources);
+        copy.addAll(Arrays.asList(dataSources));
+        mDataSources = Collections.unmodifiableSet(copy);
+        return this;
+    }
+
+    /**
+     * Sets the Executor on which getMigrations() queries DataSources.  When set and more than one
+     * DataSource is present, each DataSource is queried in its own task so their I/O overlaps,
+     * and the calling thread waits for all of them before merging the results.
+     *
+     * @param executor Executor for DataSource discovery, or `null` to query serially.
+     * @return `this` for chaining.
+     */
+    public SQLiteMigrationManager setDiscoveryExecutor(Executor executor) {
+        mDiscoveryExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Enables pipelined execution in manageSchema().  A task on the given Executor reads and
+     * tokenizes upcoming Migrations while the calling thread executes statements, so reading and
+     * parsing overlap with SQLite writes.  At most `depth` statements are parsed ahead of
+     * execution.  If the Executor does not start the task promptly, runs it on the calling thread
+     * or rejects it, the calling thread tokenizes the Migrations itself, so any Executor is safe
+     * to share.
+     *
+     * @param executor Executor for reading and tokenizing, or `null` to disable pipelining.
+     * @param depth    Maximum number of statements parsed ahead of execution.
+     * @return `this` for chaining.
+     */
+    public SQLiteMigrationManager setPipeline(Executor executor, int depth) {
+        if (executor != null && depth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be positive");
+        }
+        mPipelineDepth = depth;
+        mPipelineExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Enables a cache of parsed SQL Migrations shared by every manageSchema() call on this
+     * SQLiteMigrationManager.  Each Migration is read, tokenized and classified once, and the
+     * parsed statements are executed on every database it is applied to, which saves reading and
+     * parsing when many databases are migrated with the same Migrations.  The cache holds at most
+     * `maxChars` characters of SQL, evicting the least recently used Migrations; larger Migrations
+     * are never held in full, and are streamed statement by statement as they are without the
+     * cache.  While the cache is enabled, SQL Migrations are not pipelined.
+     *
+     * @param maxChars Maximum characters of SQL cached, or 0 to disable the cache.
+     * @return `this` for chaining.
+     */
+    public SQLiteMigrationManager setProgramCache(long maxChars) {
+        if (maxChars < 0) throw new IllegalArgumentException("Cache size is negative");
+        mProgramCache = (maxChars == 0) ? null : new StatementProgram.Cache(maxChars);
+        return this;
+    }
+
+    /**
+     * Sets the ParameterResolver substituting `${name}` parameters in the statements of SQL
+     * Migrations for each database, so that one Migration can, for example, name tables after
+     * the account a database belongs to.  Parameters are substituted in each statement as it is
+     * executed, so cached Migrations are shared by databases with different parameters and
+     * uncached Migrations are streamed and pipelined as usual.
+     *
+     * @param resolver ParameterResolver to apply, or `null` to execute statements as written.
+     * @return `this` for chaining.
+     */
+    public SQLiteMigrationManager setParameterResolver(SQLParser.ParameterResolver resolver) {
+        mParameterResolver = resolver;
+        return this;
+    }
+
+    /**
+     * Enables index deferral in manageSchema().  Non-unique CREATE INDEX statements in pending
+     * Migrations are held back until the end of the batch, or until a later statement could
+     * depend on them, so each index is built once after its table is loaded rather than updated
+     * row by row during the load.  All deferred indexes are created within the same transaction.
+     *
+     * @param deferIndexes true to defer index creation.
+     * @return `this` for chaining.
+     */
+    public SQLiteMigrationManager setDeferIndexes(boolean deferIndexes) {
+        mDeferIndexes = deferIndexes;
+        return this;
+    }
+
+    /**
+     * Sets how foreign keys are enforced while manageSchema() applies Migrations.  Deferring or
+     * disabling enforcement avoids a parent lookup for every row written during bulk loads, at the
+     * cost of one `PRAGMA foreign_key_check` over the whole database after the last Migration.
+     * Databases whose SQLite is too old for the mode are migrated with ENFORCE.
+     *
+     * @param mode ForeignKeyMode to use for subsequent calls to manageSchema().
+     * @return `this` for chaining.
+     * @see com.layer.sqlite.SQLiteMigrationManager.ForeignKeyMode
+     */
+    public SQLiteMigrationManager setForeignKeyMode(ForeignKeyMode mode) {
+        if (mode == null) throw new IllegalArgumentException("Foreign key mode is null");
+        mForeignKeyMode = mode;
         return this;
     }
 
+    /**
+     * Enables a statistics refresh after manageSchema() applies Migrations.  The tables written by
+     * the applied Migrations are recorded as they execute, and only those tables are analyzed once
+     * the batch commits, so stale `sqlite_stat1` rows are replaced without a database-wide ANALYZE.
+     * The refresh runs on the given Executor, which may for example post to an idle handler, or
+     * on the calling thread before manageSchema() returns if the Executor is `null`.  The
+     * database must remain open until a deferred refresh has run.
+     *
+     * @param refresh  StatisticsRefresh to perform.
+     * @param executor Executor on which to refresh, or `null` to refresh inline.
+     * @return `this` for chaining.
+     * @see com.layer.sqlite.SQLiteMigrationManager.StatisticsRefresh
+     */
+    public SQLiteMigrationManager setStatisticsRefresh(StatisticsRefresh refresh,
+                                                       Executor executor) {
+        if (refresh == null) throw new IllegalArgumentException("Statistics refresh is null");
+        mStatisticsExecutor = executor;
+        mStatisticsRefresh = refresh;
+        return this;
+    }
+
+    /**
+     * Enables space reclamation after manageSchema() applies Migrations that free pages, such as
+     * dropping tables or rebuilding them without columns.  Only AndroidDatabases are reclaimed,
+     * since the IncrementalVacuum.Listener reports progress on a SQLiteDatabase.
+     *
+     * @param incrementalVacuum IncrementalVacuum to run after each batch, or `null` to disable.
+     * @return `this` for chaining.
+     * @see com.layer.sqlite.IncrementalVacuum
+     */
+    public SQLiteMigrationManager setIncrementalVacuum(IncrementalVacuum incrementalVacuum) {
+        mIncrementalVacuum = incrementalVacuum;
+        return this;
+    }
+
+    /**
+     * Sets how manageSchema() handles other connections and processes holding the database lock.
+     * With a ContentionPolicy, a batch that fails with a SQLiteDatabaseLockedException, or a
+     * DatabaseLockedException off-device, is retried from its last commit after a backoff, and
+     * the time spent waiting for locks is recorded.
+     *
+     * @param contentionPolicy ContentionPolicy to apply, or `null` to fail on the first lock error.
+     * @return `this` for chaining.
+     * @see com.layer.sqlite.ContentionPolicy
+     */
+    public SQLiteMigrationManager setContentionPolicy(ContentionPolicy contentionPolicy) {
+        mContentionPolicy = contentionPolicy;
+        return this;
+    }
+
+    /**
+     * Serializes manageSchema() across threads and processes migrating the same database file.
+     * The first caller migrates while the others block on a lock file next to the database,
+     * `<database>-migration.lock`, without polling, and then find no pending Migrations.  Every
+     * process opening the database must enable the lock for it to take effect.
+     *
+     * @param migrationLock true to lock the database while migrating.
+     * @return `this` for chaining.
+     */
+    public SQLiteMigrationManager setMigrationLock(boolean migrationLock) {
+        mMigrationLock = migrationLock;
+        return this;
+    }
+
+    private static boolean isForeignKeysEnabled(Database db) {
+        Long enabled = db.queryForLong("PRAGMA foreign_keys", null);
+        return enabled != null && enabled != 0;
+    }
+
+    /**
+     * Returns true if the database's SQLite has the PRAGMAs that `mode` relies on.
+     */
+    private static boolean isSupported(Database db, ForeignKeyMode mode) {
+        long version = getSQLiteVersionNumber(db);
+        switch (mode) {
+            case DEFER:
+                return version >= 3008000;
+            case DISABLE:
+                return version >= 3007016;
+            case ENFORCE:
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the database's SQLite version encoded as SQLITE_VERSION_NUMBER, e.g. 3008000 for
+     * 3.8.0.
+     */
+    private static long getSQLiteVersionNumber(Database db) {
+        String[] parts = db.queryForString("SELECT sqlite_version()", null).split("\\.");
+        long number = 0;
+        for (int i = 0; i < 3; i++) {
+            number = number * 1000 + ((i < parts.length) ? Long.parseLong(parts[i]) : 0);
+        }
+        return number;
+    }
+
+    /**
+     * Runs `PRAGMA foreign_key_check` and throws a ForeignKeyViolationException if it reports any
+     * violations.
+     */
+    static void checkForeignKeys(Database db) throws ForeignKeyViolationException {
+        final List<ForeignKeyViolationException.Violation> violations =
+                new ArrayList<ForeignKeyViolationException.Violation>();
+        int violationCount = db.query("PRAGMA foreign_key_check", null,
+                new Database.RowHandler() {
+                    @Override
+                    public boolean onRow(Database.Row row) {
+                        if (violations.size() < MAX_REPORTED_VIOLATIONS) {
+                            violations.add(new ForeignKeyViolationException.Violation(
+                                    row.getString(0), row.isNull(1) ? null : row.getLong(1),
+                                    row.getString(2), (int) row.getLong(3)));
+                        }
+                        return true;
+                    }
+                });
+        if (violationCount > 0) {
+            throw new ForeignKeyViolationException(violations, violationCount);
+        }
+    }
+
     /**
      * Returns true if the `schema_migrations` table exists.
      *
@@ -134,13 +855,17 @@ public class SQLiteMigrationManager {
      * @return true if the `schema_migrations` table exists.
      */
     public boolean hasMigrationsTable(SQLiteDatabase db) {
-        Cursor c = null;
-        try {
-            c = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type='table' AND name='schema_migrations'", null);
-            return (c.getCount() > 0);
-        } finally {
-            if (c != null) c.close();
-        }
+        return hasMigrationsTable(new AndroidDatabase(db));
+    }
+
+    /**
+     * Returns true if the `schema_migrations` table exists.
+     *
+     * @param db Database to query for the `schema_migrations` table.
+     * @return true if the `schema_migrations` table exists.
+     */
+    public boolean hasMigrationsTable(Database db) {
+        return db.queryForLong("SELECT 1 FROM sqlite_master WHERE type='table' AND name='schema_migrations'", null) != null;
     }
 
     /**
@@ -154,6 +879,17 @@ public class SQLiteMigrationManager {
         return this;
     }
 
+    /**
+     * Creates the managed `schema_migrations` table used for tracking applied migrations.
+     *
+     * @param db Database to create the `schema_migrations` table in.
+     * @return `this` for chaining.
+     */
+    public SQLiteMigrationManager createMigrationsTable(Database db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS schema_migrations (version INTEGER UNIQUE NOT NULL)", null);
+        return this;
+    }
+
     /**
      * Returns true if any DataSource has a Schema.
      *
@@ -167,14 +903,16 @@ public class SQLiteMigrationManager {
     }
 
     /**
-     * Returns the first available Schema contained within the DataSource set.
+     * Returns the first available Schema contained within the DataSource set, in the order the
+     * DataSources were added.
      *
      * @return The first available Schema contained within the DataSource set.
      * @throws java.lang.IllegalStateException When no DataSources have been added.
      */
     public Schema getSchema() throws IllegalStateException {
-        if (mDataSources.isEmpty()) throw new IllegalStateException("No DataSources added");
-        for (DataSource dataSource : mDataSources) {
+        Set<DataSource> dataSources = mDataSources;
+        if (dataSources.isEmpty()) throw new IllegalStateException("No DataSources added");
+        for (DataSource dataSource : dataSources) {
             if (dataSource.hasSchema()) return dataSource.getSchema();
         }
         return null;
@@ -196,24 +934,107 @@ public class SQLiteMigrationManager {
     }
 
     /**
-     * Generates a sorted list of Migration objects from all DataSources.
+     * Bootstraps a Database from the first available Schema found in the DataSource set.
+     *
+     * @param db Database to bootstrap.
+     * @return `this` for chaining.
+     * @throws IllegalStateException If no schemas were found in the DataSource set.
+     */
+    public SQLiteMigrationManager applySchema(Database db) throws IOException {
+        if (!hasSchema()) throw new IllegalStateException("No schemas in DataSource set.");
+        SQLParser.execute(db, getSchema());
+        return this;
+    }
+
+    /**
+     * Generates a sorted list of Migration objects from all DataSources.  Migrations with the same
+     * version and description are treated as duplicates, and the one from the earliest-added
+     * DataSource is kept.
      *
      * @return A sorted list of Migrations from the set of DataSources.
-     * @throws java.lang.IllegalStateException When no DataSources have been added.
+     * @throws java.lang.IllegalStateException When no DataSources have been added, or when two
+     *                                         Migrations share a version but not a description.
      */
     public List<Migration> getMigrations() throws IllegalStateException, IOException, URISyntaxException {
-        if (mDataSources.isEmpty()) throw new IllegalStateException("No DataSources added");
+        return getMigrations(mDataSources);
+    }
 
-        // Use Sets to prevent duplicate Migrations.
-        Set<Migration> migrations = new HashSet<Migration>();
-        for (DataSource dataSource : mDataSources) {
-            migrations.addAll(dataSource.getMigrations());
+    private List<Migration> getMigrations(Set<DataSource> dataSources)
+            throws IOException, URISyntaxException {
+        if (dataSources.isEmpty()) throw new IllegalStateException("No DataSources added");
+
+        // Merge in DataSource order, keyed by version for sorting and conflict detection.
+        TreeMap<Long, Migration> migrations = new TreeMap<Long, Migration>();
+        for (List<Migration> sourceMigrations : discoverMigrations(dataSources)) {
+            for (Migration migration : sourceMigrations) {
+                Migration existing = migrations.get(migration.getVersion());
+                if (existing == null) {
+                    migrations.put(migration.getVersion(), migration);
+                } else if (!isSameMigration(existing, migration)) {
+                    throw new IllegalStateException("Conflicting migrations for version "
+                            + migration.getVersion() + ": '" + existing.getDescription()
+                            + "' and '" + migration.getDescription() + "'");
+                }
+            }
         }
+        return new ArrayList<Migration>(migrations.values());
+    }
 
-        // Return a sorted List.
-        List<Migration> sortedMigrations = new LinkedList<Migration>(migrations);
-        Collections.sort(sortedMigrations);
-        return sortedMigrations;
+    private static boolean isSameMigration(Migration a, Migration b) {
+        String descriptionA = a.getDescription();
+        String descriptionB = b.getDescription();
+        return (descriptionA == null) ? (descriptionB == null) : descriptionA.equals(descriptionB);
+    }
+
+    /**
+     * Returns the Migrations from each DataSource, in DataSource order.  DataSources are queried
+     * on the discovery executor when one is set.
+     */
+    private List<List<Migration>> discoverMigrations(Set<DataSource> dataSources)
+            throws IOException, URISyntaxException {
+        List<List<Migration>> results = new ArrayList<List<Migration>>(dataSources.size());
+        Executor executor = mDiscoveryExecutor;
+        if (executor == null || dataSources.size() < 2) {
+            for (DataSource dataSource : dataSources) {
+                results.add(dataSource.getMigrations());
+            }
+            return results;
+        }
+
+        List<FutureTask<List<Migration>>> tasks =
+                new ArrayList<FutureTask<List<Migration>>>(dataSources.size());
+        for (final DataSource dataSource : dataSources) {
+            FutureTask<List<Migration>> task = new FutureTask<List<Migration>>(
+                    new Callable<List<Migration>>() {
+                        @Override
+                        public List<Migration> call() throws Exception {
+                            return dataSource.getMigrations();
+                        }
+                    });
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        try {
+            for (FutureTask<List<Migration>> task : tasks) {
+                results.add(task.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while discovering migrations", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof URISyntaxException) throw (URISyntaxException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException("Failed to discover migrations", cause);
+        } finally {
+            for (FutureTask<List<Migration>> task : tasks) {
+                task.cancel(true);
+            }
+        }
+        return results;
     }
 
     /**
@@ -232,6 +1053,17 @@ public class SQLiteMigrationManager {
      * @return The list of available Migrations which have not been applied.
      */
     public List<Migration> getPendingMigrations(SQLiteDatabase db) throws IOException, URISyntaxException {
+        return getPendingMigrations(new AndroidDatabase(db));
+    }
+
+    /**
+     * Returns a sorted list of Migrations available in the set of DataSources which have not been
+     * applied to the given Database, as getPendingMigrations(SQLiteDatabase) does.
+     *
+     * @param db Database on which to compare migration versions.
+     * @return The list of available Migrations which have not been applied.
+     */
+    public List<Migration> getPendingMigrations(Database db) throws IOException, URISyntaxException {
         // If this database isn't yet managed, just return the list of available Migrations.
         if (!hasMigrationsTable(db)) return getMigrations();
 
@@ -271,20 +1103,27 @@ public class SQLiteMigrationManager {
      * @throws android.database.SQLException When no `schema_migrations` table is present.
      */
     public long getOriginVersion(SQLiteDatabase db) throws SQLException {
-        Cursor cursor = null;
-        try {
-            cursor = db.rawQuery("SELECT MIN(version) FROM schema_migrations", null);
-            if (cursor.moveToNext()) return (cursor.isNull(0)) ? NO_VERSIONS : cursor.getLong(0);
-        } finally {
-            if (cursor != null) cursor.close();
-        }
-        return NO_VERSIONS;
+        return getOriginVersion(new AndroidDatabase(db));
+    }
+
+    /**
+     * Loads the lowest version number from the `schema_migrations` table of a Database, as
+     * getOriginVersion(SQLiteDatabase) does.
+     *
+     * @param db Database from which to load the origin version.
+     * @return The lowest version present or NO_VERSIONS of the `schema_migrations` table is empty.
+     */
+    public long getOriginVersion(Database db) {
+        Long version = db.queryForLong("SELECT MIN(version) FROM schema_migrations", null);
+        return (version == null) ? NO_VERSIONS : version;
     }
 
     /**
      * Loads the current version number from the `schema_migrations` table, returns NO_VERSIONS if
      * the migrations table is empty, or throws an SQLException if the table isn't present.  The
-     * current version number is the maximum version in the `schema_migrations` table.
+     * current version number is the maximum version in the `schema_migrations` table.  The version
+     * is cached until another connection commits to the database or this manager writes to
+     * `schema_migrations`, so repeated calls only probe `PRAGMA data_version`.
      *
      * @param db Database from which to load the current version.
      * @return The highest version present or NO_VERSIONS of the `schema_migrations` table is
@@ -292,14 +1131,37 @@ public class SQLiteMigrationManager {
      * @throws android.database.SQLException When no `schema_migrations` table is present.
      */
     public long getCurrentVersion(SQLiteDatabase db) throws SQLException {
-        Cursor cursor = null;
-        try {
-            cursor = db.rawQuery("SELECT MAX(version) FROM schema_migrations", null);
-            if (cursor.moveToNext()) return cursor.isNull(0) ? NO_VERSIONS : cursor.getLong(0);
-        } finally {
-            if (cursor != null) cursor.close();
+        VersionCache.State state = mVersionCache.get(db);
+        if (state != null) return state.mCurrentVersion;
+
+        long dataVersion = mVersionCache.probe(db);
+        long currentVersion = queryCurrentVersion(db);
+        mVersionCache.put(db, dataVersion, currentVersion);
+        return currentVersion;
+    }
+
+    /**
+     * Loads the current version number from the `schema_migrations` table of a Database.  Only
+     * the versions of AndroidDatabases are cached.
+     *
+     * @param db Database from which to load the current version.
+     * @return The highest version present or NO_VERSIONS of the `schema_migrations` table is
+     * empty.
+     */
+    public long getCurrentVersion(Database db) {
+        if (db instanceof AndroidDatabase) {
+            return getCurrentVersion(((AndroidDatabase) db).getSQLiteDatabase());
         }
-        return NO_VERSIONS;
+        return queryCurrentVersion(db);
+    }
+
+    private static long queryCurrentVersion(SQLiteDatabase db) throws SQLException {
+        return queryCurrentVersion(new AndroidDatabase(db));
+    }
+
+    private static long queryCurrentVersion(Database db) {
+        Long version = db.queryForLong("SELECT MAX(version) FROM schema_migrations", null);
+        return (version == null) ? NO_VERSIONS : version;
     }
 
     /**
@@ -311,17 +1173,26 @@ public class SQLiteMigrationManager {
      * @throws android.database.SQLException When no `schema_migrations` table is present.
      */
     public LinkedHashSet<Long> getAppliedVersions(SQLiteDatabase db) throws SQLException {
-        Cursor cursor = null;
-        try {
-            LinkedHashSet<Long> versions = new LinkedHashSet<Long>();
-            cursor = db.rawQuery("SELECT version FROM schema_migrations ORDER BY version", null);
-            while (cursor.moveToNext()) {
-                versions.add(cursor.getLong(0));
-            }
-            return versions;
-        } finally {
-            if (cursor != null) cursor.close();
-        }
+        return getAppliedVersions(new AndroidDatabase(db));
+    }
+
+    /**
+     * Loads an ordered set of all versions currently applied on a Database.
+     *
+     * @param db Database from which to load versions.
+     * @return An ordered set of all versions applied.
+     */
+    public LinkedHashSet<Long> getAppliedVersions(Database db) {
+        final LinkedHashSet<Long> versions = new LinkedHashSet<Long>();
+        db.query("SELECT version FROM schema_migrations ORDER BY version", null,
+                new Database.RowHandler() {
+                    @Override
+                    public boolean onRow(Database.Row row) {
+                        versions.add(row.getLong(0));
+                        return true;
+                    }
+                });
+        return versions;
     }
 
     /**
@@ -335,21 +1206,63 @@ public class SQLiteMigrationManager {
         ContentValues values = new ContentValues();
         values.put("version", version);
         db.insert("schema_migrations", null, values);
+        mVersionCache.invalidate(db);
+    }
+
+    /**
+     * Records a successfully-applied migration in the `schema_migrations` table of a Database.
+     *
+     * @param db      Database to record a successful version in.
+     * @param version Migration version to record.
+     */
+    public void insertVersion(Database db, Long version) {
+        db.execSQL("INSERT INTO schema_migrations (version) VALUES (?)", new Object[]{version});
+        invalidateVersion(db);
+    }
+
+    /**
+     * Forgets the cached current version of an AndroidDatabase.  Versions of other Databases are
+     * not cached.
+     */
+    private void invalidateVersion(Database db) {
+        if (db instanceof AndroidDatabase) {
+            mVersionCache.invalidate(((AndroidDatabase) db).getSQLiteDatabase());
+        }
     }
 
     /**
      * Returns true if the provided database's current version is not contained in the migrations,
-     * or false if it does.
+     * or false if it does.  The versions available from the DataSources are read once and cached
+     * until another DataSource is added, and the current version is cached as by
+     * getCurrentVersion().
      *
      * @param db Database to check for downgrading.
      * @return true if the provided database has a higher version than the known migrations.
      */
     public boolean isDowngrade(SQLiteDatabase db) throws IOException, URISyntaxException {
-        if (!hasMigrationsTable(db)) return false;
-        Long max = getCurrentVersion(db);
-        for (Migration migration : getMigrations()) {
-            if (migration.getVersion().equals(max)) return false;
+        // A cached version implies the migrations table exists.
+        VersionCache.State state = mVersionCache.get(db);
+        long max;
+        if (state != null) {
+            max = state.mCurrentVersion;
+        } else {
+            if (!hasMigrationsTable(db)) return false;
+            max = getCurrentVersion(db);
+        }
+        return !getCatalog().mVersions.contains(max);
+    }
+
+    private Catalog getCatalog() throws IOException, URISyntaxException {
+        Set<DataSource> dataSources = mDataSources;
+        Catalog catalog = mCatalog;
+        if (catalog != null && catalog.mDataSources == dataSources) return catalog;
+
+        Set<Long> versions = new HashSet<Long>();
+        for (Migration migration : getMigrations(dataSources)) {
+            versions.add(migration.getVersion());
         }
-        return true;
+        catalog = new Catalog(dataSources, versions);
+        mCatalog = catalog;
+        return catalog;
     }
 }
@@ -0,0 +1,454 @@
+package com.layer.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies pending Migrations to a shadow copy of a database file and then swaps the copy into
+ * place, so that long rebuilds do not hold the live database's write lock for their duration.
+ *
+ * migrate() proceeds in stages:
+ * <p><ol>
+ * <li>Temporary triggers on the live connection record the rowid of every row written while the
+ * shadow is built.</li>
+ * <li>Tables are created in the shadow file, which ATTACHes the live file and takes its page size
+ * and auto-vacuum mode, and rows are copied over in rowid-ordered chunks, each in its own short
+ * transaction.</li>
+ * <li>Recorded writes are replayed onto the shadow until few remain.</li>
+ * <li>Under the live write lock, remaining writes are replayed, indexes, views and triggers are
+ * created, the live user version, application ID and journal mode are copied, and the shadow is
+ * migrated with the SQLiteMigrationManager.  Readers of the live file are not blocked by this
+ * stage.</li>
+ * <li>The live database is closed and the shadow file is renamed over it, after which the Listener
+ * is told to reopen the database.</li>
+ * </ol></p>
+ * Writes are only recorded when they are made through the given SQLiteDatabase, so other
+ * processes must not write to the database during migrate(), and other threads must not write
+ * after it begins swapping.  Tables WITHOUT ROWID and virtual tables are not supported.
+ */
+public class ShadowMigration {
+    public static final int DEFAULT_CHUNK_ROWS = 1000;
+
+    /**
+     * Maximum number of catch-up passes before the live write lock is taken regardless.
+     */
+    static final int MAX_CATCH_UP_ROUNDS = 8;
+
+    /**
+     * Notified once the migrated shadow has replaced the live database file.
+     */
+    public interface Listener {
+        /**
+         * Called after the swap.  The SQLiteDatabase passed to migrate() has been closed, and
+         * connections to the database file must be reopened.
+         *
+         * @param databaseFile The migrated database file.
+         */
+        void onSwapped(File databaseFile);
+    }
+
+    private final SQLiteMigrationManager mMigrationManager;
+    private int mChunkRows = DEFAULT_CHUNK_ROWS;
+    private Listener mListener;
+
+    public ShadowMigration(SQLiteMigrationManager migrationManager) {
+        if (migrationManager == null) throw new IllegalArgumentException("Migration manager is null");
+        mMigrationManager = migrationManager;
+    }
+
+    /**
+     * Sets the number of rows copied in each chunk.
+     *
+     * @return `this` for chaining.
+     */
+    public ShadowMigration setChunkRows(int rows) {
+        if (rows < 1) throw new IllegalArgumentException("Chunk rows must be positive");
+        mChunkRows = rows;
+        return this;
+    }
+
+    /**
+     * Sets the Listener notified after the swap.
+     *
+     * @return `this` for chaining.
+     */
+    public ShadowMigration setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Returns the file in which the shadow of `databaseFile` is built.
+     */
+    public static File getShadowFile(File databaseFile) {
+        return new File(databaseFile.getPath() + "-shadow");
+    }
+
+    /**
+     * Migrates the database through a shadow copy.  If no Migrations are pending, nothing is
+     * copied, the database remains open, and 0 is returned.  Otherwise the database is closed and
+     * replaced by its migrated copy.  If migration fails, the live database is left unchanged and
+     * the shadow is deleted.
+     *
+     * @param db     Live database to migrate.
+     * @param action BootstrapAction passed to manageSchema() for the shadow.
+     * @return The number of migrations applied.
+     */
+    public int migrate(SQLiteDatabase db, SQLiteMigrationManager.BootstrapAction action)
+            throws IOException, URISyntaxException {
+        if (db == null) throw new IllegalArgumentException("Database is null");
+        if (!db.isOpen()) throw new IllegalArgumentException("Database is not open: " + db);
+        if (db.isReadOnly()) throw new IllegalArgumentException("Database is read only: " + db);
+        if (db.inTransaction()) throw new IllegalArgumentException("Database transacted: " + db);
+        String path = db.getPath();
+        if (path == null || path.equals(":memory:")) {
+            throw new IllegalArgumentException("Database has no file: " + db);
+        }
+
+        if (mMigrationManager.hasMigrationsTable(db)
+                && mMigrationManager.getPendingMigrations(db).isEmpty()) {
+            return 0;
+        }
+
+        File databaseFile = new File(path);
+        File shadowFile = getShadowFile(databaseFile);
+        deleteDatabaseFiles(shadowFile);
+
+        // Settings stored in the file header must be in place before the shadow has any pages.
+        String pageSize = pragma(db, "PRAGMA page_size");
+        String autoVacuum = pragma(db, "PRAGMA auto_vacuum");
+        String journalMode = pragma(db, "PRAGMA journal_mode");
+
+        List<ShadowTable> tables = ShadowTable.list(db);
+        installCapture(db, tables);
+        SQLiteDatabase shadow = null;
+        boolean swapped = false;
+        int numApplied;
+        try {
+            shadow = SQLiteDatabase.openDatabase(shadowFile.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY
+                            | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            shadow.execSQL("PRAGMA page_size = " + pageSize);
+            shadow.execSQL("PRAGMA auto_vacuum = " + autoVacuum);
+
+            // The shadow is discarded on failure, so it needs no journal while it is built.
+            pragma(shadow, "PRAGMA journal_mode = OFF");
+            shadow.execSQL("PRAGMA synchronous = OFF");
+            shadow.execSQL("ATTACH DATABASE ? AS live", new Object[]{path});
+
+            // Copy tables without their indexes, then their rows.
+            for (ShadowTable table : tables) {
+                shadow.execSQL(table.mSql);
+            }
+            for (ShadowTable table : tables) {
+                copyRows(shadow, table);
+            }
+
+            // Replay writes made during the copy until few remain.
+            for (int round = 0; round < MAX_CATCH_UP_ROUNDS; round++) {
+                if (catchUp(db, shadow, tables, mChunkRows) < mChunkRows) break;
+            }
+
+            // Hold the live write lock through the final replay and the migration.
+            db.beginTransactionNonExclusive();
+            try {
+                catchUp(db, shadow, tables, 0);
+                copySchemaObjects(shadow);
+                copyHeader(db, shadow);
+                shadow.execSQL("DETACH DATABASE live");
+                pragma(shadow, "PRAGMA journal_mode = DELETE");
+                shadow.execSQL("PRAGMA synchronous = FULL");
+                numApplied = mMigrationManager.manageSchema(shadow, action);
+
+                // A write-ahead log is recorded in the file header, so it must carry over.
+                pragma(shadow, "PRAGMA journal_mode = " + journalMode);
+                shadow.close();
+                shadow = null;
+                if (new File(shadowFile.getPath() + "-wal").length() > 0) {
+                    throw new IOException("Shadow was not checkpointed: " + shadowFile);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // Closing the last connection checkpoints and removes any write-ahead log.
+            db.close();
+            File wal = new File(path + "-wal");
+            if (wal.length() > 0) {
+                throw new IOException("Database is still open elsewhere: " + path);
+            }
+            new File(path + "-journal").delete();
+            new File(path + "-shm").delete();
+            wal.delete();
+            if (!shadowFile.renameTo(databaseFile)) {
+                throw new IOException("Could not rename " + shadowFile + " to " + databaseFile);
+            }
+            swapped = true;
+        } finally {
+            if (shadow != null) shadow.close();
+            if (!swapped) {
+                if (db.isOpen()) removeCapture(db, tables);
+                deleteDatabaseFiles(shadowFile);
+            }
+        }
+
+        if (mListener != null) mListener.onSwapped(databaseFile);
+        return numApplied;
+    }
+
+    /**
+     * Copies a table's rows from the live database in rowid order, one chunk per transaction.
+     */
+    private void copyRows(SQLiteDatabase shadow, ShadowTable table) {
+        SQLiteStatement copy = shadow.compileStatement("INSERT INTO main." + table.mQuotedName
+                + " (" + table.mColumns + ") SELECT " + table.mColumns + " FROM live."
+                + table.mQuotedName + " WHERE rowid > ? ORDER BY rowid LIMIT " + mChunkRows);
+        SQLiteStatement lastRowId = shadow.compileStatement(
+                "SELECT MAX(rowid) FROM main." + table.mQuotedName);
+        try {
+            long after = Long.MIN_VALUE;
+            while (true) {
+                int rows;
+                shadow.beginTransaction();
+                try {
+                    copy.bindLong(1, after);
+                    rows = copy.executeUpdateDelete();
+                    if (rows > 0) after = lastRowId.simpleQueryForLong();
+                    shadow.setTransactionSuccessful();
+                } finally {
+                    shadow.endTransaction();
+                }
+                if (rows < mChunkRows) return;
+            }
+        } finally {
+            copy.close();
+            lastRowId.close();
+        }
+    }
+
+    /**
+     * Removes up to `limit` recorded writes from the live database, or all of them if `limit` is
+     * 0, and re-copies the affected rows to the shadow.  Rows are read after they are removed
+     * from the record, so a row written again in between is recorded again.
+     *
+     * @return The number of rows re-copied.
+     */
+    private static int catchUp(SQLiteDatabase db, SQLiteDatabase shadow, List<ShadowTable> tables,
+                               int limit) {
+        List<long[]> delta = new ArrayList<long[]>();
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor c = db.rawQuery("SELECT rowid, tbl, rid FROM temp.shadow_delta ORDER BY rowid"
+                    + (limit > 0 ? " LIMIT " + limit : ""), null);
+            long last = 0;
+            try {
+                while (c.moveToNext()) {
+                    last = c.getLong(0);
+                    delta.add(new long[]{c.getLong(1), c.getLong(2)});
+                }
+            } finally {
+                c.close();
+            }
+            if (!delta.isEmpty()) db.execSQL("DELETE FROM temp.shadow_delta WHERE rowid <= " + last);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (delta.isEmpty()) return 0;
+
+        SQLiteStatement[] deletes = new SQLiteStatement[tables.size()];
+        SQLiteStatement[] copies = new SQLiteStatement[tables.size()];
+        shadow.beginTransaction();
+        try {
+            for (long[] row : delta) {
+                int index = (int) row[0];
+                ShadowTable table = tables.get(index);
+                if (deletes[index] == null) {
+                    deletes[index] = shadow.compileStatement(
+                            "DELETE FROM main." + table.mQuotedName + " WHERE rowid = ?");
+                    copies[index] = shadow.compileStatement("INSERT INTO main."
+                            + table.mQuotedName + " (" + table.mColumns + ") SELECT "
+                            + table.mColumns + " FROM live." + table.mQuotedName
+                            + " WHERE rowid = ?");
+                }
+                deletes[index].bindLong(1, row[1]);
+                deletes[index].execute();
+                copies[index].bindLong(1, row[1]);
+                copies[index].execute();
+            }
+            shadow.setTransactionSuccessful();
+        } finally {
+            shadow.endTransaction();
+            for (int i = 0; i < deletes.length; i++) {
+                if (deletes[i] != null) deletes[i].close();
+                if (copies[i] != null) copies[i].close();
+            }
+        }
+        return delta.size();
+    }
+
+    /**
+     * Creates the live database's indexes, views and triggers in the shadow, and copies
+     * AUTOINCREMENT sequences.
+     */
+    private static void copySchemaObjects(SQLiteDatabase shadow) {
+        List<String> statements = new ArrayList<String>();
+        boolean hasSequence = false;
+        Cursor c = shadow.rawQuery("SELECT type, sql FROM live.sqlite_master WHERE type IN "
+                + "('index', 'view', 'trigger', 'table') AND sql IS NOT NULL ORDER BY rowid", null);
+        try {
+            while (c.moveToNext()) {
+                if (!c.getString(0).equals("table")) {
+                    statements.add(c.getString(1));
+                } else if (SQLScanner.containsIgnoreCase(c.getString(1), "AUTOINCREMENT")) {
+                    hasSequence = true;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        for (String statement : statements) {
+            shadow.execSQL(statement);
+        }
+        if (hasSequence) {
+            shadow.execSQL("DELETE FROM main.sqlite_sequence");
+            shadow.execSQL("INSERT INTO main.sqlite_sequence SELECT * FROM live.sqlite_sequence");
+        }
+    }
+
+    /**
+     * Copies the live database's user version and application ID to the shadow.  The application
+     * ID is only copied when SQLite supports it.
+     */
+    private static void copyHeader(SQLiteDatabase db, SQLiteDatabase shadow) {
+        shadow.execSQL("PRAGMA user_version = " + pragma(db, "PRAGMA user_version"));
+        String applicationId = pragma(db, "PRAGMA application_id");
+        if (applicationId != null) shadow.execSQL("PRAGMA application_id = " + applicationId);
+    }
+
+    private static void installCapture(SQLiteDatabase db, List<ShadowTable> tables) {
+        removeCapture(db, tables);
+        db.execSQL("CREATE TEMP TABLE shadow_delta (tbl INTEGER NOT NULL, rid INTEGER NOT NULL, "
+                + "UNIQUE (tbl, rid))");
+        for (int i = 0; i < tables.size(); i++) {
+            String on = " ON main." + tables.get(i).mQuotedName + " BEGIN ";
+            String record = "INSERT OR IGNORE INTO shadow_delta VALUES (" + i + ", ";
+            db.execSQL("CREATE TEMP TRIGGER shadow_capture_" + i + "_insert AFTER INSERT" + on
+                    + record + "NEW.rowid); END");
+            db.execSQL("CREATE TEMP TRIGGER shadow_capture_" + i + "_update AFTER UPDATE" + on
+                    + record + "OLD.rowid); " + record + "NEW.rowid); END");
+            db.execSQL("CREATE TEMP TRIGGER shadow_capture_" + i + "_delete AFTER DELETE" + on
+                    + record + "OLD.rowid); END");
+        }
+    }
+
+    private static void removeCapture(SQLiteDatabase db, List<ShadowTable> tables) {
+        for (int i = 0; i < tables.size(); i++) {
+            db.execSQL("DROP TRIGGER IF EXISTS temp.shadow_capture_" + i + "_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS temp.shadow_capture_" + i + "_update");
+            db.execSQL("DROP TRIGGER IF EXISTS temp.shadow_capture_" + i + "_delete");
+        }
+        db.execSQL("DROP TABLE IF EXISTS temp.shadow_delta");
+    }
+
+    private static void deleteDatabaseFiles(File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+
+    /**
+     * Runs a PRAGMA and returns its first value, or `null` if it returns no rows.
+     */
+    private static String pragma(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * A live table to be copied: its CREATE statement and the columns copied with each row.
+     */
+    static class ShadowTable {
+        final String mSql;
+        final String mQuotedName;
+        final String mColumns;
+
+        ShadowTable(String sql, String quotedName, String columns) {
+            mSql = sql;
+            mQuotedName = quotedName;
+            mColumns = columns;
+        }
+
+        /**
+         * Lists the database's ordinary tables in creation order.
+         */
+        static List<ShadowTable> list(SQLiteDatabase db) {
+            List<String[]> definitions = new ArrayList<String[]>();
+            Cursor c = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'table' "
+                    + "AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' ORDER BY rowid", null);
+            try {
+                while (c.moveToNext()) {
+                    definitions.add(new String[]{c.getString(0), c.getString(1)});
+                }
+            } finally {
+                c.close();
+            }
+
+            List<ShadowTable> tables = new ArrayList<ShadowTable>();
+            for (String[] definition : definitions) {
+                String name = definition[0];
+                String sql = definition[1];
+                SQLScanner scanner = new SQLScanner(sql);
+                if (scanner.nextIs("CREATE") && scanner.nextIs("VIRTUAL")) {
+                    throw new IllegalStateException("Virtual tables cannot be shadowed: " + name);
+                }
+                if (SQLScanner.containsIgnoreCase(sql, "WITHOUT ROWID")) {
+                    throw new IllegalStateException("WITHOUT ROWID tables cannot be shadowed: " + name);
+                }
+                String quotedName = quote(name);
+                tables.add(new ShadowTable(sql, quotedName, columns(db, quotedName)));
+            }
+            return tables;
+        }
+
+        /**
+         * Returns the table's column list, led by `rowid` unless a column aliases it.
+         */
+        private static String columns(SQLiteDatabase db, String quotedName) {
+            StringBuilder columns = new StringBuilder();
+            int primaryKeyColumns = 0;
+            boolean integerPrimaryKey = false;
+            Cursor c = db.rawQuery("PRAGMA table_info(" + quotedName + ")", null);
+            try {
+                while (c.moveToNext()) {
+                    columns.append(", ").append(quote(c.getString(1)));
+                    if (c.getInt(5) > 0) {
+                        primaryKeyColumns++;
+                        integerPrimaryKey = "INTEGER".equalsIgnoreCase(c.getString(2));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (primaryKeyColumns == 1 && integerPrimaryKey) return columns.substring(2);
+            return "rowid" + columns;
+        }
+
+        private static String quote(String identifier) {
+            return "\"" + identifier.replace("\"", "\"\"") + "\"";
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.Migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A SQL Migration tokenized and parsed once into an immutable list of ParsedStatements, so that
+ * it can be executed on many databases without reading or tokenizing its source again.  Parameters
+ * such as `${account}` are left in place and resolved for each database at execution.
+ */
+class StatementProgram {
+    private final SQLParser.ParsedStatement[] mStatements;
+    private final long mChars;
+    private final boolean mResumable;
+
+    private StatementProgram(SQLParser.ParsedStatement[] statements, long chars,
+                             boolean resumable) {
+        mStatements = statements;
+        mChars = chars;
+        mResumable = resumable;
+    }
+
+    /**
+     * Reads, tokenizes and parses a StreamMigration, giving up once its statements exceed
+     * `maxChars` characters of SQL so that an oversized migration is never held in full.
+     *
+     * @return The program, or `null` if the migration holds more than `maxChars` characters.
+     * @throws IllegalArgumentException If the migration is not a StreamMigration, or if one of
+     *                                  its statements cannot be parsed.
+     */
+    static StatementProgram compile(Migration migration, long maxChars) throws IOException {
+        SQLParser.Tokenizer tokenizer = SQLParser.tokenize(migration);
+        List<SQLParser.ParsedStatement> statements = new ArrayList<SQLParser.ParsedStatement>();
+        long chars = 0;
+        String statement;
+        while ((statement = tokenizer.next()) != null) {
+            SQLParser.ParsedStatement parsed = SQLParser.ParsedStatement.parse(statement);
+            if (parsed == null) continue;
+            chars += parsed.mSql.length();
+            if (chars > maxChars) return null;
+            statements.add(parsed);
+        }
+        return new StatementProgram(
+                statements.toArray(new SQLParser.ParsedStatement[statements.size()]), chars,
+                tokenizer.isResumable());
+    }
+
+    /**
+     * Returns the number of characters of SQL held, which approximates the memory used.
+     */
+    long getChars() {
+        return mChars;
+    }
+
+    int getStatementCount() {
+        return mStatements.length;
+    }
+
+    /**
+     * Returns true if the migration's header declares it resumable with `-- @resumable`.
+     */
+    boolean isResumable() {
+        return mResumable;
+    }
+
+    /**
+     * Executes the program on a database, as SQLParser.execute() executes its Migration.
+     *
+     * @param db          The database on which to execute the program.
+     * @param migration   The migration the program was compiled from.
+     * @param interceptor Interceptor for the migration and its statements, or `null`.
+     * @param resolver    ParameterResolver for the statements' parameters, or `null`.
+     */
+    void execute(Database db, Migration migration, SQLParser.Interceptor interceptor,
+                 SQLParser.ParameterResolver resolver) throws IOException {
+        if (interceptor != null) {
+            interceptor.beforeMigration(db, migration);
+            if (mResumable) interceptor.onResumable(db);
+        }
+        for (SQLParser.ParsedStatement statement : mStatements) {
+            SQLParser.Execute.statement(db, statement, interceptor, resolver);
+        }
+    }
+
+    /**
+     * A least-recently-used cache of StatementPrograms by migration version, bounded by the total
+     * characters of SQL held.  Migrations sharing a version within one SQLiteMigrationManager are
+     * the same migration, so the version identifies the program.  Migrations larger than the
+     * whole cache are not compiled; their versions are remembered so that the caller streams them
+     * without another attempt.
+     */
+    static class Cache {
+        private final long mMaxChars;
+        private final Map<Long, StatementProgram> mPrograms =
+                new LinkedHashMap<Long, StatementProgram>(16, 0.75f, true);
+        private final Set<Long> mOversized = new HashSet<Long>();
+        private long mChars;
+
+        Cache(long maxChars) {
+            if (maxChars < 1) throw new IllegalArgumentException("Cache size must be positive");
+            mMaxChars = maxChars;
+        }
+
+        /**
+         * Returns the cached program for the migration, compiling and caching it if needed, or
+         * `null` if the migration is larger than the cache and must be executed by streaming.
+         * Compilation happens outside the lock, so concurrent callers may compile a migration
+         * twice; the first to finish is kept.
+         */
+        StatementProgram get(Migration migration) throws IOException {
+            Long version = migration.getVersion();
+            synchronized (this) {
+                StatementProgram program = mPrograms.get(version);
+                if (program != null || mOversized.contains(version)) return program;
+            }
+
+            StatementProgram program = compile(migration, mMaxChars);
+            synchronized (this) {
+                if (program == null) {
+                    mOversized.add(version);
+                    return null;
+                }
+                StatementProgram existing = mPrograms.get(version);
+                if (existing != null) return existing;
+                mPrograms.put(version, program);
+                mChars += program.getChars();
+
+                // Evict least-recently-used programs until the cache fits.
+                Iterator<StatementProgram> i = mPrograms.values().iterator();
+                while (mChars > mMaxChars && i.hasNext()) {
+                    StatementProgram eldest = i.next();
+                    if (eldest == program) continue;
+                    mChars -= eldest.getChars();
+                    i.remove();
+                }
+            }
+            return program;
+        }
+
+        synchronized int size() {
+            return mPrograms.size();
+        }
+    }
+}
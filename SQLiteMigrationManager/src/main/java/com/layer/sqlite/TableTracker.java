@@ -0,0 +1,204 @@
+package com.layer.sqlite;
+
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.migrations.CodeMigration;
+import com.layer.sqlite.migrations.DelimitedMigration;
+import com.layer.sqlite.migrations.Migration;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records the tables written by a batch of migrations, so that query planner statistics can be
+ * refreshed for those tables alone rather than for the whole database.
+ *
+ * A table is recorded when it is the target of an INSERT, REPLACE, UPDATE or DELETE, when it is
+ * created or altered, when an index is created on it, or when a DelimitedMigration loads it.
+ * Dropped tables are forgotten, renamed tables are recorded under their new name, and temporary
+ * and virtual tables are ignored.  Other CodeMigrations cannot be inspected, so they mark the
+ * batch as opaque, and refresh() additionally runs `PRAGMA optimize` to let SQLite find any other
+ * tables that need analysis.  Statements beginning with WITH are not inspected.
+ */
+class TableTracker implements SQLParser.Interceptor {
+    /**
+     * Rows examined per index by an approximate ANALYZE, as used by `PRAGMA optimize`.
+     */
+    static final int APPROXIMATE_ANALYSIS_LIMIT = 400;
+
+    /**
+     * Quoted table names, keyed by their lower-cased qualified name.
+     */
+    private final Map<String, String> mTables = new LinkedHashMap<String, String>();
+    private boolean mOpaque;
+
+    @Override
+    public void beforeMigration(Database db, Migration migration) {
+        if (migration instanceof DelimitedMigration) {
+            add(null, ((DelimitedMigration) migration).getTable());
+        } else if (migration instanceof CodeMigration) {
+            mOpaque = true;
+        }
+    }
+
+    @Override
+    public void onResumable(Database db) {
+    }
+
+    @Override
+    public boolean beforeStatement(Database db, String statement, SQLParser.Verb verb) {
+        SQLScanner scanner = new SQLScanner(statement);
+        scanner.next();
+        switch (verb) {
+            case INSERT:
+            case REPLACE:
+                if (scanner.nextIs("OR")) scanner.next();
+                if (scanner.nextIs("INTO")) add(scanner);
+                break;
+
+            case UPDATE:
+                if (scanner.nextIs("OR")) scanner.next();
+                add(scanner);
+                break;
+
+            case DELETE:
+                if (scanner.nextIs("FROM")) add(scanner);
+                break;
+
+            case CREATE:
+                if (scanner.nextIs("TEMP") || scanner.nextIs("TEMPORARY")
+                        || scanner.nextIs("VIRTUAL")) {
+                    break;
+                }
+                scanner.nextIs("UNIQUE");
+                if (scanner.nextIs("TABLE")) {
+                    skipIfNotExists(scanner);
+                    add(scanner);
+                } else if (scanner.nextIs("INDEX")) {
+                    skipIfNotExists(scanner);
+                    // The indexed table is in the schema of the index.
+                    String[] index = name(scanner);
+                    if (index != null && scanner.nextIs("ON")) add(index[0], scanner.next());
+                }
+                break;
+
+            case ALTER:
+                if (scanner.nextIs("TABLE")) {
+                    String[] table = name(scanner);
+                    if (table == null) break;
+                    if (scanner.nextIs("RENAME") && scanner.nextIs("TO")) {
+                        remove(table[0], table[1]);
+                        add(table[0], scanner.next());
+                    } else {
+                        add(table[0], table[1]);
+                    }
+                }
+                break;
+
+            case DROP:
+                if (scanner.nextIs("TABLE")) {
+                    if (scanner.nextIs("IF")) scanner.nextIs("EXISTS");
+                    String[] table = name(scanner);
+                    if (table != null) remove(table[0], table[1]);
+                }
+                break;
+
+            default:
+                break;
+        }
+        return false;
+    }
+
+    @Override
+    public void afterStatement(Database db, String statement, SQLParser.Verb verb,
+                               long lastRowId) {
+    }
+
+    @Override
+    public long getChunkStart(Database db, String statement) {
+        return SQLParser.NO_ROWID;
+    }
+
+    /**
+     * Returns the quoted names of the recorded tables, in the order they were first written.
+     */
+    List<String> getTables() {
+        return new ArrayList<String>(mTables.values());
+    }
+
+    /**
+     * Returns true if a CodeMigration wrote to tables that could not be recorded.
+     */
+    boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * Runs ANALYZE on each recorded table, followed by `PRAGMA optimize` if the batch was opaque.
+     *
+     * @param db          Database to analyze.
+     * @param approximate true to bound the work per index with `PRAGMA analysis_limit`, which
+     *                    SQLite versions before 3.32 ignore.
+     */
+    void refresh(Database db, boolean approximate) {
+        if (approximate) pragma(db, "PRAGMA analysis_limit = " + APPROXIMATE_ANALYSIS_LIMIT);
+        try {
+            for (String table : mTables.values()) {
+                db.execSQL("ANALYZE " + table, null);
+            }
+        } finally {
+            if (approximate) pragma(db, "PRAGMA analysis_limit = 0");
+        }
+        if (mOpaque) pragma(db, "PRAGMA optimize");
+    }
+
+    private static void pragma(Database db, String sql) {
+        // Step once so the PRAGMA runs, then discard any rows.
+        db.queryForLong(sql, null);
+    }
+
+    private static void skipIfNotExists(SQLScanner scanner) {
+        if (scanner.nextIs("IF") && scanner.nextIs("NOT")) scanner.nextIs("EXISTS");
+    }
+
+    /**
+     * Reads an optionally schema-qualified name as {schema, name}, with a `null` schema if it is
+     * unqualified.
+     */
+    private static String[] name(SQLScanner scanner) {
+        String first = scanner.next();
+        if (first == null) return null;
+        if (scanner.nextIs(".")) return new String[]{first, scanner.next()};
+        return new String[]{null, first};
+    }
+
+    private void add(SQLScanner scanner) {
+        String[] table = name(scanner);
+        if (table != null) add(table[0], table[1]);
+    }
+
+    private void add(String schema, String table) {
+        if (table == null || (schema != null && (schema.equalsIgnoreCase("temp")
+                || schema.equalsIgnoreCase("temporary")))) {
+            return;
+        }
+        String key = key(schema, table);
+        if (!mTables.containsKey(key)) {
+            mTables.put(key, schema == null ? quote(table) : quote(schema) + "." + quote(table));
+        }
+    }
+
+    private void remove(String schema, String table) {
+        if (table != null) mTables.remove(key(schema, table));
+    }
+
+    private static String key(String schema, String table) {
+        return (schema == null ? table : schema + "." + table).toLowerCase(Locale.US);
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
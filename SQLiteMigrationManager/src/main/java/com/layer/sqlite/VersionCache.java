@@ -0,0 +1,176 @@
+package com.layer.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the current schema version of each database, so that repeated version checks cost a
+ * `PRAGMA data_version` probe instead of a query of `schema_migrations`.  The probe is compiled
+ * once per database and stepped with simpleQueryForLong(), without a Cursor.
+ *
+ * `PRAGMA data_version` changes whenever another connection commits to the database, so an entry
+ * is valid while the probe returns the value recorded with it.  Commits on the probing connection
+ * itself do not change it; SQLiteMigrationManager invalidates the entry whenever it writes
+ * `schema_migrations`, and versions written by other code through the same connection are not
+ * noticed.  Probes are only comparable on the same connection, so databases using write-ahead
+ * logging, whose reads are spread over a pool of connections, are not cached; neither are reads
+ * within a transaction, which may be rolled back, nor databases whose SQLite predates
+ * `data_version`.  Databases found to use write-ahead logging or to lack `data_version` are
+ * remembered as uncacheable, so that later version checks skip the probes.
+ *
+ * Entries of closed databases are dropped whenever an entry is added, so a shared manager does not
+ * hold on to every database it has checked.
+ */
+class VersionCache {
+    /**
+     * Probe result for databases that cannot be cached.
+     */
+    static final long UNCACHEABLE = Long.MIN_VALUE;
+
+    /**
+     * A version read at a given `data_version`.
+     */
+    static final class State {
+        final long mDataVersion;
+        final long mCurrentVersion;
+
+        State(long dataVersion, long currentVersion) {
+            mDataVersion = dataVersion;
+            mCurrentVersion = currentVersion;
+        }
+    }
+
+    /**
+     * A database's compiled probe, or none if the database cannot be cached, and the State last
+     * recorded for it.  The probe is stepped and closed while holding the Entry's lock.
+     */
+    private static final class Entry {
+        private final SQLiteStatement mProbe;
+        private boolean mClosed;
+        volatile State mState;
+
+        Entry(SQLiteStatement probe) {
+            mProbe = probe;
+        }
+
+        boolean isCacheable() {
+            return mProbe != null;
+        }
+
+        /**
+         * Returns the current `data_version`, or UNCACHEABLE if SQLite has no such PRAGMA.
+         */
+        synchronized long probe() {
+            if (mClosed) return UNCACHEABLE;
+            try {
+                return mProbe.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return UNCACHEABLE;
+            }
+        }
+
+        synchronized void close() {
+            if (mProbe != null && !mClosed) mProbe.close();
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Entry recorded for databases that can never be cached.
+     */
+    private static final Entry UNCACHEABLE_ENTRY = new Entry(null);
+
+    private final ConcurrentHashMap<SQLiteDatabase, Entry> mEntries =
+            new ConcurrentHashMap<SQLiteDatabase, Entry>();
+
+    /**
+     * Returns the cached State for the database if it is still valid, or `null`.
+     */
+    State get(SQLiteDatabase db) {
+        Entry entry = mEntries.get(db);
+        if (entry == null) return null;
+        State state = entry.mState;
+        if (state == null) return null;
+        if (db.inTransaction() || probe(db) != state.mDataVersion) {
+            entry.mState = null;
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the current `data_version` to record with a version read after this call, or
+     * UNCACHEABLE.
+     */
+    long probe(SQLiteDatabase db) {
+        if (db.inTransaction()) return UNCACHEABLE;
+        Entry entry = entry(db);
+        if (!entry.isCacheable()) return UNCACHEABLE;
+        long dataVersion = entry.probe();
+        if (dataVersion == UNCACHEABLE && mEntries.replace(db, entry, UNCACHEABLE_ENTRY)) {
+            entry.close();
+        }
+        return dataVersion;
+    }
+
+    /**
+     * Records a version read after probe() returned `dataVersion`.
+     */
+    void put(SQLiteDatabase db, long dataVersion, long currentVersion) {
+        if (dataVersion == UNCACHEABLE) return;
+        Entry entry = mEntries.get(db);
+        if (entry != null && entry.isCacheable()) {
+            entry.mState = new State(dataVersion, currentVersion);
+        }
+    }
+
+    /**
+     * Forgets the database's cached version, after the database's versions are written.  A
+     * database remembered as uncacheable stays so.
+     */
+    void invalidate(SQLiteDatabase db) {
+        Entry entry = mEntries.get(db);
+        if (entry != null) entry.mState = null;
+    }
+
+    /**
+     * Returns the database's Entry, adding one if there is none.
+     */
+    private Entry entry(SQLiteDatabase db) {
+        Entry entry = mEntries.get(db);
+        if (entry != null) return entry;
+
+        // New entries are rare; drop those of closed databases so they can be collected.
+        for (Iterator<Map.Entry<SQLiteDatabase, Entry>> i = mEntries.entrySet().iterator();
+             i.hasNext(); ) {
+            Map.Entry<SQLiteDatabase, Entry> closed = i.next();
+            if (!closed.getKey().isOpen()) {
+                i.remove();
+                closed.getValue().close();
+            }
+        }
+
+        entry = isWriteAheadLogging(db)
+                ? UNCACHEABLE_ENTRY : new Entry(db.compileStatement("PRAGMA data_version"));
+        Entry existing = mEntries.putIfAbsent(db, entry);
+        if (existing == null) return entry;
+        entry.close();
+        return existing;
+    }
+
+    private static boolean isWriteAheadLogging(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA journal_mode", null);
+        try {
+            return c.moveToFirst() && "wal".equals(c.getString(0).toLowerCase(Locale.US));
+        } finally {
+            c.close();
+        }
+    }
+}
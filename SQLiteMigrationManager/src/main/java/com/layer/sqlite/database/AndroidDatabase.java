@@ -0,0 +1,261 @@
+package com.layer.sqlite.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * A Database backed by Android's SQLiteDatabase.  Errors are thrown as Android's SQLExceptions.
+ *
+ * Queries are run with rawQuery(), which binds every argument as text, so query arguments are
+ * converted with String.valueOf() and blobs cannot be bound to queries.  Statements run with
+ * execSQL() and compiled statements bind arguments with their own types.
+ */
+public class AndroidDatabase implements Database {
+    private final SQLiteDatabase mDb;
+
+    public AndroidDatabase(SQLiteDatabase db) {
+        if (db == null) throw new IllegalArgumentException("Database is null");
+        mDb = db;
+    }
+
+    /**
+     * Returns the adapted SQLiteDatabase.
+     */
+    public SQLiteDatabase getSQLiteDatabase() {
+        return mDb;
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) {
+        if (bindArgs == null || bindArgs.length == 0) {
+            mDb.execSQL(sql);
+        } else {
+            mDb.execSQL(sql, bindArgs);
+        }
+    }
+
+    @Override
+    public int query(String sql, Object[] bindArgs, RowHandler handler) {
+        Cursor cursor = mDb.rawQuery(sql, toSelectionArgs(bindArgs));
+        if (cursor == null) return 0;
+        try {
+            CursorRow row = new CursorRow(cursor);
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                rows++;
+                if (handler != null && !handler.onRow(row)) break;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public Long queryForLong(String sql, Object[] bindArgs) {
+        Cursor cursor = mDb.rawQuery(sql, toSelectionArgs(bindArgs));
+        try {
+            return (cursor.moveToFirst() && !cursor.isNull(0)) ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String queryForString(String sql, Object[] bindArgs) {
+        Cursor cursor = mDb.rawQuery(sql, toSelectionArgs(bindArgs));
+        try {
+            return (cursor.moveToFirst() && !cursor.isNull(0)) ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public CompiledStatement compileStatement(String sql) {
+        return new AndroidStatement(mDb.compileStatement(sql));
+    }
+
+    @Override
+    public void beginTransaction() {
+        mDb.beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mDb.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        mDb.endTransaction();
+    }
+
+    @Override
+    public boolean inTransaction() {
+        return mDb.inTransaction();
+    }
+
+    @Override
+    public void savepoint(String name) {
+        mDb.execSQL("SAVEPOINT " + quote(name));
+    }
+
+    @Override
+    public void releaseSavepoint(String name) {
+        mDb.execSQL("RELEASE " + quote(name));
+    }
+
+    /**
+     * Rolls back to a savepoint.  Android classifies statements by their first characters and
+     * ends its own transaction when it sees a ROLLBACK, so the statement is led by a comment to
+     * reach SQLite as written.  If the platform still intercepts it, the transaction has ended and
+     * an IllegalStateException is thrown.
+     */
+    @Override
+    public void rollbackToSavepoint(String name) {
+        mDb.execSQL("/* savepoint */ ROLLBACK TO " + quote(name));
+        if (!mDb.inTransaction()) {
+            throw new IllegalStateException("Transaction ended by rollback to " + name);
+        }
+    }
+
+    @Override
+    public String getPath() {
+        String path = mDb.getPath();
+        return (path == null || path.equals(":memory:")) ? "" : path;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mDb.isOpen();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return mDb.isReadOnly();
+    }
+
+    @Override
+    public String toString() {
+        return mDb.toString();
+    }
+
+    private static String[] toSelectionArgs(Object[] bindArgs) {
+        if (bindArgs == null) return null;
+        String[] args = new String[bindArgs.length];
+        for (int i = 0; i < bindArgs.length; i++) {
+            if (bindArgs[i] instanceof byte[]) {
+                throw new IllegalArgumentException("Blobs cannot be bound to queries");
+            }
+            args[i] = (bindArgs[i] == null) ? null : String.valueOf(bindArgs[i]);
+        }
+        return args;
+    }
+
+    static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static class CursorRow implements Row {
+        private final Cursor mCursor;
+
+        CursorRow(Cursor cursor) {
+            mCursor = cursor;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mCursor.getColumnCount();
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mCursor.isNull(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mCursor.getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mCursor.getDouble(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return mCursor.getString(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mCursor.getBlob(column);
+        }
+    }
+
+    private static class AndroidStatement implements CompiledStatement {
+        private final SQLiteStatement mStatement;
+
+        AndroidStatement(SQLiteStatement statement) {
+            mStatement = statement;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            mStatement.bindNull(index);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            mStatement.bindLong(index, value);
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            mStatement.bindDouble(index, value);
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            mStatement.bindString(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            mStatement.bindBlob(index, value);
+        }
+
+        @Override
+        public void clearBindings() {
+            mStatement.clearBindings();
+        }
+
+        @Override
+        public void execute() {
+            mStatement.execute();
+        }
+
+        @Override
+        public long executeInsert() {
+            return mStatement.executeInsert();
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            return mStatement.executeUpdateDelete();
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            return mStatement.simpleQueryForLong();
+        }
+
+        @Override
+        public void close() {
+            mStatement.close();
+        }
+    }
+}
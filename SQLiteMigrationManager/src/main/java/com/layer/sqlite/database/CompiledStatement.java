@@ -0,0 +1,47 @@
+package com.layer.sqlite.database;
+
+/**
+ * A statement compiled by a Database for repeated execution with different bind arguments.
+ * Parameter indexes start at 1.  Bindings are kept across executions until cleared.
+ */
+public interface CompiledStatement {
+    void bindNull(int index);
+
+    void bindLong(int index, long value);
+
+    void bindDouble(int index, double value);
+
+    void bindString(int index, String value);
+
+    void bindBlob(int index, byte[] value);
+
+    void clearBindings();
+
+    /**
+     * Executes a statement that returns no rows.
+     */
+    void execute();
+
+    /**
+     * Executes an INSERT and returns the rowid of the inserted row.
+     */
+    long executeInsert();
+
+    /**
+     * Executes an UPDATE or DELETE and returns the number of rows changed.
+     */
+    int executeUpdateDelete();
+
+    /**
+     * Executes a query returning a single row and column, and returns its value.
+     *
+     * @throws DatabaseException If the query returned no rows.  AndroidDatabase throws Android's
+     *                           SQLiteDoneException instead.
+     */
+    long simpleQueryForLong();
+
+    /**
+     * Releases the statement.
+     */
+    void close();
+}
@@ -0,0 +1,124 @@
+package com.layer.sqlite.database;
+
+/**
+ * A connection to a SQLite database, as used by SQLiteMigrationManager and SQLParser.  Android's
+ * SQLiteDatabase is adapted by AndroidDatabase, and a JDBC Connection to a SQLite driver by
+ * JdbcDatabase, so that the migration engine can run off-device, for example in benchmarks or
+ * backend tooling.
+ *
+ * Transactions follow Android's semantics: they nest, an inner transaction that ends without
+ * being marked successful causes the outermost one to roll back, and only the outermost
+ * transaction commits.  Savepoints are SQLite savepoints within the current transaction.
+ *
+ * Bind arguments may be `null`, `byte[]`, a floating-point Number, any other Number, or a
+ * String.  A Database is used by one thread at a time.
+ */
+public interface Database {
+    /**
+     * A row of a query result, valid only during the call to RowHandler.onRow().
+     */
+    interface Row {
+        int getColumnCount();
+
+        boolean isNull(int column);
+
+        long getLong(int column);
+
+        double getDouble(int column);
+
+        String getString(int column);
+
+        byte[] getBlob(int column);
+    }
+
+    /**
+     * Receives the rows of a query.
+     */
+    interface RowHandler {
+        /**
+         * Handles a row.
+         *
+         * @return true to step to the next row, or false to stop the query.
+         */
+        boolean onRow(Row row);
+    }
+
+    /**
+     * Executes a statement, discarding any rows it returns.
+     *
+     * @param sql      Statement to execute.
+     * @param bindArgs Arguments bound to the statement's parameters, or `null`.
+     */
+    void execSQL(String sql, Object[] bindArgs);
+
+    /**
+     * Runs a query and passes its rows to the handler in order.
+     *
+     * @param sql      Query to run.
+     * @param bindArgs Arguments bound to the query's parameters, or `null`.
+     * @param handler  RowHandler for each row, or `null` to step through every row and discard
+     *                 it, for statements whose effects happen while rows are produced.
+     * @return The number of rows stepped through.
+     */
+    int query(String sql, Object[] bindArgs, RowHandler handler);
+
+    /**
+     * Returns the first column of the query's first row as a long, or `null` if the query
+     * returned no rows or a NULL.
+     */
+    Long queryForLong(String sql, Object[] bindArgs);
+
+    /**
+     * Returns the first column of the query's first row as a String, or `null` if the query
+     * returned no rows or a NULL.
+     */
+    String queryForString(String sql, Object[] bindArgs);
+
+    /**
+     * Compiles a statement for repeated execution.  The caller must close it.
+     */
+    CompiledStatement compileStatement(String sql);
+
+    /**
+     * Begins an exclusive transaction, or a nested transaction within the current one.
+     */
+    void beginTransaction();
+
+    /**
+     * Marks the current transaction successful, so that it commits when it ends.
+     */
+    void setTransactionSuccessful();
+
+    /**
+     * Ends the current transaction.  The outermost transaction commits if it and every nested
+     * transaction were marked successful, and rolls back otherwise.
+     */
+    void endTransaction();
+
+    boolean inTransaction();
+
+    /**
+     * Starts a savepoint within the current transaction.
+     */
+    void savepoint(String name);
+
+    /**
+     * Releases a savepoint, keeping the changes made since it was started.
+     */
+    void releaseSavepoint(String name);
+
+    /**
+     * Rolls back the changes made since a savepoint was started.  The savepoint remains active.
+     */
+    void rollbackToSavepoint(String name);
+
+    /**
+     * Returns the path of the main database file, or an empty String for in-memory and temporary
+     * databases.
+     */
+    String getPath();
+
+    boolean isOpen();
+
+    boolean isReadOnly();
+}
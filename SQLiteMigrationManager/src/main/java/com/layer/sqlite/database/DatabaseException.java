@@ -0,0 +1,15 @@
+package com.layer.sqlite.database;
+
+/**
+ * Thrown by Database implementations other than AndroidDatabase when a statement fails.
+ * AndroidDatabase lets Android's own SQLExceptions through unchanged.
+ */
+public class DatabaseException extends RuntimeException {
+    public DatabaseException(String message) {
+        super(message);
+    }
+
+    public DatabaseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,12 @@
+package com.layer.sqlite.database;
+
+/**
+ * Thrown by Database implementations other than AndroidDatabase when a statement fails because
+ * another connection holds the database lock (SQLITE_BUSY), as Android throws
+ * SQLiteDatabaseLockedException.
+ */
+public class DatabaseLockedException extends DatabaseException {
+    public DatabaseLockedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,456 @@
+package com.layer.sqlite.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A Database backed by a JDBC Connection to a SQLite driver, such as the Xerial sqlite-jdbc
+ * driver, for running migrations on a JVM.  No driver is bundled; the caller opens and closes the
+ * Connection.
+ *
+ * The Connection must be in auto-commit mode.  Transactions are begun, committed and rolled back
+ * with SQL statements, as Android does, and nest with Android's semantics.  Errors are thrown as
+ * DatabaseExceptions wrapping the driver's SQLException, and as DatabaseLockedExceptions when the
+ * driver reports SQLITE_BUSY.
+ */
+public class JdbcDatabase implements Database {
+    /**
+     * SQLite's primary result code for a database locked by another connection.
+     */
+    private static final int SQLITE_BUSY = 5;
+
+    private final Connection mConnection;
+    private Transaction mTransaction;
+    private String mPath;
+
+    /**
+     * A level of nested transaction.
+     */
+    private static class Transaction {
+        final Transaction mParent;
+        boolean mMarkedSuccessful;
+        boolean mChildFailed;
+
+        Transaction(Transaction parent) {
+            mParent = parent;
+        }
+    }
+
+    public JdbcDatabase(Connection connection) {
+        if (connection == null) throw new IllegalArgumentException("Connection is null");
+        mConnection = connection;
+    }
+
+    /**
+     * Returns the adapted Connection.
+     */
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) {
+        PreparedStatement statement = prepare(sql, bindArgs);
+        try {
+            statement.execute();
+        } catch (SQLException e) {
+            throw wrap(sql, e);
+        } finally {
+            close(statement);
+        }
+    }
+
+    @Override
+    public int query(String sql, Object[] bindArgs, RowHandler handler) {
+        PreparedStatement statement = prepare(sql, bindArgs);
+        try {
+            // Statements such as PRAGMA assignments may return no result set at all.
+            if (!statement.execute()) return 0;
+            ResultSet results = statement.getResultSet();
+            try {
+                ResultSetRow row = new ResultSetRow(results);
+                int rows = 0;
+                while (results.next()) {
+                    rows++;
+                    if (handler != null && !handler.onRow(row)) break;
+                }
+                return rows;
+            } finally {
+                results.close();
+            }
+        } catch (SQLException e) {
+            throw wrap(sql, e);
+        } finally {
+            close(statement);
+        }
+    }
+
+    @Override
+    public Long queryForLong(String sql, Object[] bindArgs) {
+        final Long[] value = new Long[1];
+        query(sql, bindArgs, new RowHandler() {
+            @Override
+            public boolean onRow(Row row) {
+                if (!row.isNull(0)) value[0] = row.getLong(0);
+                return false;
+            }
+        });
+        return value[0];
+    }
+
+    @Override
+    public String queryForString(String sql, Object[] bindArgs) {
+        final String[] value = new String[1];
+        query(sql, bindArgs, new RowHandler() {
+            @Override
+            public boolean onRow(Row row) {
+                value[0] = row.getString(0);
+                return false;
+            }
+        });
+        return value[0];
+    }
+
+    @Override
+    public CompiledStatement compileStatement(String sql) {
+        return new JdbcStatement(prepare(sql, null), sql);
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (mTransaction == null) execSQL("BEGIN EXCLUSIVE", null);
+        mTransaction = new Transaction(mTransaction);
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        if (mTransaction == null) throw new IllegalStateException("No transaction in progress");
+        if (mTransaction.mMarkedSuccessful) {
+            throw new IllegalStateException("Transaction already marked successful");
+        }
+        mTransaction.mMarkedSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        Transaction transaction = mTransaction;
+        if (transaction == null) throw new IllegalStateException("No transaction in progress");
+        boolean successful = transaction.mMarkedSuccessful && !transaction.mChildFailed;
+        mTransaction = transaction.mParent;
+        if (mTransaction != null) {
+            if (!successful) mTransaction.mChildFailed = true;
+        } else if (!successful) {
+            execSQL("ROLLBACK", null);
+        } else {
+            try {
+                execSQL("COMMIT", null);
+            } catch (DatabaseException e) {
+                // A failed COMMIT leaves the transaction open; end it as Android does.
+                try {
+                    execSQL("ROLLBACK", null);
+                } catch (DatabaseException ignored) {
+                    // Already rolled back by SQLite.
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean inTransaction() {
+        return mTransaction != null;
+    }
+
+    @Override
+    public void savepoint(String name) {
+        execSQL("SAVEPOINT " + AndroidDatabase.quote(name), null);
+    }
+
+    @Override
+    public void releaseSavepoint(String name) {
+        execSQL("RELEASE " + AndroidDatabase.quote(name), null);
+    }
+
+    @Override
+    public void rollbackToSavepoint(String name) {
+        execSQL("ROLLBACK TO " + AndroidDatabase.quote(name), null);
+    }
+
+    /**
+     * Returns the file of the `main` database reported by `PRAGMA database_list`.
+     */
+    @Override
+    public String getPath() {
+        if (mPath == null) {
+            final String[] path = {""};
+            query("PRAGMA database_list", null, new RowHandler() {
+                @Override
+                public boolean onRow(Row row) {
+                    if (!"main".equals(row.getString(1))) return true;
+                    if (!row.isNull(2)) path[0] = row.getString(2);
+                    return false;
+                }
+            });
+            mPath = path[0];
+        }
+        return mPath;
+    }
+
+    @Override
+    public boolean isOpen() {
+        try {
+            return !mConnection.isClosed();
+        } catch (SQLException e) {
+            throw new DatabaseException("Could not check connection", e);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        try {
+            return mConnection.isReadOnly();
+        } catch (SQLException e) {
+            throw new DatabaseException("Could not check connection", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcDatabase{" + mConnection + "}";
+    }
+
+    private PreparedStatement prepare(String sql, Object[] bindArgs) {
+        PreparedStatement statement;
+        try {
+            statement = mConnection.prepareStatement(sql);
+        } catch (SQLException e) {
+            throw wrap(sql, e);
+        }
+        if (bindArgs == null) return statement;
+        try {
+            for (int i = 0; i < bindArgs.length; i++) {
+                bind(statement, i + 1, bindArgs[i]);
+            }
+        } catch (SQLException e) {
+            close(statement);
+            throw wrap(sql, e);
+        } catch (RuntimeException e) {
+            close(statement);
+            throw e;
+        }
+        return statement;
+    }
+
+    private static void bind(PreparedStatement statement, int index, Object value)
+            throws SQLException {
+        if (value == null) {
+            statement.setNull(index, java.sql.Types.NULL);
+        } else if (value instanceof byte[]) {
+            statement.setBytes(index, (byte[]) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.setDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.setLong(index, ((Number) value).longValue());
+        } else {
+            statement.setString(index, value.toString());
+        }
+    }
+
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // The statement's result has already been reported.
+        }
+    }
+
+    private static DatabaseException wrap(String sql, SQLException e) {
+        // Drivers report SQLite's result code, possibly extended, as the error code.
+        if ((e.getErrorCode() & 0xff) == SQLITE_BUSY) {
+            return new DatabaseLockedException(e.getMessage() + " in: " + sql, e);
+        }
+        return new DatabaseException(e.getMessage() + " in: " + sql, e);
+    }
+
+    private static class ResultSetRow implements Row {
+        private final ResultSet mResults;
+
+        ResultSetRow(ResultSet results) {
+            mResults = results;
+        }
+
+        @Override
+        public int getColumnCount() {
+            try {
+                return mResults.getMetaData().getColumnCount();
+            } catch (SQLException e) {
+                throw new DatabaseException("Could not read row", e);
+            }
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            try {
+                return mResults.getObject(column + 1) == null;
+            } catch (SQLException e) {
+                throw new DatabaseException("Could not read row", e);
+            }
+        }
+
+        @Override
+        public long getLong(int column) {
+            try {
+                return mResults.getLong(column + 1);
+            } catch (SQLException e) {
+                throw new DatabaseException("Could not read row", e);
+            }
+        }
+
+        @Override
+        public double getDouble(int column) {
+            try {
+                return mResults.getDouble(column + 1);
+            } catch (SQLException e) {
+                throw new DatabaseException("Could not read row", e);
+            }
+        }
+
+        @Override
+        public String getString(int column) {
+            try {
+                return mResults.getString(column + 1);
+            } catch (SQLException e) {
+                throw new DatabaseException("Could not read row", e);
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            try {
+                return mResults.getBytes(column + 1);
+            } catch (SQLException e) {
+                throw new DatabaseException("Could not read row", e);
+            }
+        }
+    }
+
+    private static class JdbcStatement implements CompiledStatement {
+        private final PreparedStatement mStatement;
+        private final String mSql;
+
+        JdbcStatement(PreparedStatement statement, String sql) {
+            mStatement = statement;
+            mSql = sql;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            try {
+                mStatement.setNull(index, java.sql.Types.NULL);
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            try {
+                mStatement.setLong(index, value);
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            try {
+                mStatement.setDouble(index, value);
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            try {
+                mStatement.setString(index, value);
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            try {
+                mStatement.setBytes(index, value);
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public void clearBindings() {
+            try {
+                mStatement.clearParameters();
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public void execute() {
+            try {
+                mStatement.execute();
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public long executeInsert() {
+            try {
+                mStatement.executeUpdate();
+                ResultSet keys = mStatement.getConnection().createStatement()
+                        .executeQuery("SELECT last_insert_rowid()");
+                try {
+                    return keys.next() ? keys.getLong(1) : -1;
+                } finally {
+                    keys.getStatement().close();
+                }
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            try {
+                return mStatement.executeUpdate();
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            try {
+                ResultSet results = mStatement.executeQuery();
+                try {
+                    if (!results.next()) throw new DatabaseException("No rows returned: " + mSql);
+                    return results.getLong(1);
+                } finally {
+                    results.close();
+                }
+            } catch (SQLException e) {
+                throw wrap(mSql, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            JdbcDatabase.close(mStatement);
+        }
+    }
+}
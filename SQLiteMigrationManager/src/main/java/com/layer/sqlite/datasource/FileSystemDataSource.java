@@ -0,0 +1,99 @@
+package com.layer.sqlite.datasource;
+
+import com.layer.sqlite.migrations.DelimitedMigration;
+import com.layer.sqlite.migrations.FileMigration;
+import com.layer.sqlite.migrations.Migration;
+import com.layer.sqlite.schema.FileSchema;
+import com.layer.sqlite.schema.Schema;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DataSource backed by a directory on the filesystem, for resources expanded on disk or for
+ * migrations delivered to app storage after release.  Schema and Migration contents are served
+ * through read-only memory-mapped buffers.
+ */
+public class FileSystemDataSource implements DataSource {
+    private final File mSchemaFile;
+    private final File mMigrationsDir;
+
+    public FileSystemDataSource(File schemaFile, File migrationsDir) {
+        if (schemaFile != null && !schemaFile.isFile()) {
+            throw new IllegalArgumentException("Could not find schema path: '" + schemaFile + "'");
+        }
+        mSchemaFile = schemaFile;
+        mMigrationsDir = migrationsDir;
+    }
+
+    /**
+     * Returns whether this DataSource has a Schema file.
+     *
+     * @return A boolean representing the presence of a Schema file in this DataSource.
+     */
+    @Override
+    public boolean hasSchema() {
+        return (mSchemaFile != null);
+    }
+
+    /**
+     * Returns the Schema file if it exists, or `null` if it does not.
+     *
+     * @return The Schema file if it exists, or `null` if it does not.
+     */
+    @Override
+    public Schema getSchema() {
+        if (mSchemaFile == null) return null;
+        return new FileSchema(mSchemaFile);
+    }
+
+    /**
+     * Returns a list of Migrations found in the migrations directory.  Names are filtered against
+     * the migration pattern during the directory listing, so non-migration files are never
+     * turned into File objects.  A missing directory yields no migrations.
+     *
+     * @return a list of Migrations found in the migrations directory.
+     */
+    @Override
+    public List<Migration> getMigrations() throws IOException {
+        List<Migration> migrations = new ArrayList<Migration>();
+        if (mMigrationsDir == null) return migrations;
+
+        String[] names = mMigrationsDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return Migration.MIGRATION_PATTERN.matcher(name).matches();
+            }
+        });
+        if (names == null) return migrations;
+
+        for (String name : names) {
+            migrations.add(DelimitedMigration.wrapIfDelimited(
+                    new FileMigration(new File(mMigrationsDir, name))));
+        }
+        return migrations;
+    }
+
+    /**
+     * Maps the given file read-only.  The mapping remains valid after the channel is closed.
+     *
+     * @param file File to map.
+     * @return A read-only buffer over the entire file.
+     * @throws IOException
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+}
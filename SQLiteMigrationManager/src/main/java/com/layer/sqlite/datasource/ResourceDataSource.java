@@ -8,6 +8,7 @@ package com.layer.sqlite.datasource;
 
 import android.content.Context;
 
+import com.layer.sqlite.migrations.DelimitedMigration;
 import com.layer.sqlite.migrations.Migration;
 import com.layer.sqlite.migrations.ResourceMigration;
 import com.layer.sqlite.schema.ResourceSchema;
@@ -100,7 +101,8 @@ public class ResourceDataSource implements DataSource {
                         String path = entries.nextElement().getName();
                         if (path.startsWith(mMigrationsPath)) {
                             if (migrations.containsKey(path)) continue;
-                            migrations.put(path, new ResourceMigration(mContext, path));
+                            migrations.put(path, DelimitedMigration.wrapIfDelimited(
+                                    new ResourceMigration(mContext, path)));
                         }
                     }
                 } finally {
@@ -120,7 +122,8 @@ public class ResourceDataSource implements DataSource {
                     // Resource path is still relative to the JAR (not the filesystem)
                     String path = mMigrationsPath + File.separatorChar + file.getName();
                     if (migrations.containsKey(path)) continue;
-                    migrations.put(path, new ResourceMigration(mContext, path));
+                    migrations.put(path, DelimitedMigration.wrapIfDelimited(
+                            new ResourceMigration(mContext, path)));
                 }
             }
         }
@@ -0,0 +1,144 @@
+package com.layer.sqlite.datasource;
+
+import com.layer.sqlite.migrations.DelimitedMigration;
+import com.layer.sqlite.migrations.Migration;
+import com.layer.sqlite.migrations.ZipMigration;
+import com.layer.sqlite.schema.Schema;
+import com.layer.sqlite.schema.ZipSchema;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A DataSource backed by a ZIP archive (or an OBB expansion file in ZIP format) outside of the
+ * classpath, for shipping large migrations separately from the code.
+ *
+ * The archive is opened once and its ZipFile handle is shared by every Schema and Migration this
+ * DataSource creates; ZipFile reads entries by random access, so opening several migrations never
+ * reopens the file.  Call close() to release the handle; a closed DataSource reopens the archive
+ * on next use.
+ */
+public class ZipArchiveDataSource implements DataSource, Closeable {
+    private final File mArchive;
+    private final String mSchemaPath;
+    private final String mMigrationsPath;
+
+    private ZipFile mZipFile;
+
+    public ZipArchiveDataSource(File archive, String schemaPath, String migrationsPath)
+            throws IOException {
+        mArchive = archive;
+        mSchemaPath = schemaPath;
+        mMigrationsPath = migrationsPath;
+        if (schemaPath != null && !entryExists(schemaPath)) {
+            close();
+            throw new IllegalArgumentException("Could not find schema path: '" + schemaPath + "'");
+        }
+    }
+
+    /**
+     * Returns whether this DataSource has a Schema entry.
+     *
+     * @return A boolean representing the presence of a Schema entry in this DataSource.
+     */
+    @Override
+    public boolean hasSchema() {
+        return (mSchemaPath != null);
+    }
+
+    /**
+     * Returns the Schema entry if it exists, or `null` if it does not.
+     *
+     * @return The Schema entry if it exists, or `null` if it does not.
+     */
+    @Override
+    public Schema getSchema() {
+        if (mSchemaPath == null) return null;
+        return new ZipSchema(this, mSchemaPath);
+    }
+
+    /**
+     * Returns a list of Migrations whose entry names start with the migrations path.  Entries are
+     * enumerated from the archive's central directory in a single pass without reading any entry
+     * data; entry contents are only inflated when a Migration's stream is requested.
+     *
+     * @return a list of Migrations contained in the archive.
+     */
+    @Override
+    public List<Migration> getMigrations() throws IOException {
+        List<Migration> migrations = new ArrayList<Migration>();
+        if (mMigrationsPath == null) return migrations;
+
+        Enumeration<? extends ZipEntry> entries = getZipFile().entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) continue;
+
+            String path = entry.getName();
+            if (!path.startsWith(mMigrationsPath)) continue;
+
+            String fileName = path.substring(path.lastIndexOf('/') + 1);
+            if (!Migration.MIGRATION_PATTERN.matcher(fileName).matches()) continue;
+
+            migrations.add(DelimitedMigration.wrapIfDelimited(new ZipMigration(this, path)));
+        }
+        return migrations;
+    }
+
+    /**
+     * Returns true if the archive contains an entry with the given name.
+     *
+     * @param path Entry name within the archive.
+     * @return true if the entry exists.
+     * @throws IOException If the archive cannot be opened.
+     */
+    public boolean entryExists(String path) throws IOException {
+        return getZipFile().getEntry(path) != null;
+    }
+
+    /**
+     * Returns a stream over the named entry, or `null` if it does not exist.  Closing the stream
+     * does not close the shared archive handle.
+     *
+     * @param path Entry name within the archive.
+     * @return An InputStream over the inflated entry contents.
+     * @throws IOException If the archive cannot be opened or read.
+     */
+    public InputStream getEntryStream(String path) throws IOException {
+        ZipFile zipFile = getZipFile();
+        ZipEntry entry = zipFile.getEntry(path);
+        if (entry == null) return null;
+        return zipFile.getInputStream(entry);
+    }
+
+    /**
+     * Returns the shared archive handle, opening it if necessary.
+     */
+    private synchronized ZipFile getZipFile() throws IOException {
+        if (mZipFile == null) {
+            mZipFile = new ZipFile(mArchive);
+        }
+        return mZipFile;
+    }
+
+    /**
+     * Closes the shared archive handle.  Streams previously returned by getEntryStream() become
+     * unusable.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mZipFile == null) return;
+        try {
+            mZipFile.close();
+        } finally {
+            mZipFile = null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.layer.sqlite.migrations;
+
+/**
+ * Requests that running migrations stop at the next opportunity.  Tokens are checked between
+ * Migrations, between the statements of SQL Migrations, between the slices of chunked
+ * statements, and between batches of CodeMigrations that support cancellation.  A cancelled
+ * token stays cancelled.
+ */
+public class CancellationToken {
+    private volatile boolean mCancelled;
+
+    /**
+     * Cancels this token.  May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Throws a MigrationCancelledException if this token has been cancelled.
+     */
+    public void throwIfCancelled() {
+        if (mCancelled) throw new MigrationCancelledException();
+    }
+
+    /**
+     * Throws a MigrationCancelledException if `token` is not `null` and has been cancelled.
+     */
+    public static void throwIfCancelled(CancellationToken token) {
+        if (token != null) token.throwIfCancelled();
+    }
+}
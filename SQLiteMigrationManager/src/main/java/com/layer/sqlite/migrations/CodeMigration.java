@@ -2,8 +2,17 @@ package com.layer.sqlite.migrations;
 
 import android.database.sqlite.SQLiteDatabase;
 
+import com.layer.sqlite.database.AndroidDatabase;
+import com.layer.sqlite.database.Database;
+
 import java.io.IOException;
 
+/**
+ * A Migration implemented in code.  manageSchema() executes every CodeMigration through
+ * execute(Database, CancellationToken).  Subclasses of CodeMigration implement
+ * execute(SQLiteDatabase) and run on Android; subclasses of PortableCodeMigration implement
+ * execute(Database, CancellationToken) and run on any Database.
+ */
 public abstract class CodeMigration extends Migration {
 
     protected CodeMigration(String path) {
@@ -14,4 +23,36 @@ public abstract class CodeMigration extends Migration {
      * Executes this migration on the given database.
      */
     public abstract void execute(SQLiteDatabase db) throws IOException;
+
+    /**
+     * Executes this migration on the given database, checking the token between units of work.
+     * The default implementation ignores the token; long-running subclasses should override it and
+     * call CancellationToken.throwIfCancelled(token) between batches.
+     *
+     * @param db    Database on which to execute.
+     * @param token CancellationToken to check, or `null`.
+     */
+    public void execute(SQLiteDatabase db, CancellationToken token) throws IOException {
+        execute(db);
+    }
+
+    /**
+     * Executes this migration on a Database, checking the token between units of work.  This is
+     * the method manageSchema() calls.  The default implementation runs
+     * execute(SQLiteDatabase, CancellationToken) on the SQLiteDatabase of an AndroidDatabase;
+     * PortableCodeMigration overrides it to run on any Database.
+     *
+     * @param db    Database on which to execute.
+     * @param token CancellationToken to check, or `null`.
+     * @throws UnsupportedOperationException If the Database is not an AndroidDatabase and this
+     *                                       migration is not portable.
+     */
+    public void execute(Database db, CancellationToken token) throws IOException {
+        if (!(db instanceof AndroidDatabase)) {
+            throw new UnsupportedOperationException(getClass().getSimpleName()
+                    + " requires an Android SQLiteDatabase; extend PortableCodeMigration to run"
+                    + " on any Database: " + getPath());
+        }
+        execute(((AndroidDatabase) db).getSQLiteDatabase(), token);
+    }
 }
@@ -0,0 +1,244 @@
+package com.layer.sqlite.migrations;
+
+import com.layer.sqlite.database.CompiledStatement;
+import com.layer.sqlite.database.Database;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads rows from a delimited data file into a table.  Files named `0123_countries.csv` or
+ * `0123_countries.tsv` load into the table named by the migration description (`countries`).
+ * The first record is a header naming the target columns; every following record is one row.
+ *
+ * CSV fields follow RFC 4180 quoting: a quoted field may contain delimiters, line breaks and
+ * doubled quotes.  TSV fields are taken literally.  An empty unquoted field is bound as NULL, and
+ * all other fields are bound as text and converted by the column's affinity.
+ *
+ * Rows are streamed from the source and inserted one at a time through a single compiled INSERT,
+ * which runs within the migration's transaction, so only one row is held in memory regardless of
+ * the file size.  A CancellationToken is checked between batches of rows.  Rows are loaded
+ * through the Database interface, so DelimitedMigrations also run on Databases other than
+ * AndroidDatabase.
+ */
+public class DelimitedMigration extends PortableCodeMigration {
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final StreamMigration mSource;
+    private final char mDelimiter;
+    private final boolean mQuoted;
+
+    public DelimitedMigration(StreamMigration source) {
+        super(source.getPath());
+        mSource = source;
+        String path = source.getPath();
+        if (path.endsWith(".csv")) {
+            mDelimiter = ',';
+            mQuoted = true;
+        } else if (path.endsWith(".tsv")) {
+            mDelimiter = '\t';
+            mQuoted = false;
+        } else {
+            throw new IllegalArgumentException("Not a delimited migration: " + path);
+        }
+        if (getDescription() == null) {
+            throw new IllegalArgumentException("Delimited migration has no table name: " + path);
+        }
+    }
+
+    /**
+     * Returns true if the path names a delimited data file.
+     */
+    public static boolean isDelimited(String path) {
+        return path.endsWith(".csv") || path.endsWith(".tsv");
+    }
+
+    /**
+     * Wraps the StreamMigration in a DelimitedMigration if it names a delimited data file, or
+     * returns it unchanged otherwise.  DataSources use this to turn data files into loaders.
+     */
+    public static Migration wrapIfDelimited(StreamMigration migration) {
+        return isDelimited(migration.getPath()) ? new DelimitedMigration(migration) : migration;
+    }
+
+    /**
+     * Returns the name of the table rows are inserted into.
+     */
+    public String getTable() {
+        return getDescription();
+    }
+
+    /**
+     * Returns the number of rows inserted between cancellation checks.
+     */
+    public int getBatchSize() {
+        return DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Loads the file, checking the token before each batch of rows is inserted.
+     */
+    @Override
+    public void execute(Database db, CancellationToken token) throws IOException {
+        InputStream in = mSource.getStream();
+        if (in == null) throw new IOException("Could not open migration: " + getPath());
+        RecordReader reader = new RecordReader(
+                new BufferedReader(new InputStreamReader(in, "UTF-8")), mDelimiter, mQuoted);
+        try {
+            List<String> header = reader.next();
+            if (header == null) return;
+            int columns = header.size();
+            int batchSize = Math.max(1, getBatchSize());
+
+            CompiledStatement insert = db.compileStatement(insertSql(header));
+            try {
+                List<String> record;
+                for (int rows = 0; (record = reader.next()) != null; rows++) {
+                    if (record.size() != columns) {
+                        throw new IllegalArgumentException("Record " + reader.getRecordNumber()
+                                + " of " + getPath() + " has " + record.size()
+                                + " fields, expected " + columns);
+                    }
+                    if (rows % batchSize == 0) CancellationToken.throwIfCancelled(token);
+                    insert(insert, record);
+                }
+            } finally {
+                insert.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Binds a record's fields and executes the statement.
+     */
+    private static void insert(CompiledStatement statement, List<String> record) {
+        for (int i = 0; i < record.size(); i++) {
+            String value = record.get(i);
+            if (value == null) {
+                statement.bindNull(i + 1);
+            } else {
+                statement.bindString(i + 1, value);
+            }
+        }
+        statement.execute();
+    }
+
+    private String insertSql(List<String> header) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(quote(getTable()))
+                .append(" (");
+        for (int i = 0; i < header.size(); i++) {
+            if (i > 0) sql.append(", ");
+            String column = header.get(i);
+            if (column == null) {
+                throw new IllegalArgumentException("Empty column name in header of " + getPath());
+            }
+            sql.append(quote(column.trim()));
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < header.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Reads one delimited record at a time from a character stream.
+     */
+    static class RecordReader {
+        private final Reader mReader;
+        private final char mDelimiter;
+        private final boolean mQuoted;
+        private final StringBuilder mField = new StringBuilder();
+        private int mPushback = -2;
+        private int mRecordNumber;
+
+        RecordReader(Reader reader, char delimiter, boolean quoted) {
+            mReader = reader;
+            mDelimiter = delimiter;
+            mQuoted = quoted;
+        }
+
+        int getRecordNumber() {
+            return mRecordNumber;
+        }
+
+        /**
+         * Returns the next non-blank record, or `null` at end of input.  Empty unquoted fields
+         * are returned as `null`.
+         */
+        List<String> next() throws IOException {
+            while (true) {
+                int c = read();
+                if (c == -1) return null;
+                if (c == '\r' || c == '\n') continue;
+                unread(c);
+                mRecordNumber++;
+                return readRecord();
+            }
+        }
+
+        private List<String> readRecord() throws IOException {
+            List<String> fields = new ArrayList<String>();
+            while (true) {
+                mField.setLength(0);
+                boolean quotedField = false;
+                int c = read();
+                if (mQuoted && c == '"') {
+                    quotedField = true;
+                    while (true) {
+                        c = read();
+                        if (c == -1) {
+                            throw new IllegalArgumentException(
+                                    "Unterminated quoted field in record " + mRecordNumber);
+                        }
+                        if (c == '"') {
+                            c = read();
+                            if (c != '"') break;
+                        }
+                        mField.append((char) c);
+                    }
+                }
+                while (c != -1 && c != mDelimiter && c != '\n' && c != '\r') {
+                    mField.append((char) c);
+                    c = read();
+                }
+                fields.add((quotedField || mField.length() > 0) ? mField.toString() : null);
+
+                if (c == mDelimiter) continue;
+                if (c == '\r') {
+                    int n = read();
+                    if (n != '\n') unread(n);
+                }
+                return fields;
+            }
+        }
+
+        private int read() throws IOException {
+            if (mPushback != -2) {
+                int c = mPushback;
+                mPushback = -2;
+                return c;
+            }
+            return mReader.read();
+        }
+
+        private void unread(int c) {
+            mPushback = c;
+        }
+
+        void close() throws IOException {
+            mReader.close();
+        }
+    }
+}
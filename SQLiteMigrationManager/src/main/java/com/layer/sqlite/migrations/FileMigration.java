@@ -0,0 +1,38 @@
+package com.layer.sqlite.migrations;
+
+import com.layer.sqlite.datasource.FileSystemDataSource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class FileMigration extends StreamMigration {
+    private final File mFile;
+
+    public FileMigration(File file) {
+        super(file.getPath());
+        mFile = file;
+        if (!mFile.isFile()) {
+            throw new IllegalArgumentException("Could not find migration path: '" + file + "'");
+        }
+    }
+
+    @Override
+    public InputStream getStream() {
+        try {
+            return new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a read-only memory-mapped buffer of SQL to execute.
+     */
+    public ByteBuffer getBuffer() throws IOException {
+        return FileSystemDataSource.map(mFile);
+    }
+}
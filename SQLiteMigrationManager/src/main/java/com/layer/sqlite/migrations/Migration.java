@@ -7,6 +7,7 @@
 package com.layer.sqlite.migrations;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,6 +16,8 @@ public abstract class Migration implements Comparable<Migration> {
      * Valid names:
      * 0123.sql
      * 0123_some_description.sql
+     * 0123_some_table.csv
+     * 0123_some_table.tsv
      *
      * Invalid names:
      * 0123_description
@@ -24,7 +27,22 @@ public abstract class Migration implements Comparable<Migration> {
      * sql
      */
     public static final Pattern MIGRATION_PATTERN =
-            Pattern.compile("^(\\d+)_?((?<=_)[\\w\\s-]+)?(?<!_)\\.sql$");
+            Pattern.compile("^(\\d+)_?((?<=_)[\\w\\s-]+)?(?<!_)\\.(sql|csv|tsv)$");
+
+    /**
+     * How urgently a Migration must be applied.  Pending Migrations are always applied in version
+     * order, so a Migration also waits for every lower-priority Migration with a lower version.
+     * <p><ul>
+     * <li>CRITICAL: Required by the running code; applied before scheduleSchema() returns.</li>
+     * <li>HIGH, NORMAL, LOW: May be applied in the background, most urgent first.</li>
+     * </ul></p>
+     */
+    public enum Priority {
+        CRITICAL,
+        HIGH,
+        NORMAL,
+        LOW
+    }
 
     private final String mPath;
     private final Long mVersion;
@@ -63,6 +81,14 @@ public abstract class Migration implements Comparable<Migration> {
         return mDescription;
     }
 
+    /**
+     * Returns how urgently this Migration must be applied.  Migrations are CRITICAL unless a
+     * subclass says otherwise.
+     */
+    public Priority getPriority() throws IOException {
+        return Priority.CRITICAL;
+    }
+
     /**
      * Migrations are equal when their versions are equal.
      *
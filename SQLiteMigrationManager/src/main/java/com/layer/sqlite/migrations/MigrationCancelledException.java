@@ -0,0 +1,11 @@
+package com.layer.sqlite.migrations;
+
+/**
+ * Thrown when a CancellationToken is found cancelled.  Unchecked, so that it passes unchanged
+ * through CodeMigrations and Interceptors.
+ */
+public class MigrationCancelledException extends RuntimeException {
+    public MigrationCancelledException() {
+        super("Migration cancelled");
+    }
+}
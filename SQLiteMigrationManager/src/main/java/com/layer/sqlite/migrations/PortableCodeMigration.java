@@ -0,0 +1,42 @@
+package com.layer.sqlite.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.layer.sqlite.database.AndroidDatabase;
+import com.layer.sqlite.database.Database;
+
+import java.io.IOException;
+
+/**
+ * A CodeMigration written against the Database interface, so that it runs wherever
+ * manageSchema() does: on Android through AndroidDatabase, and off-device through JdbcDatabase or
+ * another Database.  The SQLiteDatabase methods run execute(Database, CancellationToken) on an
+ * AndroidDatabase.
+ */
+public abstract class PortableCodeMigration extends CodeMigration {
+
+    protected PortableCodeMigration(String path) {
+        super(path);
+    }
+
+    /**
+     * Executes this migration on a Database, checking the token between units of work.
+     * Long-running subclasses should call CancellationToken.throwIfCancelled(token) between
+     * batches.
+     *
+     * @param db    Database on which to execute.
+     * @param token CancellationToken to check, or `null`.
+     */
+    @Override
+    public abstract void execute(Database db, CancellationToken token) throws IOException;
+
+    @Override
+    public void execute(SQLiteDatabase db) throws IOException {
+        execute(new AndroidDatabase(db), null);
+    }
+
+    @Override
+    public void execute(SQLiteDatabase db, CancellationToken token) throws IOException {
+        execute(new AndroidDatabase(db), token);
+    }
+}
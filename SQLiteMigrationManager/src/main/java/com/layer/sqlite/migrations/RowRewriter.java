@@ -0,0 +1,260 @@
+package com.layer.sqlite.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.layer.sqlite.database.AndroidDatabase;
+import com.layer.sqlite.database.CompiledStatement;
+import com.layer.sqlite.database.Database;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Rewrites rows for a CodeMigration with the CPU-heavy part of the work spread over an
+ * ExecutorService, such as re-encoding or recompressing blobs.
+ *
+ * The calling thread reads the table's rows in rowid order, one batch per query that resumes
+ * after the last rowid read, and submits each batch to the executor, where the Transform turns
+ * every row into the bind arguments of a compiled UPDATE.  Finished batches are written back on
+ * the calling thread, inside the migration's transaction, in the order they were read.  At most
+ * `maxInFlight` batches are read ahead of the writer, so memory stays bounded however many rows
+ * are rewritten.  No cursor stays open across the updates, so the WHERE clause may depend on the
+ * columns being rewritten.  The table must have rowids, and the UPDATE must not change them.
+ *
+ * If a CancellationToken is set, it is checked before each batch is written, and pending batches
+ * are cancelled when it throws.
+ *
+ * @param <T> The row type produced by the Transform.
+ */
+public class RowRewriter<T> {
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /**
+     * Reads and transforms rows.
+     *
+     * @param <T> The row type.
+     */
+    public interface Transform<T> {
+        /**
+         * Reads a row, whose column 0 is the rowid, followed by the selected columns.  Called on
+         * the calling thread.
+         */
+        T read(Database.Row row);
+
+        /**
+         * Returns the bind arguments for the UPDATE statement, or `null` to leave the row
+         * unchanged.  Called concurrently on the executor's threads.  Arguments may be `null`,
+         * `byte[]`, a floating-point Number, any other Number, or a String.
+         */
+        Object[] transform(T row) throws Exception;
+    }
+
+    private final String mTable;
+    private final String mColumns;
+    private final String mUpdateSql;
+    private final Transform<T> mTransform;
+    private String mWhere;
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private CancellationToken mCancellationToken;
+
+    /**
+     * @param table     Table whose rows are rewritten, as written in SQL.
+     * @param columns   Comma-separated columns read after the rowid, as written in SQL.
+     * @param updateSql UPDATE bound with the arguments returned by the Transform.
+     * @param transform Transform reading and rewriting each row.
+     */
+    public RowRewriter(String table, String columns, String updateSql, Transform<T> transform) {
+        if (table == null) throw new IllegalArgumentException("Table is null");
+        if (columns == null) throw new IllegalArgumentException("Columns are null");
+        if (transform == null) throw new IllegalArgumentException("Transform is null");
+        mTable = table;
+        mColumns = columns;
+        mUpdateSql = updateSql;
+        mTransform = transform;
+    }
+
+    /**
+     * Sets the WHERE clause selecting the rows to rewrite.
+     *
+     * @param where Condition on the table's rows, without `WHERE`, or `null` to rewrite every
+     *              row.
+     * @return `this` for chaining.
+     */
+    public RowRewriter<T> setWhere(String where) {
+        mWhere = where;
+        return this;
+    }
+
+    /**
+     * Sets the number of rows read by each query and transformed by each task.
+     *
+     * @return `this` for chaining.
+     */
+    public RowRewriter<T> setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive");
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of batches read but not yet written.
+     *
+     * @return `this` for chaining.
+     */
+    public RowRewriter<T> setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("Max in flight must be positive");
+        mMaxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Sets the CancellationToken checked between batches, normally the one passed to
+     * CodeMigration.execute().
+     *
+     * @param token CancellationToken to check, or `null`.
+     * @return `this` for chaining.
+     */
+    public RowRewriter<T> setCancellationToken(CancellationToken token) {
+        mCancellationToken = token;
+        return this;
+    }
+
+    /**
+     * Rewrites all selected rows.
+     *
+     * @param db       Database to rewrite, normally within a CodeMigration's transaction.
+     * @param executor ExecutorService on which rows are transformed.
+     * @return The number of rows updated.
+     * @throws IOException If a Transform throws a checked exception.
+     */
+    public int execute(SQLiteDatabase db, ExecutorService executor) throws IOException {
+        return execute(new AndroidDatabase(db), executor);
+    }
+
+    /**
+     * Rewrites all selected rows of a Database, normally within a PortableCodeMigration's
+     * transaction.
+     *
+     * @param db       Database to rewrite.
+     * @param executor ExecutorService on which rows are transformed.
+     * @return The number of rows updated.
+     * @throws IOException If a Transform throws a checked exception.
+     */
+    public int execute(Database db, ExecutorService executor) throws IOException {
+        Queue<Future<Object[][]>> inFlight = new ArrayDeque<Future<Object[][]>>();
+        CompiledStatement update = db.compileStatement(mUpdateSql);
+        int updated = 0;
+        try {
+            final long[] lastRowId = new long[1];
+            boolean more = true;
+            boolean first = true;
+            while (more) {
+                final List<T> batch = new ArrayList<T>(mBatchSize);
+                db.query(getPageSql(first ? null : lastRowId[0]), null,
+                        new Database.RowHandler() {
+                            @Override
+                            public boolean onRow(Database.Row row) {
+                                lastRowId[0] = row.getLong(0);
+                                batch.add(mTransform.read(row));
+                                return true;
+                            }
+                        });
+                first = false;
+                more = batch.size() == mBatchSize;
+                if (batch.isEmpty()) break;
+
+                inFlight.add(executor.submit(new Callable<Object[][]>() {
+                    @Override
+                    public Object[][] call() throws Exception {
+                        Object[][] results = new Object[batch.size()][];
+                        for (int i = 0; i < results.length; i++) {
+                            results[i] = mTransform.transform(batch.get(i));
+                        }
+                        return results;
+                    }
+                }));
+
+                // Write the oldest batch once the read-ahead limit is reached.
+                if (inFlight.size() >= mMaxInFlight) {
+                    CancellationToken.throwIfCancelled(mCancellationToken);
+                    updated += write(update, inFlight.remove());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                CancellationToken.throwIfCancelled(mCancellationToken);
+                updated += write(update, inFlight.remove());
+            }
+            return updated;
+        } finally {
+            for (Future<Object[][]> future : inFlight) {
+                future.cancel(true);
+            }
+            update.close();
+        }
+    }
+
+    /**
+     * Returns the query for the batch of rows after the given rowid, or the first batch.
+     */
+    private String getPageSql(Long after) {
+        StringBuilder sql = new StringBuilder("SELECT rowid, ").append(mColumns)
+                .append(" FROM ").append(mTable);
+        if (after != null || mWhere != null) sql.append(" WHERE ");
+        if (after != null) sql.append("rowid > ").append(after);
+        if (after != null && mWhere != null) sql.append(" AND ");
+        if (mWhere != null) sql.append('(').append(mWhere).append(')');
+        return sql.append(" ORDER BY rowid LIMIT ").append(mBatchSize).toString();
+    }
+
+    private static int write(CompiledStatement update, Future<Object[][]> batch)
+            throws IOException {
+        Object[][] results;
+        try {
+            results = batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rewriting rows");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException("Could not transform rows", cause);
+        }
+
+        int updated = 0;
+        for (Object[] args : results) {
+            if (args == null) continue;
+            for (int i = 0; i < args.length; i++) {
+                bind(update, i + 1, args[i]);
+            }
+            update.execute();
+            update.clearBindings();
+            updated++;
+        }
+        return updated;
+    }
+
+    private static void bind(CompiledStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+}
@@ -1,8 +1,28 @@
 package com.layer.sqlite.migrations;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public abstract class StreamMigration extends Migration {
+    /**
+     * Header comment declaring a Migration's priority, such as `-- @priority low`.
+     */
+    public static final Pattern PRIORITY_DIRECTIVE =
+            Pattern.compile("^--\\s*@priority\\s+(\\w+)\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Header comment declaring that a Migration's statements are idempotent, `-- @resumable`.  It
+     * is read by SQLParser.Tokenizer as the Migration is tokenized.
+     */
+    public static final Pattern RESUMABLE_DIRECTIVE =
+            Pattern.compile("^--\\s*@resumable\\s*$", Pattern.CASE_INSENSITIVE);
+
+    private volatile Priority mPriority;
 
     protected StreamMigration(String path) {
         super(path);
@@ -12,4 +32,44 @@ public abstract class StreamMigration extends Migration {
      * Returns an input stream of SQL to execute.
      */
     public abstract InputStream getStream();
+
+    /**
+     * Returns the priority declared by a PRIORITY_DIRECTIVE among the comment lines at the top of
+     * the SQL, or CRITICAL if there is none.  Only the header is read, and the result is cached.
+     */
+    @Override
+    public Priority getPriority() throws IOException {
+        Priority priority = mPriority;
+        if (priority == null) {
+            priority = readPriority();
+            mPriority = priority;
+        }
+        return priority;
+    }
+
+    private Priority readPriority() throws IOException {
+        InputStream in = getStream();
+        if (in == null) throw new IOException("Could not open migration: " + getPath());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) continue;
+                if (!line.startsWith("--")) break;
+                Matcher matcher = PRIORITY_DIRECTIVE.matcher(line);
+                if (matcher.matches()) {
+                    try {
+                        return Priority.valueOf(matcher.group(1).toUpperCase(Locale.US));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid priority in " + getPath()
+                                + ": " + matcher.group(1));
+                    }
+                }
+            }
+            return Priority.CRITICAL;
+        } finally {
+            reader.close();
+        }
+    }
 }
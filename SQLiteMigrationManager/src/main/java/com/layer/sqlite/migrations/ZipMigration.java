@@ -0,0 +1,31 @@
+package com.layer.sqlite.migrations;
+
+import com.layer.sqlite.datasource.ZipArchiveDataSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ZipMigration extends StreamMigration {
+    private final ZipArchiveDataSource mArchive;
+
+    public ZipMigration(ZipArchiveDataSource archive, String path) {
+        super(path);
+        mArchive = archive;
+        try {
+            if (!mArchive.entryExists(path)) {
+                throw new IllegalArgumentException("Could not find migration path: '" + path + "'");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open archive for path: '" + path + "'", e);
+        }
+    }
+
+    @Override
+    public InputStream getStream() {
+        try {
+            return mArchive.getEntryStream(getPath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.SQLiteMigrationManager;
+import com.layer.sqlite.datasource.FileSystemDataSource;
+import com.layer.sqlite.migrations.Migration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SQLiteMigrationManager.getMigrations(), which asks every DataSource for its Migrations
+ * and merges them by version.  The `memory` source constructs Migrations from names held in
+ * memory; the `files` source lists a temporary directory through a FileSystemDataSource.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiscoveryBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int migrations;
+
+    @Param({"memory", "files"})
+    public String source;
+
+    private SQLiteMigrationManager mMigrationManager;
+    private File mDirectory;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] names = SyntheticCorpus.migrationNames(migrations, SyntheticCorpus.DEFAULT_SEED);
+        byte[] sql = SyntheticCorpus.sql(256, SyntheticCorpus.DEFAULT_SEED);
+        mMigrationManager = new SQLiteMigrationManager();
+        if (source.equals("files")) {
+            mDirectory = File.createTempFile("discovery", "");
+            if (!mDirectory.delete()) throw new IOException("Could not replace " + mDirectory);
+            SyntheticCorpus.writeMigrations(mDirectory, names, sql);
+            mMigrationManager.addDataSource(new FileSystemDataSource(null, mDirectory));
+        } else {
+            mMigrationManager.addDataSource(SyntheticCorpus.dataSource(names, sql));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mDirectory != null) SyntheticCorpus.delete(mDirectory);
+    }
+
+    @Benchmark
+    public List<Migration> getMigrations() throws IOException, URISyntaxException {
+        return mMigrationManager.getMigrations();
+    }
+}
@@ -0,0 +1,54 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.migrations.Migration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of constructing a Migration, which matches its file name against
+ * Migration.MIGRATION_PATTERN, and of the match alone, as DataSources do for every file listed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class MigrationNameBenchmark {
+    private static final byte[] EMPTY = new byte[0];
+
+    private String[] mNames;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mNames = SyntheticCorpus.migrationNames(1024, SyntheticCorpus.DEFAULT_SEED);
+    }
+
+    private String nextName() {
+        String name = mNames[mNext];
+        mNext = (mNext + 1) & (mNames.length - 1);
+        return name;
+    }
+
+    @Benchmark
+    public Migration construct() {
+        return SyntheticCorpus.migration(nextName(), EMPTY);
+    }
+
+    @Benchmark
+    public boolean match() {
+        return Migration.MIGRATION_PATTERN.matcher(nextName()).matches();
+    }
+}
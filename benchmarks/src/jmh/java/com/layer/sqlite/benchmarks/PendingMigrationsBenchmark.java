@@ -0,0 +1,63 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.SQLiteMigrationManager;
+import com.layer.sqlite.migrations.Migration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SQLiteMigrationManager.getPendingMigrations() against a MemoryDatabase that has
+ * applied all but the last `behind` of `migrations` Migrations, so the cost of discovery and of
+ * comparing large applied sets is measured without SQLite.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PendingMigrationsBenchmark {
+    @Param({"1000", "10000"})
+    public int migrations;
+
+    @Param({"0", "500"})
+    public int behind;
+
+    private SQLiteMigrationManager mMigrationManager;
+    private MemoryDatabase mDatabase;
+
+    @Setup
+    public void setUp() {
+        String[] names = SyntheticCorpus.migrationNames(migrations, SyntheticCorpus.DEFAULT_SEED);
+        byte[] sql = SyntheticCorpus.sql(256, SyntheticCorpus.DEFAULT_SEED);
+        mMigrationManager = new SQLiteMigrationManager()
+                .addDataSource(SyntheticCorpus.dataSource(names, sql));
+
+        List<Long> applied = new ArrayList<Long>();
+        for (int i = 0; i < migrations - Math.min(behind, migrations); i++) {
+            applied.add(SyntheticCorpus.version(i));
+        }
+        mDatabase = new MemoryDatabase().addVersions(applied);
+    }
+
+    @Benchmark
+    public List<Migration> getPendingMigrations() throws IOException, URISyntaxException {
+        return mMigrationManager.getPendingMigrations(mDatabase);
+    }
+}
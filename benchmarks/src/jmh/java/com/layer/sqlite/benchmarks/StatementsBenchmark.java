@@ -0,0 +1,72 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.SQLParser;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures tokenizing throughput of SQLParser.Statements over synthetic SQL.  Besides operations
+ * per second, each benchmark reports a `bytes` counter in bytes per second; divide by 10^6 for
+ * MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatementsBenchmark {
+    @Param({"16", "1024", "16384"})
+    public int kilobytes;
+
+    private byte[] mSql;
+
+    /**
+     * Bytes tokenized, reported as a rate.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mSql = SyntheticCorpus.sql(kilobytes * 1024, SyntheticCorpus.DEFAULT_SEED);
+    }
+
+    @Benchmark
+    public List<String> fromStream(Throughput throughput) throws IOException {
+        throughput.bytes += mSql.length;
+        return SQLParser.Statements.fromStream(new ByteArrayInputStream(mSql));
+    }
+
+    @Benchmark
+    public List<String> fromBuffer(Throughput throughput) {
+        throughput.bytes += mSql.length;
+        return SQLParser.Statements.fromBuffer(ByteBuffer.wrap(mSql));
+    }
+}
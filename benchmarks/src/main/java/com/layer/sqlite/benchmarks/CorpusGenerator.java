@@ -0,0 +1,283 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.database.Database;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates executable migration corpora and pre-populated databases at configurable scale, for
+ * measuring manageSchema() end to end.
+ *
+ * The first migration creates the `messages` table that holds the bulk of a database's data,
+ * along with a table for each seed file.  Later migrations follow the mix of a long-lived
+ * project: small inserts, new tables and views, added columns, indexes, chunked backfills of
+ * added columns, and dropped indexes, with the `messages` table a frequent target.  Seed files are
+ * CSV files of the configured size, spread evenly through the corpus.  The same seed always
+ * produces the same corpus.
+ */
+public class CorpusGenerator {
+    public static final String MESSAGES = "messages";
+
+    /**
+     * Rows inserted per statement while populating a database.
+     */
+    private static final int POPULATE_BATCH_ROWS = 10000;
+
+    private static final int PAYLOAD_BYTES = 512;
+
+    private int mMigrations = 1000;
+    private int mSeedFiles = 1;
+    private long mSeedBytes = 1024 * 1024;
+    private long mSeed = SyntheticCorpus.DEFAULT_SEED;
+
+    /**
+     * Sets the number of migrations generated, including seed files.
+     *
+     * @return `this` for chaining.
+     */
+    public CorpusGenerator setMigrations(int migrations) {
+        if (migrations < 1) throw new IllegalArgumentException("Migrations must be positive");
+        mMigrations = migrations;
+        return this;
+    }
+
+    /**
+     * Sets the number of seed files and the size of each.
+     *
+     * @return `this` for chaining.
+     */
+    public CorpusGenerator setSeedFiles(int seedFiles, long seedBytes) {
+        if (seedFiles < 0) throw new IllegalArgumentException("Seed files is negative");
+        if (seedBytes < 0) throw new IllegalArgumentException("Seed size is negative");
+        mSeedFiles = seedFiles;
+        mSeedBytes = seedBytes;
+        return this;
+    }
+
+    /**
+     * Sets the seed of the random corpus.
+     *
+     * @return `this` for chaining.
+     */
+    public CorpusGenerator setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    /**
+     * Writes the corpus into `directory`, replacing any migrations already there.
+     *
+     * @return The versions written, in order.
+     */
+    public List<Long> generate(File directory) throws IOException {
+        if (directory.exists()) SyntheticCorpus.delete(directory);
+        if (!directory.mkdirs()) throw new IOException("Could not create " + directory);
+
+        Random random = new Random(mSeed);
+        Schema schema = new Schema();
+        List<Long> versions = new ArrayList<Long>(mMigrations);
+        int seedFiles = Math.min(mSeedFiles, mMigrations - 1);
+        int nextSeed = 0;
+        for (int index = 0; index < mMigrations; index++) {
+            long version = SyntheticCorpus.version(index);
+            versions.add(version);
+            if (index == 0) {
+                write(new File(directory, version + "_CreateCoreTables.sql"),
+                        schema.createCoreTables(seedFiles));
+            } else if (nextSeed < seedFiles
+                    && index == (nextSeed + 1) * mMigrations / (seedFiles + 1)) {
+                writeSeed(new File(directory, version + "_" + Schema.seedTable(nextSeed) + ".csv"),
+                        random);
+                nextSeed++;
+            } else {
+                String sql = schema.nextMigration(random, index);
+                write(new File(directory, version + "_" + schema.mLastDescription + ".sql"), sql);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Inserts rows into `messages` until the database file holds at least `targetBytes`.  Each
+     * batch is committed separately.
+     */
+    public static void populate(Database db, long targetBytes) {
+        long pageSize = db.queryForLong("PRAGMA page_size", null);
+        String insert = "INSERT INTO " + MESSAGES
+                + " (conversation_id, created_at, body, payload)"
+                + " WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < "
+                + POPULATE_BATCH_ROWS + ")"
+                + " SELECT abs(random()) % 1000, 1400000000 + i, hex(randomblob(32)),"
+                + " randomblob(" + PAYLOAD_BYTES + ") FROM n";
+        while (db.queryForLong("PRAGMA page_count", null) * pageSize < targetBytes) {
+            db.beginTransaction();
+            try {
+                db.execSQL(insert, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private void writeSeed(File file, Random random) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8"), 64 * 1024);
+        try {
+            out.write("code,name,value\n");
+            long written = 16;
+            StringBuilder row = new StringBuilder();
+            for (long i = 0; written < mSeedBytes; i++) {
+                row.setLength(0);
+                row.append("C").append(i).append(",\"Name ").append(i);
+                if (random.nextInt(10) == 0) row.append(", with a comma");
+                row.append("\",");
+                if (random.nextInt(20) != 0) row.append(random.nextInt(1000000));
+                row.append('\n');
+                out.append(row);
+                written += row.length();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(File file, String sql) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(sql);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The tables, columns and indexes created so far, from which each migration is drawn.
+     */
+    private static class Schema {
+        final Map<String, List<String>> mTables = new LinkedHashMap<String, List<String>>();
+        final List<String> mIndexes = new ArrayList<String>();
+        final List<String[]> mBackfills = new ArrayList<String[]>();
+        String mLastDescription;
+
+        static String seedTable(int seed) {
+            return "seed_" + seed;
+        }
+
+        String createCoreTables(int seedFiles) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("CREATE TABLE ").append(MESSAGES).append(" (\n")
+                    .append("    id INTEGER PRIMARY KEY,\n")
+                    .append("    conversation_id INTEGER NOT NULL,\n")
+                    .append("    created_at INTEGER NOT NULL,\n")
+                    .append("    body TEXT,\n")
+                    .append("    payload BLOB\n")
+                    .append(");\n\n");
+            sql.append("CREATE TABLE conversations (\n")
+                    .append("    id INTEGER PRIMARY KEY,\n")
+                    .append("    title TEXT\n")
+                    .append(");\n\n");
+            sql.append("CREATE TABLE events (\n")
+                    .append("    id INTEGER PRIMARY KEY,\n")
+                    .append("    type INTEGER,\n")
+                    .append("    body TEXT\n")
+                    .append(");\n\n");
+            sql.append("CREATE INDEX messages_conversation ON ").append(MESSAGES)
+                    .append(" (conversation_id, created_at);");
+            mTables.put(MESSAGES, new ArrayList<String>(Arrays.asList("conversation_id",
+                    "created_at", "body")));
+            mTables.put("conversations", new ArrayList<String>(Arrays.asList("title")));
+            mTables.put("events", new ArrayList<String>(Arrays.asList("type", "body")));
+            for (int seed = 0; seed < seedFiles; seed++) {
+                sql.append("\n\nCREATE TABLE ").append(seedTable(seed))
+                        .append(" (code TEXT, name TEXT, value INTEGER);");
+            }
+            sql.append('\n');
+            return sql.toString();
+        }
+
+        String nextMigration(Random random, int index) {
+            String table = pickTable(random);
+            int kind = random.nextInt(100);
+            StringBuilder sql = new StringBuilder();
+            if (kind < 30) {
+                mLastDescription = "InsertEvents" + index;
+                sql.append("-- Record events for release ").append(index).append('\n');
+                sql.append("INSERT INTO events (type, body) VALUES");
+                int rows = 1 + random.nextInt(5);
+                for (int row = 0; row < rows; row++) {
+                    sql.append(row == 0 ? "\n    (" : ",\n    (").append(random.nextInt(50))
+                            .append(", 'event ").append(index).append("; it''s ").append(row)
+                            .append("')");
+                }
+                sql.append(';');
+            } else if (kind < 45) {
+                String created = "table_" + index;
+                mLastDescription = "CreateTable" + index;
+                sql.append("CREATE TABLE ").append(created).append(" (\n")
+                        .append("    id INTEGER PRIMARY KEY,\n")
+                        .append("    name TEXT NOT NULL,\n")
+                        .append("    created_at INTEGER DEFAULT 0\n")
+                        .append(");\n\n");
+                sql.append("INSERT INTO ").append(created)
+                        .append(" (name, created_at) VALUES ('first', ").append(index).append(");");
+                mTables.put(created, new ArrayList<String>(Arrays.asList("name", "created_at")));
+            } else if (kind < 65) {
+                String column = "column_" + index;
+                mLastDescription = "AddColumnTo_" + table;
+                sql.append("ALTER TABLE ").append(table).append(" ADD COLUMN ").append(column)
+                        .append(" INTEGER DEFAULT 0;");
+                mTables.get(table).add(column);
+                mBackfills.add(new String[]{table, column});
+            } else if (kind < 75) {
+                List<String> columns = mTables.get(table);
+                String name = "index_" + index;
+                mLastDescription = "AddIndexOn_" + table;
+                sql.append("CREATE INDEX ").append(name).append(" ON ").append(table)
+                        .append(" (").append(columns.get(random.nextInt(columns.size())))
+                        .append(");");
+                mIndexes.add(name);
+            } else if (kind < 85 && !mBackfills.isEmpty()) {
+                String[] backfill = mBackfills.remove(random.nextInt(mBackfills.size()));
+                mLastDescription = "Backfill_" + backfill[0];
+                sql.append("-- @chunk 10000\n");
+                sql.append("UPDATE ").append(backfill[0]).append(" SET ").append(backfill[1])
+                        .append(" = id % 7 WHERE ").append(backfill[1]).append(" = 0;");
+            } else if (kind < 95) {
+                mLastDescription = "CreateView" + index;
+                sql.append("CREATE VIEW view_").append(index).append(" AS SELECT * FROM ")
+                        .append(table).append(" WHERE id > ").append(random.nextInt(1000))
+                        .append(';');
+            } else if (!mIndexes.isEmpty()) {
+                mLastDescription = "DropIndex" + index;
+                sql.append("DROP INDEX IF EXISTS ")
+                        .append(mIndexes.remove(random.nextInt(mIndexes.size()))).append(';');
+            } else {
+                mLastDescription = "Analyze" + index;
+                sql.append("ANALYZE ").append(table).append(';');
+            }
+            sql.append('\n');
+            return sql.toString();
+        }
+
+        /**
+         * Picks `messages` a fifth of the time, and any other table otherwise.
+         */
+        private String pickTable(Random random) {
+            if (random.nextInt(5) == 0) return MESSAGES;
+            List<String> tables = new ArrayList<String>(mTables.keySet());
+            return tables.get(random.nextInt(tables.size()));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.database.CompiledStatement;
+import com.layer.sqlite.database.Database;
+import com.layer.sqlite.database.DatabaseException;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * A stand-in Database holding nothing but `schema_migrations`, for measuring the manager's own
+ * bookkeeping without the cost of SQLite.  It answers the queries SQLiteMigrationManager makes of
+ * `sqlite_master` and `schema_migrations` and records inserted versions; every other statement is
+ * counted and discarded.  Transactions nest but are never rolled back.
+ */
+public class MemoryDatabase implements Database {
+    private final TreeSet<Long> mVersions = new TreeSet<Long>();
+    private boolean mMigrationsTable;
+    private int mTransactionDepth;
+    private long mStatementCount;
+
+    /**
+     * Creates `schema_migrations` holding the given versions.
+     *
+     * @return `this` for chaining.
+     */
+    public MemoryDatabase addVersions(Collection<Long> versions) {
+        mMigrationsTable = true;
+        mVersions.addAll(versions);
+        return this;
+    }
+
+    /**
+     * Returns the number of statements discarded.
+     */
+    public long getStatementCount() {
+        return mStatementCount;
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) {
+        if (sql.startsWith("CREATE TABLE") && sql.contains("schema_migrations")) {
+            mMigrationsTable = true;
+        } else if (sql.startsWith("INSERT INTO schema_migrations")) {
+            checkMigrationsTable();
+            mVersions.add(((Number) bindArgs[0]).longValue());
+        } else {
+            mStatementCount++;
+        }
+    }
+
+    @Override
+    public int query(String sql, Object[] bindArgs, RowHandler handler) {
+        if (!sql.startsWith("SELECT version FROM schema_migrations")) {
+            mStatementCount++;
+            return 0;
+        }
+        checkMigrationsTable();
+        VersionRow row = new VersionRow();
+        int rows = 0;
+        for (Long version : mVersions) {
+            rows++;
+            row.mVersion = version;
+            if (handler != null && !handler.onRow(row)) break;
+        }
+        return rows;
+    }
+
+    @Override
+    public Long queryForLong(String sql, Object[] bindArgs) {
+        if (sql.contains("FROM sqlite_master") && sql.contains("schema_migrations")) {
+            return mMigrationsTable ? 1L : null;
+        } else if (sql.startsWith("SELECT MIN(version) FROM schema_migrations")) {
+            checkMigrationsTable();
+            return mVersions.isEmpty() ? null : mVersions.first();
+        } else if (sql.startsWith("SELECT MAX(version) FROM schema_migrations")) {
+            checkMigrationsTable();
+            return mVersions.isEmpty() ? null : mVersions.last();
+        }
+        mStatementCount++;
+        return null;
+    }
+
+    @Override
+    public String queryForString(String sql, Object[] bindArgs) {
+        mStatementCount++;
+        return null;
+    }
+
+    @Override
+    public CompiledStatement compileStatement(String sql) {
+        return new DiscardingStatement();
+    }
+
+    @Override
+    public void beginTransaction() {
+        mTransactionDepth++;
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        if (mTransactionDepth == 0) throw new IllegalStateException("No transaction in progress");
+    }
+
+    @Override
+    public void endTransaction() {
+        if (mTransactionDepth == 0) throw new IllegalStateException("No transaction in progress");
+        mTransactionDepth--;
+    }
+
+    @Override
+    public boolean inTransaction() {
+        return mTransactionDepth > 0;
+    }
+
+    @Override
+    public void savepoint(String name) {
+    }
+
+    @Override
+    public void releaseSavepoint(String name) {
+    }
+
+    @Override
+    public void rollbackToSavepoint(String name) {
+        throw new UnsupportedOperationException("MemoryDatabase does not roll back");
+    }
+
+    @Override
+    public String getPath() {
+        return "";
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    private void checkMigrationsTable() {
+        if (!mMigrationsTable) throw new DatabaseException("no such table: schema_migrations");
+    }
+
+    private static class VersionRow implements Row {
+        long mVersion;
+
+        @Override
+        public int getColumnCount() {
+            return 1;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return false;
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mVersion;
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mVersion;
+        }
+
+        @Override
+        public String getString(int column) {
+            return Long.toString(mVersion);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            throw new DatabaseException("Versions are not blobs");
+        }
+    }
+
+    private class DiscardingStatement implements CompiledStatement {
+        @Override
+        public void bindNull(int index) {
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+        }
+
+        @Override
+        public void clearBindings() {
+        }
+
+        @Override
+        public void execute() {
+            mStatementCount++;
+        }
+
+        @Override
+        public long executeInsert() {
+            return ++mStatementCount;
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            mStatementCount++;
+            return 0;
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            mStatementCount++;
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
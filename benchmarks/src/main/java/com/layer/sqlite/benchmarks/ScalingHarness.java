@@ -0,0 +1,410 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.SQLiteMigrationManager;
+import com.layer.sqlite.SQLiteMigrationManager.BootstrapAction;
+import com.layer.sqlite.database.JdbcDatabase;
+import com.layer.sqlite.datasource.DataSource;
+import com.layer.sqlite.datasource.FileSystemDataSource;
+import com.layer.sqlite.migrations.Migration;
+import com.layer.sqlite.schema.Schema;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures manageSchema() end to end on real SQLite databases, through JdbcDatabase and the
+ * sqlite-jdbc driver, with a corpus written by CorpusGenerator.  Three scenarios are run:
+ *
+ * <ul>
+ * <li>`cold`: every migration, seed files included, is applied to a new database.</li>
+ * <li>`warm`: manageSchema() is run again on the fully migrated database and applies nothing.</li>
+ * <li>`catchup`: a database populated to the configured size, with all but the last `behind`
+ * migrations applied, is brought up to date.</li>
+ * </ul>
+ *
+ * Each scenario reports the wall time of opening the database and running manageSchema(), the
+ * peak heap in use, sampled while migrating, the bytes read by the process from /proc/self/io
+ * (Linux only; memory-mapped migration files are not counted in `rchar`), the peak size of the
+ * rollback journal or WAL file, sampled while migrating, and the final size of the database.
+ * Preparing a scenario's database is not measured.
+ *
+ * Run with `./gradlew :benchmarks:scalingHarness -PharnessArgs="--migrations 1000"`.
+ */
+public class ScalingHarness {
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private static final String USAGE = "Options:\n"
+            + "  --work-dir <dir>       directory for the corpus and databases [build/scaling]\n"
+            + "  --migrations <n>       migrations in the corpus [5000]\n"
+            + "  --behind <n>           migrations pending in the catchup scenario [500]\n"
+            + "  --database-mb <n>      size of the catchup database [1024]\n"
+            + "  --seed-files <n>       seed files in the corpus [1]\n"
+            + "  --seed-mb <n>          size of each seed file [100]\n"
+            + "  --seed <n>             random seed of the corpus\n"
+            + "  --scenarios <list>     comma-separated scenarios to run [cold,warm,catchup]\n"
+            + "  --report <file>        also write results as CSV to this file";
+
+    private File mWorkDir = new File("build/scaling");
+    private int mMigrations = 5000;
+    private int mBehind = 500;
+    private long mDatabaseBytes = 1024 * MEGABYTE;
+    private int mSeedFiles = 1;
+    private long mSeedBytes = 100 * MEGABYTE;
+    private long mSeed = SyntheticCorpus.DEFAULT_SEED;
+    private List<String> mScenarios = Arrays.asList("cold", "warm", "catchup");
+    private File mReport;
+
+    private File mMigrationsDir;
+    private List<Long> mVersions;
+
+    public static void main(String[] args) throws Exception {
+        ScalingHarness harness = new ScalingHarness();
+        try {
+            harness.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The sqlite-jdbc driver is not on the classpath", e);
+        }
+        harness.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value: " + option);
+            }
+            String value = args[++i];
+            if (option.equals("--work-dir")) {
+                mWorkDir = new File(value);
+            } else if (option.equals("--migrations")) {
+                mMigrations = parseInt(option, value);
+            } else if (option.equals("--behind")) {
+                mBehind = parseInt(option, value);
+            } else if (option.equals("--database-mb")) {
+                mDatabaseBytes = parseInt(option, value) * MEGABYTE;
+            } else if (option.equals("--seed-files")) {
+                mSeedFiles = parseInt(option, value);
+            } else if (option.equals("--seed-mb")) {
+                mSeedBytes = parseInt(option, value) * MEGABYTE;
+            } else if (option.equals("--seed")) {
+                mSeed = Long.parseLong(value);
+            } else if (option.equals("--scenarios")) {
+                mScenarios = Arrays.asList(value.split(","));
+                for (String scenario : mScenarios) {
+                    if (!scenario.equals("cold") && !scenario.equals("warm")
+                            && !scenario.equals("catchup")) {
+                        throw new IllegalArgumentException("Unknown scenario: " + scenario);
+                    }
+                }
+            } else if (option.equals("--report")) {
+                mReport = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        if (mMigrations < 1) throw new IllegalArgumentException("--migrations must be positive");
+        if (mBehind >= mMigrations) {
+            throw new IllegalArgumentException("--behind must be less than --migrations");
+        }
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) throw new IllegalArgumentException(option + " is negative: " + value);
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " is not a number: " + value);
+        }
+    }
+
+    private void run() throws Exception {
+        mMigrationsDir = new File(mWorkDir, "migrations");
+        log("Generating %d migrations with %d seed files of %d MB in %s", mMigrations, mSeedFiles,
+                mSeedBytes / MEGABYTE, mMigrationsDir);
+        mVersions = new CorpusGenerator()
+                .setMigrations(mMigrations)
+                .setSeedFiles(mSeedFiles, mSeedBytes)
+                .setSeed(mSeed)
+                .generate(mMigrationsDir);
+
+        List<Measurement> measurements = new ArrayList<Measurement>();
+        File installed = new File(mWorkDir, "installed.db");
+        File catchup = new File(mWorkDir, "catchup.db");
+        boolean isInstalled = false;
+        for (String scenario : mScenarios) {
+            if (scenario.equals("cold")) {
+                deleteDatabase(installed);
+                measurements.add(measure(scenario, installed));
+                isInstalled = true;
+            } else if (scenario.equals("warm")) {
+                if (!isInstalled) {
+                    log("Preparing %s", installed);
+                    deleteDatabase(installed);
+                    migrate(installed, Long.MAX_VALUE);
+                    isInstalled = true;
+                }
+                measurements.add(measure(scenario, installed));
+            } else {
+                prepareCatchup(catchup);
+                measurements.add(measure(scenario, catchup));
+            }
+        }
+
+        print(System.out, measurements);
+        if (mReport != null) writeReport(mReport, measurements);
+    }
+
+    /**
+     * Creates a database with all but the last `behind` migrations applied, populated to the
+     * configured size.
+     */
+    private void prepareCatchup(File database) throws Exception {
+        long lastApplied = mVersions.get(mMigrations - mBehind - 1);
+        log("Preparing %s: applying %d migrations and populating to %d MB", database,
+                mMigrations - mBehind, mDatabaseBytes / MEGABYTE);
+        deleteDatabase(database);
+        migrate(database, lastApplied);
+        Connection connection = open(database);
+        try {
+            CorpusGenerator.populate(new JdbcDatabase(connection), mDatabaseBytes);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private int migrate(File database, long lastVersion)
+            throws SQLException, IOException, URISyntaxException {
+        DataSource dataSource = new FileSystemDataSource(null, mMigrationsDir);
+        if (lastVersion != Long.MAX_VALUE) dataSource = throughVersion(dataSource, lastVersion);
+        Connection connection = open(database);
+        try {
+            return new SQLiteMigrationManager()
+                    .addDataSource(dataSource)
+                    .manageSchema(new JdbcDatabase(connection),
+                            BootstrapAction.CREATE_MIGRATIONS_TABLE);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private Measurement measure(String scenario, File database) throws Exception {
+        log("Running %s", scenario);
+        System.gc();
+        long[] ioBefore = readIoCounters();
+        Sampler sampler = new Sampler(database);
+        sampler.start();
+
+        long start = System.nanoTime();
+        int applied;
+        try {
+            applied = migrate(database, Long.MAX_VALUE);
+        } finally {
+            sampler.finish();
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        long[] ioAfter = readIoCounters();
+
+        Measurement measurement = new Measurement();
+        measurement.mScenario = scenario;
+        measurement.mApplied = applied;
+        measurement.mWallMillis = wallNanos / 1000000;
+        measurement.mPeakHeapBytes = sampler.getPeakHeapBytes();
+        measurement.mReadChars = (ioBefore == null || ioAfter == null)
+                ? -1 : ioAfter[0] - ioBefore[0];
+        measurement.mReadBytes = (ioBefore == null || ioAfter == null)
+                ? -1 : ioAfter[1] - ioBefore[1];
+        measurement.mPeakJournalBytes = sampler.getPeakJournalBytes();
+        measurement.mDatabaseBytes = database.length();
+        return measurement;
+    }
+
+    private static Connection open(File database) throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+    }
+
+    private static void deleteDatabase(File database) {
+        database.delete();
+        new File(database.getPath() + "-journal").delete();
+        new File(database.getPath() + "-wal").delete();
+        new File(database.getPath() + "-shm").delete();
+    }
+
+    /**
+     * Returns a DataSource of the Migrations of `dataSource` up to and including `lastVersion`.
+     */
+    private static DataSource throughVersion(final DataSource dataSource, final long lastVersion) {
+        return new DataSource() {
+            @Override
+            public boolean hasSchema() {
+                return dataSource.hasSchema();
+            }
+
+            @Override
+            public Schema getSchema() {
+                return dataSource.getSchema();
+            }
+
+            @Override
+            public List<Migration> getMigrations() throws URISyntaxException, IOException {
+                List<Migration> migrations = new ArrayList<Migration>();
+                for (Migration migration : dataSource.getMigrations()) {
+                    if (migration.getVersion() <= lastVersion) migrations.add(migration);
+                }
+                return migrations;
+            }
+        };
+    }
+
+    /**
+     * Returns `rchar` and `read_bytes` from /proc/self/io, or null where it is not available.
+     */
+    private static long[] readIoCounters() {
+        File file = new File("/proc/self/io");
+        if (!file.canRead()) return null;
+        long[] counters = {-1, -1};
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("rchar:")) {
+                        counters[0] = Long.parseLong(line.substring(6).trim());
+                    } else if (line.startsWith("read_bytes:")) {
+                        counters[1] = Long.parseLong(line.substring(11).trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return (counters[0] == -1 || counters[1] == -1) ? null : counters;
+    }
+
+    private static void print(PrintStream out, List<Measurement> measurements) {
+        out.println();
+        out.println(String.format("%-10s %8s %10s %10s %10s %10s %12s %10s", "scenario",
+                "applied", "wall_ms", "heap_mb", "rchar_mb", "read_mb", "journal_mb", "db_mb"));
+        for (Measurement measurement : measurements) {
+            out.println(String.format("%-10s %8d %10d %10s %10s %10s %12s %10s",
+                    measurement.mScenario, measurement.mApplied, measurement.mWallMillis,
+                    megabytes(measurement.mPeakHeapBytes), megabytes(measurement.mReadChars),
+                    megabytes(measurement.mReadBytes), megabytes(measurement.mPeakJournalBytes),
+                    megabytes(measurement.mDatabaseBytes)));
+        }
+    }
+
+    private static void writeReport(File file, List<Measurement> measurements) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("scenario,applied,wall_ms,peak_heap_bytes,rchar_bytes,read_bytes,"
+                    + "peak_journal_bytes,database_bytes");
+            for (Measurement measurement : measurements) {
+                out.println(measurement.mScenario + "," + measurement.mApplied + ","
+                        + measurement.mWallMillis + "," + measurement.mPeakHeapBytes + ","
+                        + measurement.mReadChars + "," + measurement.mReadBytes + ","
+                        + measurement.mPeakJournalBytes + "," + measurement.mDatabaseBytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String megabytes(long bytes) {
+        return (bytes < 0) ? "n/a" : String.format("%.1f", bytes / (double) MEGABYTE);
+    }
+
+    private static void log(String format, Object... args) {
+        System.err.println(String.format(format, args));
+    }
+
+    private static class Measurement {
+        String mScenario;
+        int mApplied;
+        long mWallMillis;
+        long mPeakHeapBytes;
+        long mReadChars;
+        long mReadBytes;
+        long mPeakJournalBytes;
+        long mDatabaseBytes;
+    }
+
+    /**
+     * Polls the heap in use and the size of a database's rollback journal and WAL file until
+     * finished.  The heap is sampled as a whole rather than summed from per-pool peaks, which are
+     * reached at different times.  Both can peak between polls, so the peaks are lower bounds.
+     */
+    private static class Sampler extends Thread {
+        private static final long INTERVAL_MILLIS = 2;
+
+        private final MemoryMXBean mMemory = ManagementFactory.getMemoryMXBean();
+        private final File mJournal;
+        private final File mWal;
+        private volatile boolean mFinished;
+        private long mPeakHeapBytes;
+        private long mPeakJournalBytes;
+
+        Sampler(File database) {
+            super("Sampler");
+            setDaemon(true);
+            mJournal = new File(database.getPath() + "-journal");
+            mWal = new File(database.getPath() + "-wal");
+        }
+
+        @Override
+        public void run() {
+            while (!mFinished) {
+                sample();
+                try {
+                    Thread.sleep(INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            mFinished = true;
+            join();
+            sample();
+        }
+
+        long getPeakHeapBytes() {
+            return mPeakHeapBytes;
+        }
+
+        long getPeakJournalBytes() {
+            return mPeakJournalBytes;
+        }
+
+        private void sample() {
+            mPeakHeapBytes = Math.max(mPeakHeapBytes, mMemory.getHeapMemoryUsage().getUsed());
+            mPeakJournalBytes = Math.max(mPeakJournalBytes,
+                    Math.max(mJournal.length(), mWal.length()));
+        }
+    }
+}
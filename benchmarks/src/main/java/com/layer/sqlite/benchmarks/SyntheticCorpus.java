@@ -0,0 +1,199 @@
+package com.layer.sqlite.benchmarks;
+
+import com.layer.sqlite.datasource.DataSource;
+import com.layer.sqlite.migrations.Migration;
+import com.layer.sqlite.migrations.StreamMigration;
+import com.layer.sqlite.schema.Schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates deterministic migration corpora for benchmarks: migration names in the timestamped
+ * style of real projects, and SQL mixing the constructs the tokenizer has to handle, such as
+ * comments, quoted semicolons, multi-byte text and triggers with nested statements.  The same
+ * seed always produces the same corpus.
+ */
+public final class SyntheticCorpus {
+    public static final long DEFAULT_SEED = 0x5EEDL;
+
+    /**
+     * Version of the first generated migration, a timestamp like those of real migrations.
+     */
+    public static final long BASE_VERSION = 201401010000000L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] TABLES = {"messages", "conversations", "participants",
+            "identities", "events", "receipts", "attachments", "keys"};
+
+    private static final String[] ACTIONS = {"CreateTable", "AddColumnTo", "AddIndexOn",
+            "Backfill", "DropTriggerOn", "RebuildTable", "seed_", "migrate_"};
+
+    private static final String[] TEXT = {"hello", "world; with a semicolon",
+            "it''s quoted", "caf\u00e9 \u2013 \u65e5\u672c\u8a9e", "-- not a comment",
+            "/* not a comment either */", "emoji \ud83c\udf4c"};
+
+    private SyntheticCorpus() {
+    }
+
+    /**
+     * Returns the version of the migration generated at `index`.
+     */
+    public static long version(int index) {
+        return BASE_VERSION + index * 100L;
+    }
+
+    /**
+     * Returns `count` distinct migration file names in ascending version order.
+     */
+    public static String[] migrationNames(int count, long seed) {
+        Random random = new Random(seed);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = version(i) + "_" + ACTIONS[random.nextInt(ACTIONS.length)]
+                    + TABLES[random.nextInt(TABLES.length)] + i + ".sql";
+        }
+        return names;
+    }
+
+    /**
+     * Returns UTF-8 SQL of at least `bytes` bytes, in statements separated by blank lines.
+     */
+    public static byte[] sql(int bytes, long seed) {
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes + 1024);
+        StringBuilder statement = new StringBuilder();
+        int index = 0;
+        while (out.size() < bytes) {
+            statement.setLength(0);
+            appendStatement(statement, random, index++);
+            byte[] encoded = statement.append("\n\n").toString().getBytes(UTF_8);
+            out.write(encoded, 0, encoded.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void appendStatement(StringBuilder sql, Random random, int index) {
+        String table = TABLES[random.nextInt(TABLES.length)];
+        switch (random.nextInt(8)) {
+            case 0:
+                sql.append("/*\n * Creates ").append(table).append(" version ").append(index)
+                        .append(".\n */\n");
+                sql.append("CREATE TABLE IF NOT EXISTS ").append(table).append('_').append(index)
+                        .append(" (\n    id INTEGER PRIMARY KEY,\n    name TEXT NOT NULL,\n")
+                        .append("    payload BLOB,\n    created_at INTEGER DEFAULT 0\n);");
+                break;
+            case 1:
+                sql.append("CREATE INDEX IF NOT EXISTS ").append(table).append("_idx_")
+                        .append(index).append(" ON ").append(table)
+                        .append(" (created_at, name);");
+                break;
+            case 2:
+                sql.append("-- Trigger keeping counts current\n");
+                sql.append("CREATE TRIGGER IF NOT EXISTS ").append(table).append("_trigger_")
+                        .append(index).append(" AFTER INSERT ON ").append(table)
+                        .append("\nBEGIN\n    UPDATE conversations SET message_count = ")
+                        .append("message_count + 1 WHERE id = NEW.conversation_id;\n")
+                        .append("    INSERT INTO events (type, name) VALUES (")
+                        .append(index).append(", '").append(TEXT[random.nextInt(TEXT.length)])
+                        .append("');\nEND;");
+                break;
+            case 3:
+                sql.append("UPDATE ").append(table).append(" SET name = '")
+                        .append(TEXT[random.nextInt(TEXT.length)]).append("' WHERE id > ")
+                        .append(random.nextInt(100000)).append(';');
+                break;
+            default:
+                sql.append("INSERT INTO ").append(table).append(" (id, name, created_at) VALUES");
+                int rows = 1 + random.nextInt(8);
+                for (int row = 0; row < rows; row++) {
+                    sql.append(row == 0 ? "\n    (" : ",\n    (").append(random.nextInt())
+                            .append(", '").append(TEXT[random.nextInt(TEXT.length)]).append("', ")
+                            .append(random.nextLong() & Long.MAX_VALUE).append(')');
+                }
+                sql.append(';');
+                break;
+        }
+    }
+
+    /**
+     * Returns a StreamMigration named `name` that streams `sql`.
+     */
+    public static Migration migration(String name, final byte[] sql) {
+        return new StreamMigration(name) {
+            @Override
+            public InputStream getStream() {
+                return new ByteArrayInputStream(sql);
+            }
+        };
+    }
+
+    /**
+     * Returns a DataSource without a Schema that constructs a Migration for every name, each
+     * streaming `sql`, whenever it is asked for its Migrations, as DataSources listing real
+     * directories do.
+     */
+    public static DataSource dataSource(final String[] names, final byte[] sql) {
+        return new DataSource() {
+            @Override
+            public boolean hasSchema() {
+                return false;
+            }
+
+            @Override
+            public Schema getSchema() {
+                return null;
+            }
+
+            @Override
+            public List<Migration> getMigrations() {
+                List<Migration> migrations = new ArrayList<Migration>(names.length);
+                for (String name : names) {
+                    migrations.add(migration(name, sql));
+                }
+                return migrations;
+            }
+        };
+    }
+
+    /**
+     * Writes a migration file for every name into `directory`, each holding `sql`.
+     */
+    public static void writeMigrations(File directory, String[] names, byte[] sql)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        for (String name : names) {
+            OutputStream out = new FileOutputStream(new File(directory, name));
+            try {
+                out.write(sql);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}